@@ -51,9 +51,11 @@ public interface Message {
 	public String getCollapseKey();
 
 	/**
-	 * Returns the key-value pairs that will be delivered to the client.
+	 * Returns the key-value pairs that will be delivered to the client. The
+	 * returned map is unmodifiable and may be shared with other messages, so
+	 * it is not copied on each call.
 	 *
-	 * @return the key-value pair payload data
+	 * @return the unmodifiable key-value pair payload data
 	 */
 	public Map<String, String> getData();
 
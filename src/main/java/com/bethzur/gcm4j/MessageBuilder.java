@@ -15,6 +15,7 @@
  */
 package com.bethzur.gcm4j;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -34,6 +35,12 @@ import java.util.Map;
  * &nbsp;&nbsp;&nbsp;&nbsp; gcmManager.pushMessage(mb.build()); </br>
  * }
  * </code>
+ * <p>
+ * The payload data is copied once, when the first message is built after it
+ * is changed, and the resulting unmodifiable map is shared by every message
+ * built or copied from this builder until the data changes again. When many
+ * messages differ only in the registration id, a {@link PayloadTemplate}
+ * obtained from {@link #buildTemplate()} is cheaper still.
  *
  * @author David R. Bild
  *
@@ -44,8 +51,18 @@ public class MessageBuilder {
 
 	private String collapseKey;
 
+	/**
+	 * The mutable payload data, or {@code null} if unchanged since it was last
+	 * frozen.
+	 */
 	private HashMap<String, String> data;
 
+	/**
+	 * The unmodifiable payload data shared with built messages, or
+	 * {@code null} if changed since it was last frozen.
+	 */
+	private Map<String, String> frozen;
+
 	private boolean delayWhileIdle;
 
 	private int timeToLive;
@@ -71,11 +88,33 @@ public class MessageBuilder {
 	public MessageBuilder(MessageBuilder that) {
 		this.registrationId = that.registrationId;
 		this.collapseKey = that.collapseKey;
-		this.data = new HashMap<String, String>(that.data);
+		this.frozen = that.frozenData();
+		this.data = null;
 		this.delayWhileIdle = that.delayWhileIdle;
 		this.timeToLive = that.timeToLive;
 	}
 
+	/**
+	 * Constructs a new {@code MessageBuilder}, copying all fields from the
+	 * specified message.
+	 *
+	 * @param message
+	 *            the message whose fields to copy
+	 */
+	public MessageBuilder(Message message) {
+		this.registrationId = message.getRegistrationId();
+		this.collapseKey = message.getCollapseKey();
+		if (message instanceof MessageImpl
+				|| PayloadTemplate.templateOf(message) != null) {
+			this.frozen = message.getData();
+			this.data = null;
+		} else {
+			this.data = new HashMap<String, String>(message.getData());
+		}
+		this.delayWhileIdle = message.delayWhileIdle();
+		this.timeToLive = message.timeToLive();
+	}
+
 	/**
 	 * Constructs a {@code Message} from the builder.
 	 *
@@ -88,10 +127,40 @@ public class MessageBuilder {
 		if (collapseKey == null)
 			throw new IllegalStateException(
 					"Required parameter 'Collapse Key' was not specified.");
-		return new MessageImpl(registrationId, collapseKey, data,
+		return new MessageImpl(registrationId, collapseKey, frozenData(),
 				delayWhileIdle, timeToLive);
 	}
 
+	/**
+	 * Constructs a {@code PayloadTemplate} from the builder. The registration
+	 * id, if set, is ignored.
+	 *
+	 * @return the newly constructed template.
+	 */
+	public PayloadTemplate buildTemplate() {
+		if (collapseKey == null)
+			throw new IllegalStateException(
+					"Required parameter 'Collapse Key' was not specified.");
+		return new PayloadTemplate(collapseKey, frozenData(), delayWhileIdle,
+				timeToLive);
+	}
+
+	private Map<String, String> frozenData() {
+		if (frozen == null) {
+			frozen = Collections.unmodifiableMap(data);
+			data = null;
+		}
+		return frozen;
+	}
+
+	private HashMap<String, String> mutableData() {
+		if (data == null) {
+			data = new HashMap<String, String>(frozen);
+			frozen = null;
+		}
+		return data;
+	}
+
 	/**
 	 * Sets the registration id for future messages.
 	 *
@@ -151,7 +220,7 @@ public class MessageBuilder {
 	 * @return this builder
 	 */
 	public MessageBuilder put(String key, String value) {
-		this.data.put(key, value);
+		mutableData().put(key, value);
 		return this;
 	}
 
@@ -164,7 +233,7 @@ public class MessageBuilder {
 	 * @return this builder
 	 */
 	public MessageBuilder putAll(Map<? extends String, ? extends String> map) {
-		this.data.putAll(map);
+		mutableData().putAll(map);
 		return this;
 	}
 
@@ -177,7 +246,7 @@ public class MessageBuilder {
 	 * @return this builder
 	 */
 	public MessageBuilder remove(String key) {
-		this.data.remove(key);
+		mutableData().remove(key);
 		return this;
 	}
 
@@ -185,7 +254,8 @@ public class MessageBuilder {
 	public String toString() {
 		return String
 				.format("Message(registrationId=\"%s\", collapseKey=\"%s\", delayWhileIdle=%b, timeToLive=%d, data=%s)",
-						registrationId, collapseKey, delayWhileIdle, timeToLive, data);
+						registrationId, collapseKey, delayWhileIdle, timeToLive,
+						frozen == null ? data : frozen);
 	}
 
 	/**
@@ -201,7 +271,7 @@ public class MessageBuilder {
 
 		private final String collapseKey;
 
-		private final HashMap<String, String> data;
+		private final Map<String, String> data;
 
 		private final boolean delayWhileIdle;
 
@@ -211,7 +281,7 @@ public class MessageBuilder {
 				Map<String, String> data, boolean delayWhileIdle, int timeToLive) {
 			this.registrationId = registrationId;
 			this.collapseKey = collapseKey;
-			this.data = new HashMap<String, String>(data);
+			this.data = data;
 			this.delayWhileIdle = delayWhileIdle;
 			this.timeToLive = timeToLive;
 		}
@@ -228,7 +298,7 @@ public class MessageBuilder {
 
 		@Override
 		public Map<String, String> getData() {
-			return new HashMap<String, String>(data);
+			return data;
 		}
 
 		@Override
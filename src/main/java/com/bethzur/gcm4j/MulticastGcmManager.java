@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link GcmManager} that can also deliver one payload to many clients in a
+ * single request to the GCM service, using the JSON {@code registration_ids}
+ * format.
+ * <p>
+ * All messages passed to {@link #pushMessages(List)} must carry the same
+ * payload, i.e., the same collapse key, time to live, delay while idle flag,
+ * and data. Only the registration ids may differ.
+ *
+ * @see DefaultGcmManager
+ *
+ * @author David R. Bild
+ *
+ */
+public interface MulticastGcmManager extends GcmManager {
+
+	/**
+	 * The maximum number of recipients accepted by the GCM service in a single
+	 * multicast request.
+	 */
+	public static final int MAX_RECIPIENTS = 1000;
+
+	/**
+	 * Sends the messages to the GCM service in a single request to be
+	 * delivered to the clients specified in the message headers.
+	 *
+	 * @param msgs
+	 *            the messages to deliver, at most {@link #MAX_RECIPIENTS}, all
+	 *            sharing the same payload
+	 * @return the responses from the GCM service, one per message and in the
+	 *         same order as the messages
+	 * @throws IllegalArgumentException
+	 *             if the list is empty, too large, or the messages do not share
+	 *             the same payload
+	 * @throws UnexpectedResponseException
+	 *             if the GCM service response could not be parsed
+	 * @throws IOException
+	 *             if unable to communicate with the GCM service
+	 */
+	public List<Response> pushMessages(List<? extends Message> msgs)
+			throws UnexpectedResponseException, IOException;
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An interface for pushing messages to clients via the GCM service without
+ * blocking the calling thread. Like {@link GcmManager}, configuration details
+ * are implementation-dependent and implementations do not retry, back off, or
+ * honor <code>Retry-After</code> headers.
+ * <p>
+ * The request is started immediately and the returned future completes when
+ * the response arrives, so no thread is held while the request is in flight.
+ * The asynchronous manager {@link AsyncGcmManager} can drive a
+ * {@code NonBlockingGcmManager} instead of a {@link GcmManager} to support
+ * many more concurrent requests than it has threads.
+ *
+ * @see NioGcmManager
+ * @see AsyncGcmManager
+ *
+ * @author David R. Bild
+ *
+ */
+public interface NonBlockingGcmManager {
+
+	/**
+	 * Starts sending a message to the GCM service to be delivered to the
+	 * client specified in the message header.
+	 * <p>
+	 * The returned future fails with an {@link UnexpectedResponseException} if
+	 * the GCM service response could not be parsed or an
+	 * {@link java.io.IOException} if unable to communicate with the GCM
+	 * service.
+	 *
+	 * @param msg
+	 *            the message to deliver
+	 * @return a future for the response from the GCM service
+	 */
+	public ListenableFuture<Response> pushMessageAsync(Message msg);
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j;
+
+import java.util.Map;
+
+/**
+ * The payload shared by many messages that differ only in their recipient.
+ * A template holds the collapse key, flags, and data once, and
+ * {@link #forRecipient(String)} returns a {@link Message} holding only the
+ * registration id and a reference to the template. A queued message thus
+ * costs little more than its registration id, however large the payload.
+ * <p>
+ * The encoded form of the payload is likewise computed once per template and
+ * shared by every message created from it. Instances are immutable and can be
+ * obtained using {@link MessageBuilder#buildTemplate()}.
+ * <p>
+ * Example (note that MyClient is made-up class):<br/>
+ * <code>
+ * PayloadTemplate template = new MessageBuilder().collapseKey("a").put("news", "...").buildTemplate(); </br>
+ * for (MyClient client : myClients) { </br>
+ * &nbsp;&nbsp;&nbsp;&nbsp; gcmManager.pushMessage(template.forRecipient(client.id)); </br>
+ * }
+ * </code>
+ *
+ * @see MessageBuilder
+ *
+ * @author David R. Bild
+ *
+ */
+public final class PayloadTemplate {
+
+	private final String collapseKey;
+
+	private final Map<String, String> data;
+
+	private final boolean delayWhileIdle;
+
+	private final int timeToLive;
+
+	private final int hashCode;
+
+	PayloadTemplate(String collapseKey, Map<String, String> data,
+			boolean delayWhileIdle, int timeToLive) {
+		this.collapseKey = collapseKey;
+		this.data = data;
+		this.delayWhileIdle = delayWhileIdle;
+		this.timeToLive = timeToLive;
+		this.hashCode = computeHashCode();
+	}
+
+	/**
+	 * Returns the template from which the specified message was created.
+	 *
+	 * @param message
+	 *            the message
+	 * @return the template of the message or {@code null} if it was not
+	 *         created from a template
+	 */
+	public static PayloadTemplate templateOf(Message message) {
+		if (message instanceof TemplateMessage)
+			return ((TemplateMessage) message).template;
+		return null;
+	}
+
+	/**
+	 * Returns a message with the payload of this template for the specified
+	 * client.
+	 *
+	 * @param registrationId
+	 *            the registration id of the client
+	 * @return the message for the client
+	 */
+	public Message forRecipient(String registrationId) {
+		if (registrationId == null)
+			throw new IllegalArgumentException(
+					"Argument 'registrationId' may not be null.");
+		return new TemplateMessage(this, registrationId);
+	}
+
+	/**
+	 * Gets the collapse key for messages created from this template.
+	 *
+	 * @return the collapse key
+	 * @see Message#getCollapseKey()
+	 */
+	public String getCollapseKey() {
+		return collapseKey;
+	}
+
+	/**
+	 * Returns the key-value pairs delivered by messages created from this
+	 * template.
+	 *
+	 * @return the unmodifiable key-value pair payload data
+	 * @see Message#getData()
+	 */
+	public Map<String, String> getData() {
+		return data;
+	}
+
+	/**
+	 * Indicates if delivery of messages created from this template should
+	 * wait until the device is active.
+	 *
+	 * @return the delayWhileIdle flag
+	 * @see Message#delayWhileIdle()
+	 */
+	public boolean delayWhileIdle() {
+		return delayWhileIdle;
+	}
+
+	/**
+	 * Gets the time to live of messages created from this template.
+	 *
+	 * @return the time to live in seconds
+	 * @see Message#timeToLive()
+	 */
+	public int timeToLive() {
+		return timeToLive;
+	}
+
+	@Override
+	public String toString() {
+		return String
+				.format("PayloadTemplate(collapseKey=\"%s\", delayWhileIdle=%b, timeToLive=%d, data=%s)",
+						collapseKey, delayWhileIdle, timeToLive, data);
+	}
+
+	private int computeHashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + collapseKey.hashCode();
+		result = prime * result + data.hashCode();
+		result = prime * result + (delayWhileIdle ? 1231 : 1237);
+		result = prime * result + timeToLive;
+		return result;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof PayloadTemplate))
+			return false;
+		PayloadTemplate other = (PayloadTemplate) obj;
+		return hashCode == other.hashCode
+				&& collapseKey.equals(other.collapseKey)
+				&& delayWhileIdle == other.delayWhileIdle
+				&& timeToLive == other.timeToLive && data.equals(other.data);
+	}
+
+	/**
+	 * Implementation of {@link Message} returned by
+	 * {@link PayloadTemplate#forRecipient(String)}.
+	 *
+	 * @author David R. Bild
+	 *
+	 */
+	private static final class TemplateMessage implements Message {
+
+		private final PayloadTemplate template;
+
+		private final String registrationId;
+
+		public TemplateMessage(PayloadTemplate template, String registrationId) {
+			this.template = template;
+			this.registrationId = registrationId;
+		}
+
+		@Override
+		public String getRegistrationId() {
+			return registrationId;
+		}
+
+		@Override
+		public String getCollapseKey() {
+			return template.collapseKey;
+		}
+
+		@Override
+		public Map<String, String> getData() {
+			return template.data;
+		}
+
+		@Override
+		public boolean delayWhileIdle() {
+			return template.delayWhileIdle;
+		}
+
+		@Override
+		public int timeToLive() {
+			return template.timeToLive;
+		}
+
+		@Override
+		public String toString() {
+			return String
+					.format("Message(registrationId=\"%s\", collapseKey=\"%s\", delayWhileIdle=%b, timeToLive=%d, data=%s)",
+							registrationId, template.collapseKey,
+							template.delayWhileIdle, template.timeToLive,
+							template.data);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * template.hashCode + registrationId.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TemplateMessage))
+				return false;
+			TemplateMessage other = (TemplateMessage) obj;
+			return registrationId.equals(other.registrationId)
+					&& template.equals(other.template);
+		}
+
+	}
+
+}
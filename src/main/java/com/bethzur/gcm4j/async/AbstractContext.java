@@ -15,13 +15,20 @@
  */
 package com.bethzur.gcm4j.async;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import com.bethzur.gcm4j.async.handler.Context;
+import com.bethzur.gcm4j.async.handler.ContextKey;
 
 /**
  * Implementation of {@link Context} useful across all object types.
+ * <p>
+ * Values stored under a {@link ContextKey} are kept in an array indexed by
+ * the key's slot, which is allocated on the first store. The map for untyped
+ * keys is likewise only allocated when first used. Both are shared with the
+ * contexts derived from this one.
  * 
  * @see
  * @see ResponseContext
@@ -38,21 +45,24 @@ abstract class AbstractContext<T, E extends Enum<E>> implements Context<T, E> {
 
 	private final FutureResponse futureResponse;
 
-	private final T wrapped;
+	private T wrapped;
+
+	private final Lane lane;
 
 	private long delay;
 
 	private E decision;
 
-	private Map<Object, Object> map;
+	private final Attributes attributes;
 
 	private AbstractContext(FutureResponse futureResponse, T wrapped,
-			E defaultDecision, long delay, Map<Object, Object> map) {
+			Lane lane, E defaultDecision, long delay, Attributes attributes) {
 		this.wrapped = wrapped;
 		this.futureResponse = futureResponse;
+		this.lane = lane;
 		this.decision = defaultDecision;
 		this.delay = delay;
-		this.map = map;
+		this.attributes = attributes;
 	}
 
 	/**
@@ -63,34 +73,37 @@ abstract class AbstractContext<T, E extends Enum<E>> implements Context<T, E> {
 	 *            the {@code FutureResponse} for the object
 	 * @param wrapped
 	 *            the object
+	 * @param lane
+	 *            the lane in which the object is queued
 	 * @param defaultDecision
 	 *            the initial decision for the object
 	 */
 	public AbstractContext(FutureResponse futureResponse, T wrapped,
-			E defaultDecision) {
-		this(futureResponse, wrapped, defaultDecision, 0,
-				new HashMap<Object, Object>());
+			Lane lane, E defaultDecision) {
+		this(futureResponse, wrapped, lane, defaultDecision, 0,
+				new Attributes());
 	}
 
 	/**
 	 * Constructs a new {@code AbstractContext} from an existing context,
-	 * object, and initial decision. The future, delay, and internal context map
-	 * are copied. This constructor is useful for transforming, for example, a
-	 * {@link MessageContext} into a {@link ResponseContext} when a response is
-	 * received.
+	 * object, lane, and initial decision. The future and delay are copied and
+	 * the attributes are shared. This constructor is useful for transforming,
+	 * for example, a {@link MessageContext} into a {@link ResponseContext}
+	 * when a response is received.
 	 * 
 	 * @param context
-	 *            the context whose future, delay, and internal context map to
-	 *            copy.
+	 *            the context whose future, delay, and attributes to use.
 	 * @param wrapped
 	 *            the object
+	 * @param lane
+	 *            the lane in which the object is queued
 	 * @param defaultDecision
 	 *            the initial decision for the object
 	 */
 	public AbstractContext(AbstractContext<?, ?> context, T wrapped,
-			E defaultDecision) {
-		this(context.futureResponse, wrapped, defaultDecision, context.delay,
-				context.map);
+			Lane lane, E defaultDecision) {
+		this(context.futureResponse, wrapped, lane, defaultDecision,
+				context.delay, context.attributes);
 	}
 
 	@Override
@@ -98,6 +111,11 @@ abstract class AbstractContext<T, E extends Enum<E>> implements Context<T, E> {
 		return wrapped;
 	}
 
+	@Override
+	public void wrap(T wrapped) {
+		this.wrapped = wrapped;
+	}
+
 	@Override
 	public E getDecision() {
 		return decision;
@@ -118,24 +136,108 @@ abstract class AbstractContext<T, E extends Enum<E>> implements Context<T, E> {
 		this.delay = delay;
 	}
 
+	@Override
+	public void addCompletionListener(Runnable listener) {
+		futureResponse.addCompletionListener(listener);
+	}
+
+	@Override
+	public Runnable hold() {
+		throw new UnsupportedOperationException(
+				"Only messages being dequeued can be held.");
+	}
+
+	@Override
+	public Runnable superseder() {
+		return new SupersedeRunnable(futureResponse);
+	}
+
+	@Override
+	public <V> void put(ContextKey<V> key, V value) {
+		attributes.put(key.getIndex(), value);
+	}
+
+	// Values are only stored by the typed put.
+	@SuppressWarnings("unchecked")
+	@Override
+	public <V> V get(ContextKey<V> key) {
+		return (V) attributes.get(key.getIndex());
+	}
+
 	@Override
 	public void put(Object key, Object value) {
-		map.put(key, value);
+		attributes.map().put(key, value);
 	}
 
 	@Override
 	public Object get(Object key) {
-		return map.get(key);
+		return attributes.map == null ? null : attributes.map.get(key);
 	}
 
 	// It's up to callers to provide the correct returnType.
 	@SuppressWarnings("unchecked")
 	@Override
 	public <C> C get(Object key, Class<? extends C> returnType) {
-		return (C) map.get(key);
+		return (C) get(key);
 	}
 
 	public FutureResponse getFutureResponse() {
 		return futureResponse;
 	}
+
+	public Lane getLane() {
+		return lane;
+	}
+
+	/**
+	 * Cancels a future as superseded. Only the future is referenced, so that
+	 * a handler keeping the callback does not retain the message.
+	 */
+	private static final class SupersedeRunnable implements Runnable {
+		private final FutureResponse futureResponse;
+
+		public SupersedeRunnable(FutureResponse futureResponse) {
+			this.futureResponse = futureResponse;
+		}
+
+		@Override
+		public void run() {
+			futureResponse.setSuperseded();
+		}
+	}
+
+	/**
+	 * The attributes shared by the contexts of a message.
+	 */
+	private static final class Attributes {
+		private Object[] slots;
+
+		private Map<Object, Object> map;
+
+		public Object get(int index) {
+			Object[] slots = this.slots;
+			return slots == null || index >= slots.length ? null
+					: slots[index];
+		}
+
+		public void put(int index, Object value) {
+			if (slots == null) {
+				if (value == null)
+					return;
+				slots = new Object[Math.max(ContextKey.count(), index + 1)];
+			} else if (index >= slots.length) {
+				if (value == null)
+					return;
+				slots = Arrays.copyOf(slots,
+						Math.max(ContextKey.count(), index + 1));
+			}
+			slots[index] = value;
+		}
+
+		public Map<Object, Object> map() {
+			if (map == null)
+				map = new HashMap<Object, Object>();
+			return map;
+		}
+	}
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for an {@link AsyncGcmManager}, enforcing a
+ * {@link QueueBound}. Each admitted message is represented by its
+ * {@link FutureResponse}, which releases its slot when completed.
+ * <p>
+ * When the bound is reached, the oldest held message in the lowest
+ * {@link Lane} below the lane of the new message is cancelled to make room.
+ * Only if there is none is the {@link QueueBound.OverflowPolicy} applied.
+ * Cancelling the future also cancels the task waiting to process the message
+ * (see {@link FutureResponse#setTask(java.util.concurrent.Future)}), so a shed
+ * message does not stay on the heap until its delay elapses or it reaches the
+ * head of its lane.
+ *
+ * @author David R. Bild
+ *
+ */
+class Admission {
+
+	private static final Lane[] LANES = Lane.values();
+
+	private final QueueBound bound;
+
+	private final AtomicInteger depth;
+
+	private final Semaphore permits;
+
+	/**
+	 * Futures of held messages per current lane, in the order they entered
+	 * the lane. Guarded by {@code this}.
+	 */
+	private final List<LinkedHashSet<FutureResponse>> held;
+
+	public Admission(QueueBound bound) {
+		this.bound = bound;
+		this.depth = new AtomicInteger();
+		if (bound.isUnbounded()) {
+			this.permits = null;
+			this.held = null;
+		} else {
+			this.permits = new Semaphore(bound.getCapacity());
+			this.held = new ArrayList<LinkedHashSet<FutureResponse>>(
+					LANES.length);
+			for (int i = 0; i < LANES.length; i++) {
+				held.add(new LinkedHashSet<FutureResponse>());
+			}
+		}
+	}
+
+	/**
+	 * Admits a new message in the given lane, shedding lower lanes, blocking,
+	 * or dropping older messages as required.
+	 *
+	 * @param lane
+	 *            the lane of the new message
+	 * @return the future for the admitted message, or {@code null} if the
+	 *         message was rejected
+	 */
+	public FutureResponse admit(Lane lane) {
+		return admit(lane, null);
+	}
+
+	/**
+	 * Admits a new message in the given lane, shedding lower lanes, blocking,
+	 * or dropping older messages as required. The given callback is run once
+	 * the future of the admitted message completes.
+	 *
+	 * @param lane
+	 *            the lane of the new message
+	 * @param onCompletion
+	 *            the callback to run on completion, may be {@code null}
+	 * @return the future for the admitted message, or {@code null} if the
+	 *         message was rejected
+	 */
+	public FutureResponse admit(Lane lane, Runnable onCompletion) {
+		if (permits != null && !acquire(lane))
+			return null;
+
+		ReleaseRunnable release = new ReleaseRunnable(onCompletion);
+		FutureResponse future = new FutureResponse(release);
+		release.future = future;
+		depth.incrementAndGet();
+		if (held != null) {
+			synchronized (this) {
+				held.get(lane.ordinal()).add(future);
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Moves a held message to another lane, e.g., when it is retried, so that
+	 * it is shed as a message of its new lane.
+	 *
+	 * @param future
+	 *            the future of the message
+	 * @param from
+	 *            the current lane of the message
+	 * @param to
+	 *            the new lane of the message
+	 */
+	public void move(FutureResponse future, Lane from, Lane to) {
+		if (held == null || from == to)
+			return;
+		synchronized (this) {
+			// Not held if completed (and released) meanwhile
+			if (held.get(from.ordinal()).remove(future))
+				held.get(to.ordinal()).add(future);
+		}
+	}
+
+	/**
+	 * Gets the number of admitted messages whose future has not completed.
+	 *
+	 * @return the number of held messages
+	 */
+	public int depth() {
+		return depth.get();
+	}
+
+	private boolean acquire(Lane lane) {
+		// Shed lower lanes first
+		while (!permits.tryAcquire()) {
+			if (!dropOldest(lane.ordinal() + 1))
+				return overflow(lane);
+		}
+		return true;
+	}
+
+	private boolean overflow(Lane lane) {
+		if (permits.tryAcquire())
+			return true;
+
+		switch (bound.getPolicy()) {
+		case BLOCK:
+			try {
+				return permits.tryAcquire(bound.getTimeoutMillis(),
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		case DROP_OLDEST:
+			while (!permits.tryAcquire()) {
+				if (!dropOldest(lane.ordinal()))
+					// Only higher lanes are held; fall back to rejection
+					return permits.tryAcquire();
+			}
+			return true;
+		case REJECT:
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Cancels the oldest held message in the lowest lane not higher than the
+	 * given lane.
+	 *
+	 * @param highest
+	 *            the ordinal of the highest lane from which to drop
+	 * @return {@code true} if a message was dropped
+	 */
+	private boolean dropOldest(int highest) {
+		FutureResponse oldest = null;
+		synchronized (this) {
+			for (int i = held.size() - 1; i >= highest && oldest == null; i--) {
+				Iterator<FutureResponse> it = held.get(i).iterator();
+				if (it.hasNext()) {
+					oldest = it.next();
+					it.remove();
+				}
+			}
+		}
+		if (oldest == null)
+			return false;
+		oldest.setRejected();
+		return true;
+	}
+
+	private void release(FutureResponse future) {
+		if (held != null) {
+			synchronized (this) {
+				for (LinkedHashSet<FutureResponse> lane : held) {
+					if (lane.remove(future))
+						break;
+				}
+			}
+		}
+		depth.decrementAndGet();
+		if (permits != null)
+			permits.release();
+	}
+
+	/**
+	 * Releases the slot of a future when it completes and runs the optional
+	 * completion callback.
+	 */
+	private class ReleaseRunnable implements Runnable {
+		private final Runnable next;
+
+		private FutureResponse future;
+
+		public ReleaseRunnable(Runnable next) {
+			this.next = next;
+		}
+
+		@Override
+		public void run() {
+			release(future);
+			if (next != null)
+				next.run();
+		}
+	}
+
+}
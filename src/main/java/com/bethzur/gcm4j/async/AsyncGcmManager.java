@@ -30,9 +30,10 @@ import com.bethzur.gcm4j.async.handler.AsyncHandlersFactory;
  * service unavailable errors) via {@link AsyncHandlers}.
  * <p>
  * A default implementation can be instantiated via
- * {@link AsyncGcmManagerFactory}.
+ * {@link AsyncGcmManagerFactory} or {@link AsyncGcmManagerBuilder}.
  *
  * @see AsyncGcmManagerFactory
+ * @see AsyncGcmManagerBuilder
  * @see AsyncHandlers
  * @see AsyncHandlersFactory
  *
@@ -42,9 +43,10 @@ import com.bethzur.gcm4j.async.handler.AsyncHandlersFactory;
 public interface AsyncGcmManager {
 
 	/**
-	 * Queues a message to be sent to the GCM service for delivery to the
-	 * client specified in the message header. The response or error is
-	 * accessible via the returned {@link Future} when available.
+	 * Queues a message in the {@link Lane#NORMAL} lane to be sent to the GCM
+	 * service for delivery to the client specified in the message header. The
+	 * response or error is accessible via the returned {@link Future} when
+	 * available.
 	 *
 	 * @param msg
 	 *            the message to deliver
@@ -53,4 +55,28 @@ public interface AsyncGcmManager {
 	 */
 	public Future<Response> pushMessage(Message msg);
 
+	/**
+	 * Queues a message in the given {@link Lane} to be sent to the GCM service
+	 * for delivery to the client specified in the message header. Messages in
+	 * higher lanes are not held up by messages in lower lanes. The response or
+	 * error is accessible via the returned {@link Future} when available.
+	 *
+	 * @param msg
+	 *            the message to deliver
+	 * @param lane
+	 *            the lane in which to queue the message
+	 * @return a future for accessing the response from the GCM service or an
+	 *         exception
+	 */
+	public Future<Response> pushMessage(Message msg, Lane lane);
+
+	/**
+	 * Gets the number of messages accepted by {@link #pushMessage(Message)}
+	 * whose future has not yet completed, i.e., that are waiting to be sent,
+	 * delayed for a retry, or in flight.
+	 *
+	 * @return the number of held messages
+	 */
+	public int getQueueDepth();
+
 }
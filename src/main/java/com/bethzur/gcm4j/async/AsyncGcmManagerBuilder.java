@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.bethzur.gcm4j.GcmManager;
+import com.bethzur.gcm4j.MulticastGcmManager;
+import com.bethzur.gcm4j.NonBlockingGcmManager;
+import com.bethzur.gcm4j.async.handler.AsyncHandlers;
+import com.bethzur.gcm4j.async.handler.AsyncHandlersFactory;
+
+/**
+ * Builder for {@link AsyncGcmManager} instances that need more than the
+ * defaults of the {@link AsyncGcmManagerFactory} methods. One settings object
+ * serves every transport: {@link #build(GcmManager)},
+ * {@link #buildNonBlocking(NonBlockingGcmManager)}, and
+ * {@link #buildBatching(MulticastGcmManager, long, int)}.
+ * <p>
+ * Unless set, the built manager uses the default {@link AsyncHandlers} (see
+ * {@link AsyncHandlersFactory#create()}), schedules delayed messages on the
+ * executor, holds any number of messages, does not limit the lanes, and keeps
+ * no journal.
+ * <p>
+ * Example for a bounded manager with a timing wheel and a slow bulk lane:<br/>
+ * <code>
+ * &nbsp;&nbsp;&nbsp;&nbsp; AsyncGcmManager manager = new AsyncGcmManagerBuilder(executor) <br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp; .scheduler(new HashedWheelDelayScheduler(executor)) <br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp; .bound(QueueBound.block(100000, 1, TimeUnit.SECONDS)) <br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp; .limits(LaneLimits.unlimited().with(Lane.BULK, 2)) <br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp; .build(gcmManager); <br/>
+ * </code>
+ *
+ * @author David R. Bild
+ *
+ */
+public class AsyncGcmManagerBuilder {
+
+	private final ScheduledExecutorService executor;
+
+	private AsyncHandlers handlers;
+
+	private DelayScheduler scheduler;
+
+	private QueueBound bound;
+
+	private LaneLimits limits;
+
+	private MessageJournal journal;
+
+	/**
+	 * Constructs a new builder for managers running on the given executor.
+	 *
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 */
+	public AsyncGcmManagerBuilder(ScheduledExecutorService executor) {
+		if (executor == null)
+			throw new IllegalArgumentException(
+					"Argument 'executor' may not be null.");
+		this.executor = executor;
+		this.bound = QueueBound.unbounded();
+		this.limits = LaneLimits.unlimited();
+	}
+
+	/**
+	 * Sets the handlers for filtering messages and automatically handling
+	 * responses and exceptions.
+	 *
+	 * @param handlers
+	 *            the handlers
+	 * @return this builder
+	 */
+	public AsyncGcmManagerBuilder handlers(AsyncHandlers handlers) {
+		this.handlers = handlers;
+		return this;
+	}
+
+	/**
+	 * Sets the scheduler for messages delayed by the handlers (e.g., for
+	 * backoff). A {@link HashedWheelDelayScheduler} dispatching to the
+	 * executor avoids contention on the executor's queue when very many
+	 * messages are delayed at once.
+	 *
+	 * @param scheduler
+	 *            the scheduler for delayed messages
+	 * @return this builder
+	 */
+	public AsyncGcmManagerBuilder scheduler(DelayScheduler scheduler) {
+		this.scheduler = scheduler;
+		return this;
+	}
+
+	/**
+	 * Sets the bound on held messages. When the bound is reached,
+	 * {@link AsyncGcmManager#pushMessage(com.bethzur.gcm4j.Message)} blocks,
+	 * rejects the new message, or drops the oldest message, as selected by the
+	 * {@link QueueBound.OverflowPolicy}, so that producers slow down instead
+	 * of buffering messages without limit when the GCM service slows down.
+	 * Messages in lower lanes are cancelled first to admit messages in higher
+	 * lanes.
+	 *
+	 * @param bound
+	 *            the bound on held messages
+	 * @return this builder
+	 */
+	public AsyncGcmManagerBuilder bound(QueueBound bound) {
+		if (bound == null)
+			throw new IllegalArgumentException(
+					"Argument 'bound' may not be null.");
+		this.bound = bound;
+		return this;
+	}
+
+	/**
+	 * Sets the concurrency limits of the lanes. Messages pushed with
+	 * {@link AsyncGcmManager#pushMessage(com.bethzur.gcm4j.Message, Lane)} wait
+	 * only behind messages of their own lane. For example, limiting the
+	 * {@link Lane#BULK} and {@link Lane#RETRY} lanes to a few threads each
+	 * keeps threads free for {@link Lane#HIGH} messages during a bulk
+	 * campaign. With a non-blocking or batching transport, the limits apply to
+	 * filtering and issuing messages, not to requests in flight.
+	 *
+	 * @param limits
+	 *            the concurrency limits of the lanes
+	 * @return this builder
+	 */
+	public AsyncGcmManagerBuilder limits(LaneLimits limits) {
+		if (limits == null)
+			throw new IllegalArgumentException(
+					"Argument 'limits' may not be null.");
+		this.limits = limits;
+		return this;
+	}
+
+	/**
+	 * Sets the journal in which held messages are recorded, e.g., a
+	 * {@link MappedMessageJournal}. Messages recovered by a
+	 * {@code MappedMessageJournal} are not replayed automatically; call
+	 * {@link MappedMessageJournal#replay(AsyncGcmManager)} with the built
+	 * manager.
+	 *
+	 * @param journal
+	 *            the journal of held messages, or {@code null} for none
+	 * @return this builder
+	 */
+	public AsyncGcmManagerBuilder journal(MessageJournal journal) {
+		this.journal = journal;
+		return this;
+	}
+
+	/**
+	 * Builds a manager that delivers messages via a {@link GcmManager}, which
+	 * must be thread-safe for as many threads as the executor and scheduler
+	 * will run concurrently.
+	 *
+	 * @param manager
+	 *            the synchronous manager for communicating with the GCM
+	 *            service
+	 * @return the constructed async manager
+	 */
+	public AsyncGcmManager build(GcmManager manager) {
+		return new AsyncGcmManagerImpl(manager, handlers(), executor,
+				scheduler(), bound, limits, journal);
+	}
+
+	/**
+	 * Builds a manager that delivers messages via a
+	 * {@link NonBlockingGcmManager}. No executor thread is held while a
+	 * request is in flight, so the number of concurrent requests is limited by
+	 * the {@code NonBlockingGcmManager} and the bound, not by the number of
+	 * threads.
+	 *
+	 * @param manager
+	 *            the non-blocking manager for communicating with the GCM
+	 *            service
+	 * @return the constructed async manager
+	 */
+	public AsyncGcmManager buildNonBlocking(NonBlockingGcmManager manager) {
+		return new AsyncGcmManagerImpl(manager, handlers(), executor,
+				scheduler(), bound, limits, journal);
+	}
+
+	/**
+	 * Builds a manager that delivers messages via a
+	 * {@link MulticastGcmManager}, coalescing messages that share a payload
+	 * (collapse key, time to live, delay while idle flag, and data) into
+	 * multicast requests. A message ready to be sent waits up to
+	 * {@code lingerMillis} milliseconds for other messages with the same
+	 * payload. The batch is sent as soon as it holds {@code maxBatchSize}
+	 * messages or the linger time expires.
+	 *
+	 * @param manager
+	 *            the multicast manager for communicating with the GCM service
+	 * @param lingerMillis
+	 *            the maximum time (in milliseconds) to wait for a batch to fill
+	 * @param maxBatchSize
+	 *            the maximum number of messages per request, at most
+	 *            {@link MulticastGcmManager#MAX_RECIPIENTS}
+	 * @return the constructed async manager
+	 */
+	public AsyncGcmManager buildBatching(MulticastGcmManager manager,
+			long lingerMillis, int maxBatchSize) {
+		return new BatchingAsyncGcmManager(manager, handlers(), executor,
+				scheduler(), bound, limits, journal, lingerMillis,
+				maxBatchSize);
+	}
+
+	private AsyncHandlers handlers() {
+		return (handlers != null) ? handlers : AsyncHandlersFactory.create();
+	}
+
+	private DelayScheduler scheduler() {
+		return (scheduler != null) ? scheduler : new ExecutorDelayScheduler(
+				executor);
+	}
+
+}
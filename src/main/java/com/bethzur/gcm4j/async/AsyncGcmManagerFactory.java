@@ -16,16 +16,26 @@
 package com.bethzur.gcm4j.async;
 
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import org.apache.http.client.HttpClient;
+import org.apache.http.nio.client.HttpAsyncClient;
 import com.bethzur.gcm4j.GcmManager;
+import com.bethzur.gcm4j.MulticastGcmManager;
+import com.bethzur.gcm4j.NonBlockingGcmManager;
 import com.bethzur.gcm4j.async.handler.AsyncHandlers;
 import com.bethzur.gcm4j.async.handler.AsyncHandlersFactory;
 import com.bethzur.gcm4j.auth.ApiKeyAuthProvider;
 import com.bethzur.gcm4j.impl.DefaultGcmManager;
+import com.bethzur.gcm4j.impl.GcmHttpClientBuilder;
+import com.bethzur.gcm4j.impl.Http2GcmManager;
+import com.bethzur.gcm4j.impl.NioGcmManager;
 
 /**
- * Provides static methods for creating {@link AsyncGcmManager} instances.
+ * Provides static methods for creating {@link AsyncGcmManager} instances with
+ * default settings. A manager with a {@link DelayScheduler},
+ * {@link QueueBound}, {@link LaneLimits}, or {@link MessageJournal} is built
+ * with an {@link AsyncGcmManagerBuilder}.
  *
  * @author David R. Bild
  *
@@ -188,4 +198,292 @@ public class AsyncGcmManagerFactory {
 		return create(client, provider, AsyncHandlersFactory.create(), executor);
 	}
 
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that uses a
+	 * {@link ScheduledThreadPoolExecutor} to deliver messages via a
+	 * {@link DefaultGcmManager} backed by a pooled {@link HttpClient} built by
+	 * {@link GcmHttpClientBuilder}. {@link AsyncHandlers} are used to filter
+	 * the messages and automatically handle to responses and exceptions.
+	 * <p>
+	 * The connection pool allows one connection to the GCM service per core
+	 * thread of the executor, and idle and expired connections are evicted by
+	 * a periodic task on the executor instead of checking each connection
+	 * before use.
+	 *
+	 * @param provider
+	 *            the provider of the API key
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager create(ApiKeyAuthProvider provider,
+			AsyncHandlers handlers, ScheduledThreadPoolExecutor executor) {
+		HttpClient client = new GcmHttpClientBuilder().maxConnections(
+				Math.max(1, executor.getCorePoolSize())).build(executor);
+		return create(client, provider, handlers, executor);
+	}
+
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that uses a
+	 * {@link ScheduledThreadPoolExecutor} to deliver messages via a
+	 * {@link DefaultGcmManager} backed by a pooled {@link HttpClient} sized
+	 * for the executor. See
+	 * {@link #create(ApiKeyAuthProvider, AsyncHandlers, ScheduledThreadPoolExecutor)}
+	 * for details.
+	 * <p>
+	 * A default {@link AsyncHandlers} instance that implements automatic retry
+	 * with exponential back-off (globally for <code>Service Unavailable</code>
+	 * and <code>Quota
+	 * Exceeded</code> errors and per-device for
+	 * <code>Device Quota Exceeded</code> errors) and honors
+	 * <code>Retry-After</code> headers is registered.
+	 *
+	 * @param provider
+	 *            the provider of the API key
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager create(ApiKeyAuthProvider provider,
+			ScheduledThreadPoolExecutor executor) {
+		return create(provider, AsyncHandlersFactory.create(), executor);
+	}
+
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that uses a
+	 * {@link ScheduledExecutorService} to deliver messages via a
+	 * {@link MulticastGcmManager}, coalescing messages that share a payload
+	 * (collapse key, time to live, delay while idle flag, and data) into
+	 * multicast requests. {@link AsyncHandlers} are used to filter the
+	 * messages and automatically handle to responses and exceptions, per
+	 * message.
+	 * <p>
+	 * A message ready to be sent waits up to {@code lingerMillis} milliseconds
+	 * for other messages with the same payload. The batch is sent as soon as it
+	 * holds {@code maxBatchSize} messages or the linger time expires.
+	 * <p>
+	 * The given {@code MulticastGcmManager} must be thread-safe for as many
+	 * threads as the {@code ScheduleExecutorService} will run concurrently.
+	 *
+	 * @param manager
+	 *            the synchronous manager for communicating with the GCM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param lingerMillis
+	 *            the maximum time (in milliseconds) to wait for a batch to fill
+	 * @param maxBatchSize
+	 *            the maximum number of messages per request, at most
+	 *            {@link MulticastGcmManager#MAX_RECIPIENTS}
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager createBatching(MulticastGcmManager manager,
+			AsyncHandlers handlers, ScheduledExecutorService executor,
+			long lingerMillis, int maxBatchSize) {
+		return new BatchingAsyncGcmManager(manager, handlers, executor,
+				lingerMillis, maxBatchSize);
+	}
+
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that uses a
+	 * {@link ScheduledExecutorService} to deliver messages via a
+	 * {@link MulticastGcmManager}, coalescing messages that share a payload
+	 * into multicast requests. See
+	 * {@link #createBatching(MulticastGcmManager, AsyncHandlers, ScheduledExecutorService, long, int)}
+	 * for details.
+	 * <p>
+	 * A default {@link AsyncHandlers} instance that implements automatic retry
+	 * with exponential back-off (globally for <code>Service Unavailable</code>
+	 * and <code>Quota
+	 * Exceeded</code> errors and per-device for
+	 * <code>Device Quota Exceeded</code> errors) and honors
+	 * <code>Retry-After</code> headers is registered.
+	 *
+	 * @param manager
+	 *            the synchronous manager for communicating with the GCM
+	 *            service
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param lingerMillis
+	 *            the maximum time (in milliseconds) to wait for a batch to fill
+	 * @param maxBatchSize
+	 *            the maximum number of messages per request, at most
+	 *            {@link MulticastGcmManager#MAX_RECIPIENTS}
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager createBatching(MulticastGcmManager manager,
+			ScheduledExecutorService executor, long lingerMillis,
+			int maxBatchSize) {
+		return createBatching(manager, AsyncHandlersFactory.create(),
+				executor, lingerMillis, maxBatchSize);
+	}
+
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that delivers messages via a
+	 * {@link NonBlockingGcmManager}. No executor thread is held while a
+	 * request is in flight; the {@link ScheduledExecutorService} is used only
+	 * to filter messages and to handle responses and exceptions with the
+	 * {@link AsyncHandlers}. The number of concurrent requests is thus limited
+	 * by the {@code NonBlockingGcmManager}, not by the number of threads.
+	 * <p>
+	 * The given {@code NonBlockingGcmManager} must be thread-safe for as many
+	 * threads as the {@code ScheduleExecutorService} will run concurrently.
+	 *
+	 * @param manager
+	 *            the non-blocking manager for communicating with the GCM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to filter
+	 *            queued messages and handle responses
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager createNonBlocking(
+			NonBlockingGcmManager manager, AsyncHandlers handlers,
+			ScheduledExecutorService executor) {
+		return new AsyncGcmManagerImpl(manager, handlers, executor);
+	}
+
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that delivers messages via a
+	 * {@link NonBlockingGcmManager}. See
+	 * {@link #createNonBlocking(NonBlockingGcmManager, AsyncHandlers, ScheduledExecutorService)}
+	 * for details.
+	 * <p>
+	 * A default {@link AsyncHandlers} instance that implements automatic retry
+	 * with exponential back-off (globally for <code>Service Unavailable</code>
+	 * and <code>Quota
+	 * Exceeded</code> errors and per-device for
+	 * <code>Device Quota Exceeded</code> errors) and honors
+	 * <code>Retry-After</code> headers is registered.
+	 *
+	 * @param manager
+	 *            the non-blocking manager for communicating with the GCM
+	 *            service
+	 * @param executor
+	 *            the executor providing the background threads to filter
+	 *            queued messages and handle responses
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager createNonBlocking(
+			NonBlockingGcmManager manager, ScheduledExecutorService executor) {
+		return createNonBlocking(manager, AsyncHandlersFactory.create(),
+				executor);
+	}
+
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that delivers messages via a
+	 * {@link NioGcmManager} constructed from the given {@link HttpAsyncClient}
+	 * and {@link ApiKeyAuthProvider}. See
+	 * {@link #createNonBlocking(NonBlockingGcmManager, AsyncHandlers, ScheduledExecutorService)}
+	 * for details.
+	 * <p>
+	 * The {@code HttpAsyncClient} must already be started. Its connection
+	 * manager limits the number of concurrent requests; see
+	 * {@link NioGcmManager} for an example configuration.
+	 *
+	 * @param client
+	 *            the started client used to send HTTP requests
+	 * @param provider
+	 *            the provider of the API key
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to filter
+	 *            queued messages and handle responses
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager createNonBlocking(HttpAsyncClient client,
+			ApiKeyAuthProvider provider, AsyncHandlers handlers,
+			ScheduledExecutorService executor) {
+		return createNonBlocking(new NioGcmManager(client, provider),
+				handlers, executor);
+	}
+
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that delivers messages via a
+	 * {@link NioGcmManager} constructed from the given {@link HttpAsyncClient}
+	 * and {@link ApiKeyAuthProvider}, with the default {@link AsyncHandlers}.
+	 * See
+	 * {@link #createNonBlocking(HttpAsyncClient, ApiKeyAuthProvider, AsyncHandlers, ScheduledExecutorService)}
+	 * for details.
+	 *
+	 * @param client
+	 *            the started client used to send HTTP requests
+	 * @param provider
+	 *            the provider of the API key
+	 * @param executor
+	 *            the executor providing the background threads to filter
+	 *            queued messages and handle responses
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager createNonBlocking(HttpAsyncClient client,
+			ApiKeyAuthProvider provider, ScheduledExecutorService executor) {
+		return createNonBlocking(client, provider,
+				AsyncHandlersFactory.create(), executor);
+	}
+
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that delivers messages via
+	 * an {@link Http2GcmManager} constructed from the given JDK
+	 * {@link java.net.http.HttpClient} and {@link ApiKeyAuthProvider}.
+	 * Concurrent requests are multiplexed over HTTP/2 connections and no
+	 * executor thread is held while a request is in flight; see
+	 * {@link #createNonBlocking(NonBlockingGcmManager, AsyncHandlers, ScheduledExecutorService)}.
+	 * <p>
+	 * A suitable client can be created with
+	 * {@link Http2GcmManager#createDefaultClient()}.
+	 *
+	 * @param client
+	 *            the client used to send HTTP requests
+	 * @param provider
+	 *            the provider of the API key
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to filter
+	 *            queued messages and handle responses
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager createHttp2(java.net.http.HttpClient client,
+			ApiKeyAuthProvider provider, AsyncHandlers handlers,
+			ScheduledExecutorService executor) {
+		return createNonBlocking(new Http2GcmManager(client, provider),
+				handlers, executor);
+	}
+
+	/**
+	 * Creates an {@code AsyncGcmManager} instance that delivers messages via
+	 * an {@link Http2GcmManager} using a default HTTP/2 client and the given
+	 * {@link ApiKeyAuthProvider}, with the default {@link AsyncHandlers}. See
+	 * {@link #createHttp2(java.net.http.HttpClient, ApiKeyAuthProvider, AsyncHandlers, ScheduledExecutorService)}
+	 * for details.
+	 *
+	 * @param provider
+	 *            the provider of the API key
+	 * @param executor
+	 *            the executor providing the background threads to filter
+	 *            queued messages and handle responses
+	 * @return the constructed async manager
+	 */
+	public static AsyncGcmManager createHttp2(ApiKeyAuthProvider provider,
+			ScheduledExecutorService executor) {
+		return createHttp2(Http2GcmManager.createDefaultClient(), provider,
+				AsyncHandlersFactory.create(), executor);
+	}
+
 }
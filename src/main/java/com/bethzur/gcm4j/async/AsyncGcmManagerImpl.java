@@ -15,6 +15,10 @@
  */
 package com.bethzur.gcm4j.async;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -22,11 +26,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.bethzur.gcm4j.GcmManager;
 import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.NonBlockingGcmManager;
 import com.bethzur.gcm4j.Response;
 import com.bethzur.gcm4j.async.handler.AsyncHandlers;
+import com.bethzur.gcm4j.async.handler.MessageDecision;
 import com.bethzur.gcm4j.async.handler.MessageFilter;
 import com.bethzur.gcm4j.async.handler.ResponseHandler;
 import com.bethzur.gcm4j.async.handler.ThrowableHandler;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * Default implementation of {@link AsyncGcmManager}. Instances can be created
@@ -40,12 +47,39 @@ import com.bethzur.gcm4j.async.handler.ThrowableHandler;
  * {@link MessageFilter#enqueueFilter(Context)} before being enqueued to await
  * sending and passed through all registered
  * {@link MessageFilter#dequeueFilter(Context)} when dequeued for sending. Any
- * filter may choose to cancel or delay the message. Responses are passed
+ * filter may choose to cancel or delay the message, and dequeue filters may
+ * hold it until they resume it (see {@link Context#hold()}). Responses are passed
  * through all registered {@link ResponseHandler#handleResponse(Context)} when
  * received. Similarly, exceptions are passed through all registered
  * {@link ThrowableHandler#handleThrowable(Context)} when thrown. Each handler
  * may choose to return the response/throwable via the {@link Future} or retry
  * the message (with delay).
+ * <p>
+ * Messages are sent either with a blocking {@link GcmManager}, which holds an
+ * executor thread for the duration of each request, or with a
+ * {@link NonBlockingGcmManager}, which releases the thread as soon as the
+ * request is started and handles the response on an executor thread when it
+ * arrives.
+ * <p>
+ * Messages delayed by a filter are handed to a {@link DelayScheduler}, which
+ * by default schedules them on the executor. Messages without a delay are
+ * submitted to the executor directly.
+ * <p>
+ * The number of held messages, from {@link #pushMessage(Message)} until the
+ * future completes, may be limited by a {@link QueueBound}.
+ * <p>
+ * Each message is queued in a {@link Lane}. Messages ready to be processed
+ * pass through a {@link LaneDispatcher}, which limits each lane to its share
+ * of the executor threads as configured by {@link LaneLimits}.
+ * <p>
+ * If a {@link MessageJournal} is given, each pushed message is appended to it
+ * and marked complete when its future completes.
+ * <p>
+ * A message whose future completes without success is passed to the
+ * dead-letter sink of the handlers: a non-success response other than
+ * {@code NotRegistered} or {@code InvalidRegistration}, a throwable, or a
+ * cancellation (as a {@link CancellationException}), whether by a filter or by
+ * the queue bound.
  *
  * @author David R. Bild
  *
@@ -56,10 +90,22 @@ class AsyncGcmManagerImpl implements AsyncGcmManager {
 
 	private ScheduledExecutorService executor;
 
+	private DelayScheduler scheduler;
+
+	private Admission admission;
+
+	private LaneDispatcher lanes;
+
 	private AsyncHandlers handlers;
 
 	private GcmManager gcm;
 
+	private NonBlockingGcmManager nonBlockingGcm;
+
+	private MessageJournal journal;
+
+	private final MessageContext.Resumer resumer = new ResumerImpl();
+
 	/**
 	 * Constructs a new asynchronous manager.
 	 * <p>
@@ -78,34 +124,278 @@ class AsyncGcmManagerImpl implements AsyncGcmManager {
 	 */
 	public AsyncGcmManagerImpl(GcmManager gcmManager,
 			AsyncHandlers handlers, ScheduledExecutorService executor) {
+		this(gcmManager, handlers, executor, new ExecutorDelayScheduler(
+				executor), QueueBound.unbounded(),
+				LaneLimits.unlimited());
+	}
+
+	/**
+	 * Constructs a new asynchronous manager that schedules delayed messages
+	 * with the given {@code DelayScheduler}, holds at most as many messages
+	 * as allowed by the given {@code QueueBound}, and limits the lanes to the
+	 * given {@code LaneLimits}.
+	 * <p>
+	 * The {@code Manager} must be thread-safe up to the number of
+	 * concurrent threads backing the executor and the scheduler.
+	 *
+	 * @param Manager
+	 *            the synchronous manager for communicating with the GCM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param scheduler
+	 *            the scheduler for delayed messages
+	 * @param bound
+	 *            the bound on held messages
+	 * @param limits
+	 *            the concurrency limits of the lanes
+	 */
+	public AsyncGcmManagerImpl(GcmManager gcmManager,
+			AsyncHandlers handlers, ScheduledExecutorService executor,
+			DelayScheduler scheduler, QueueBound bound, LaneLimits limits) {
+		this(gcmManager, handlers, executor, scheduler, bound, limits, null);
+	}
+
+	/**
+	 * Constructs a new asynchronous manager that schedules delayed messages
+	 * with the given {@code DelayScheduler}, holds at most as many messages
+	 * as allowed by the given {@code QueueBound}, limits the lanes to the
+	 * given {@code LaneLimits}, and records held messages in the given
+	 * {@code MessageJournal}.
+	 * <p>
+	 * The {@code Manager} must be thread-safe up to the number of
+	 * concurrent threads backing the executor and the scheduler.
+	 *
+	 * @param Manager
+	 *            the synchronous manager for communicating with the GCM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param scheduler
+	 *            the scheduler for delayed messages
+	 * @param bound
+	 *            the bound on held messages
+	 * @param limits
+	 *            the concurrency limits of the lanes
+	 * @param journal
+	 *            the journal of held messages, may be {@code null}
+	 */
+	public AsyncGcmManagerImpl(GcmManager gcmManager,
+			AsyncHandlers handlers, ScheduledExecutorService executor,
+			DelayScheduler scheduler, QueueBound bound, LaneLimits limits,
+			MessageJournal journal) {
 		this.gcm = gcmManager;
 		this.executor = executor;
+		this.scheduler = scheduler;
+		this.admission = new Admission(bound);
+		this.lanes = new LaneDispatcher(executor, limits);
+		this.handlers = handlers;
+		this.journal = journal;
+	}
+
+	/**
+	 * Constructs a new asynchronous manager that sends messages without
+	 * holding an executor thread while the request is in flight.
+	 * <p>
+	 * The {@code NonBlockingGcmManager} must be thread-safe up to the number
+	 * of concurrent threads backing the executor.
+	 *
+	 * @param nonBlockingGcmManager
+	 *            the non-blocking manager for communicating with the GCM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to filter
+	 *            queued messages and handle responses
+	 */
+	public AsyncGcmManagerImpl(NonBlockingGcmManager nonBlockingGcmManager,
+			AsyncHandlers handlers, ScheduledExecutorService executor) {
+		this(nonBlockingGcmManager, handlers, executor,
+				new ExecutorDelayScheduler(executor), QueueBound.unbounded(),
+				LaneLimits.unlimited());
+	}
+
+	/**
+	 * Constructs a new asynchronous manager that sends messages without
+	 * holding an executor thread while the request is in flight, schedules
+	 * delayed messages with the given {@code DelayScheduler}, holds at most as
+	 * many messages as allowed by the given {@code QueueBound}, and limits the
+	 * lanes to the given {@code LaneLimits}.
+	 *
+	 * @param nonBlockingGcmManager
+	 *            the non-blocking manager for communicating with the GCM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to filter
+	 *            queued messages and handle responses
+	 * @param scheduler
+	 *            the scheduler for delayed messages
+	 * @param bound
+	 *            the bound on held messages
+	 * @param limits
+	 *            the concurrency limits of the lanes
+	 */
+	public AsyncGcmManagerImpl(NonBlockingGcmManager nonBlockingGcmManager,
+			AsyncHandlers handlers, ScheduledExecutorService executor,
+			DelayScheduler scheduler, QueueBound bound, LaneLimits limits) {
+		this(nonBlockingGcmManager, handlers, executor, scheduler, bound,
+				limits, null);
+	}
+
+	/**
+	 * Constructs a new asynchronous manager that sends messages without
+	 * holding an executor thread while the request is in flight, schedules
+	 * delayed messages with the given {@code DelayScheduler}, holds at most as
+	 * many messages as allowed by the given {@code QueueBound}, limits the
+	 * lanes to the given {@code LaneLimits}, and records held messages in the
+	 * given {@code MessageJournal}.
+	 *
+	 * @param nonBlockingGcmManager
+	 *            the non-blocking manager for communicating with the GCM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to filter
+	 *            queued messages and handle responses
+	 * @param scheduler
+	 *            the scheduler for delayed messages
+	 * @param bound
+	 *            the bound on held messages
+	 * @param limits
+	 *            the concurrency limits of the lanes
+	 * @param journal
+	 *            the journal of held messages, may be {@code null}
+	 */
+	public AsyncGcmManagerImpl(NonBlockingGcmManager nonBlockingGcmManager,
+			AsyncHandlers handlers, ScheduledExecutorService executor,
+			DelayScheduler scheduler, QueueBound bound, LaneLimits limits,
+			MessageJournal journal) {
+		this.nonBlockingGcm = nonBlockingGcmManager;
+		this.executor = executor;
+		this.scheduler = scheduler;
+		this.admission = new Admission(bound);
+		this.lanes = new LaneDispatcher(executor, limits);
 		this.handlers = handlers;
+		this.journal = journal;
 	}
 
 	@Override
 	public FutureResponse pushMessage(Message msg) {
-		FutureResponse future = new FutureResponse();
-		submit(new MessageContext(future, msg));
+		return pushMessage(msg, Lane.NORMAL);
+	}
+
+	@Override
+	public FutureResponse pushMessage(Message msg, Lane lane) {
+		JournalRunnable journaled = journal(msg, lane);
+		FutureResponse future = admission.admit(lane, journaled);
+		if (future == null) {
+			if (journaled != null)
+				journaled.run();
+			FutureResponse rejected = new FutureResponse();
+			rejected.addCompletionListener(new DeadLetterRunnable(msg,
+					rejected));
+			rejected.setThrowable(new RejectedExecutionException(
+					"Message rejected by queue bound."));
+			return rejected;
+		}
+		future.addCompletionListener(new DeadLetterRunnable(msg, future));
+		submit(new MessageContext(future, msg, lane));
 		return future;
 	}
 
+	private JournalRunnable journal(Message msg, Lane lane) {
+		if (journal == null)
+			return null;
+		try {
+			return new JournalRunnable(journal.append(msg, lane));
+		} catch (RuntimeException e) {
+			LOGGER.warn("Failed to journal GCM message; sending unjournaled.",
+					e);
+			return null;
+		}
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return admission.depth();
+	}
+
 	private void submit(MessageContext context) {
 		handlers.filterMessageEnqueue(context);
 		switch (context.getDecision()) {
 		case SEND:
-			executor.schedule(new MessageRunnable(context), context.getDelay(),
-					TimeUnit.MILLISECONDS);
+			if (context.getDelay() > 0)
+				schedule(context);
+			else
+				dispatch(context);
 			return;
 		case CANCEL:
 			context.getFutureResponse().setCancelled();
 			return;
+		case REJECT:
+			context.getFutureResponse().setRejected();
+			return;
+		case RETURN:
+			returnResponse(context);
+			return;
+		case HOLD:
+			context.getFutureResponse().setThrowable(
+					new IllegalStateException(
+							"Enqueue filters cannot hold messages."));
+			return;
+		}
+	}
+
+	private void schedule(MessageContext context) {
+		DispatchRunnable task = new DispatchRunnable(context);
+		context.getFutureResponse().setTask(task);
+		try {
+			scheduler.schedule(task, context.getDelay(), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			context.getFutureResponse().setThrowable(e);
 		}
 	}
 
+	private void returnResponse(MessageContext context) {
+		Response response = context.get(MessageDecision.RESPONSE_KEY);
+		if (response != null)
+			context.getFutureResponse().setResponse(response);
+		else
+			context.getFutureResponse().setCancelled();
+	}
+
+	private void dispatch(MessageContext context) {
+		MessageRunnable task = new MessageRunnable(context);
+		context.getFutureResponse().setTask(task);
+		lanes.execute(context.getLane(), task);
+	}
+
 	private void process(MessageContext context) {
+		// Dropped while waiting (e.g., by the queue bound)
+		if (context.getFutureResponse().isCompleted())
+			return;
 		context.setDelay(0);
-		handlers.filterMessageDequeue(context);
+		context.setResumer(resumer);
+		try {
+			handlers.filterMessageDequeue(context);
+		} finally {
+			context.setResumer(null);
+		}
 		switch (context.getDecision()) {
 		case SEND:
 			if (context.getDelay() > 0) {
@@ -117,10 +407,32 @@ class AsyncGcmManagerImpl implements AsyncGcmManager {
 		case CANCEL:
 			context.getFutureResponse().setCancelled();
 			return;
+		case REJECT:
+			context.getFutureResponse().setRejected();
+			return;
+		case RETURN:
+			returnResponse(context);
+			return;
+		case HOLD:
+			// Dispatched again by the resumer
+			return;
 		}
 	}
 
-	private void issue(MessageContext context) {
+	/**
+	 * Sends the message, which has passed all filters, to the GCM service and
+	 * hands the result to {@link #handleResponse(MessageContext, Response)} or
+	 * {@link #handleThrowable(MessageContext, Throwable)}.
+	 *
+	 * @param context
+	 *            the context of the message to send
+	 */
+	void issue(MessageContext context) {
+		if (nonBlockingGcm != null) {
+			issueNonBlocking(context);
+			return;
+		}
+
 		try {
 			Response response = gcm.pushMessage(context.unwrap());
 			handleResponse(context, response);
@@ -131,7 +443,13 @@ class AsyncGcmManagerImpl implements AsyncGcmManager {
 		}
 	}
 
-	private void handleResponse(MessageContext messageContext, Response response) {
+	private void issueNonBlocking(final MessageContext context) {
+		final ListenableFuture<Response> future = nonBlockingGcm
+				.pushMessageAsync(context.unwrap());
+		future.addListener(new ResultRunnable(context, future), executor);
+	}
+
+	void handleResponse(MessageContext messageContext, Response response) {
 		ResponseContext context = new ResponseContext(messageContext, response);
 		handlers.handleResponse(context);
 		switch (context.getDecision()) {
@@ -139,12 +457,12 @@ class AsyncGcmManagerImpl implements AsyncGcmManager {
 			context.getFutureResponse().setResponse(response);
 			return;
 		case RETRY:
-			submit(new MessageContext(context, messageContext.unwrap()));
+			retry(context, messageContext.unwrap());
 			return;
 		}
 	}
 
-	private void handleThrowable(MessageContext messageContext,
+	void handleThrowable(MessageContext messageContext,
 			Throwable throwable) {
 		ThrowableContext context = new ThrowableContext(messageContext,
 				throwable);
@@ -154,26 +472,139 @@ class AsyncGcmManagerImpl implements AsyncGcmManager {
 			context.getFutureResponse().setThrowable(throwable);
 			return;
 		case RETRY:
-			submit(new MessageContext(context, messageContext.unwrap()));
+			retry(context, messageContext.unwrap());
 			return;
 		}
 	}
 
-	private class MessageRunnable implements Runnable {
+	private void retry(AbstractContext<?, ?> context, Message message) {
+		MessageContext retry = new MessageContext(context, message);
+		admission.move(context.getFutureResponse(), context.getLane(),
+				retry.getLane());
+		submit(retry);
+	}
+
+
+	/**
+	 * Processes a message dequeued from its lane. Cancelled, and thus
+	 * releasing the message, if the future completes while the task waits.
+	 */
+	private class MessageRunnable extends FutureTask<Void> {
+
+		public MessageRunnable(final MessageContext context) {
+			super(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						AsyncGcmManagerImpl.this.process(context);
+					} catch (RuntimeException e) {
+						LOGGER.warn(
+								"Unexpected RuntimeException while processing GCM message.",
+								e);
+						try {
+							context.getFutureResponse().setThrowable(e);
+						} catch (RuntimeException e2) {
+							LOGGER.warn(
+									"Unable to return RuntimeException via Future.  Dropping exception.",
+									e2);
+						}
+					}
+				}
+			}, null);
+		}
+
+	}
+
+	/**
+	 * Dispatches a delayed message to its lane once the delay has elapsed.
+	 * <p>
+	 * A {@link DelayScheduler} that drops the task (e.g., at shutdown) or
+	 * whose executor rejects it may cancel it, which fails the future of the
+	 * message so that its admission permit and journal entry are released.
+	 * Once cancelled, the task no longer references the message.
+	 */
+	private class DispatchRunnable extends FutureTask<Void> {
+
+		private final FutureResponse future;
+
+		public DispatchRunnable(final MessageContext context) {
+			super(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						AsyncGcmManagerImpl.this.dispatch(context);
+					} catch (RuntimeException e) {
+						LOGGER.warn(
+								"Unexpected RuntimeException while dispatching GCM message.",
+								e);
+						context.getFutureResponse().setThrowable(e);
+					}
+				}
+			}, null);
+			this.future = context.getFutureResponse();
+		}
+
+		@Override
+		protected void done() {
+			if (isCancelled())
+				future.setThrowable(
+						new RejectedExecutionException(
+								"Delayed message dropped by scheduler."));
+		}
+
+	}
+
+	/**
+	 * Dispatches messages held by a dequeue filter again once resumed.
+	 */
+	private class ResumerImpl implements MessageContext.Resumer {
+
+		@Override
+		public void resume(MessageContext context) {
+			try {
+				AsyncGcmManagerImpl.this.dispatch(context);
+			} catch (RuntimeException e) {
+				context.getFutureResponse().setThrowable(e);
+			}
+		}
+
+	}
+
+	/**
+	 * Handles the result of a non-blocking request once it completes.
+	 */
+	private class ResultRunnable implements Runnable {
 
 		private final MessageContext context;
 
-		public MessageRunnable(MessageContext context) {
+		private final ListenableFuture<Response> future;
+
+		public ResultRunnable(MessageContext context,
+				ListenableFuture<Response> future) {
 			this.context = context;
+			this.future = future;
 		}
 
 		@Override
 		public void run() {
 			try {
-				AsyncGcmManagerImpl.this.process(context);
+				Response response;
+				try {
+					response = future.get();
+				} catch (ExecutionException e) {
+					AsyncGcmManagerImpl.this.handleThrowable(context,
+							e.getCause());
+					return;
+				} catch (InterruptedException e) {
+					// Cannot happen; the future is already done.
+					Thread.currentThread().interrupt();
+					AsyncGcmManagerImpl.this.handleThrowable(context, e);
+					return;
+				}
+				AsyncGcmManagerImpl.this.handleResponse(context, response);
 			} catch (RuntimeException e) {
 				LOGGER.warn(
-						"Unexpected RuntimeException while processing GCM message.",
+						"Unexpected RuntimeException while handling GCM response.",
 						e);
 				try {
 					context.getFutureResponse().setThrowable(e);
@@ -187,4 +618,79 @@ class AsyncGcmManagerImpl implements AsyncGcmManager {
 
 	}
 
+	/**
+	 * Passes a message to the dead-letter sink once its future completes, if
+	 * it finally failed. Dead registration ids are not recorded, since sending
+	 * to them again cannot succeed, nor are deliberately cancelled messages.
+	 */
+	private class DeadLetterRunnable implements Runnable {
+
+		private final Message message;
+
+		private final FutureResponse future;
+
+		public DeadLetterRunnable(Message message, FutureResponse future) {
+			this.message = message;
+			this.future = future;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Response response;
+				try {
+					response = future.get();
+				} catch (CancellationException e) {
+					// Deliberate cancellations are not failures
+					if (future.isRejected())
+						handlers.deadLetter(message, e);
+					return;
+				} catch (ExecutionException e) {
+					handlers.deadLetter(message, e.getCause());
+					return;
+				} catch (InterruptedException e) {
+					// Cannot happen; the future is already done.
+					Thread.currentThread().interrupt();
+					return;
+				}
+				switch (response.getResponseType()) {
+				case Success:
+				case NotRegistered:
+				case InvalidRegistration:
+					return;
+				default:
+					handlers.deadLetter(message, response);
+					return;
+				}
+			} catch (RuntimeException e) {
+				LOGGER.warn("Dead-letter sink failed for GCM message.", e);
+			}
+		}
+
+	}
+
+	/**
+	 * Marks the journal entry of a message complete once its future
+	 * completes.
+	 */
+	private class JournalRunnable implements Runnable {
+
+		private final long id;
+
+		public JournalRunnable(long id) {
+			this.id = id;
+		}
+
+		@Override
+		public void run() {
+			try {
+				journal.complete(id);
+			} catch (RuntimeException e) {
+				LOGGER.warn("Failed to mark journaled GCM message complete.",
+						e);
+			}
+		}
+
+	}
+
 }
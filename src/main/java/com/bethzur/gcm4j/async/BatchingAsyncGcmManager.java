@@ -0,0 +1,335 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MulticastGcmManager;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.async.handler.AsyncHandlers;
+
+/**
+ * An {@link AsyncGcmManager} that coalesces messages with identical payloads
+ * into multicast requests. Instances can be created using the factory methods
+ * in {@link AsyncGcmManagerFactory}.
+ * <p>
+ * Messages are filtered exactly as by {@link AsyncGcmManagerImpl}. When a
+ * message is ready to be sent, it is added to the open batch for its payload
+ * (collapse key, time to live, delay while idle flag, and data). A batch is
+ * sent when it reaches the maximum batch size or when the linger time has
+ * elapsed since its first message was added, whichever comes first. Each
+ * response in the multicast reply is handled individually, so retries and
+ * returned results are per message.
+ * <p>
+ * {@link LaneLimits} bound the threads filtering and batching the messages of
+ * each lane, not the requests in flight: a message gives up its lane slot once
+ * it is added to a batch, before the batch is sent, just as a message sent by
+ * a {@link com.bethzur.gcm4j.NonBlockingGcmManager} does once its request is
+ * started. The number of concurrent multicast requests is bounded by the
+ * executor threads instead.
+ *
+ * @author David R. Bild
+ *
+ */
+class BatchingAsyncGcmManager extends AsyncGcmManagerImpl {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(BatchingAsyncGcmManager.class);
+
+	private final MulticastGcmManager gcm;
+
+	private final ScheduledExecutorService executor;
+
+	private final long lingerMillis;
+
+	private final int maxBatchSize;
+
+	private final ConcurrentMap<PayloadKey, Batch> batches;
+
+	/**
+	 * Constructs a new batching asynchronous manager.
+	 *
+	 * @param gcmManager
+	 *            the multicast manager for communicating with the GCM service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param lingerMillis
+	 *            the maximum time (in milliseconds) a message waits for other
+	 *            messages with the same payload before its batch is sent
+	 * @param maxBatchSize
+	 *            the maximum number of messages in a batch, at most
+	 *            {@link MulticastGcmManager#MAX_RECIPIENTS}
+	 */
+	public BatchingAsyncGcmManager(MulticastGcmManager gcmManager,
+			AsyncHandlers handlers, ScheduledExecutorService executor,
+			long lingerMillis, int maxBatchSize) {
+		this(gcmManager, handlers, executor, new ExecutorDelayScheduler(
+				executor), QueueBound.unbounded(), LaneLimits.unlimited(),
+				null, lingerMillis, maxBatchSize);
+	}
+
+	/**
+	 * Constructs a new batching asynchronous manager that schedules delayed
+	 * messages with the given {@code DelayScheduler}, holds at most as many
+	 * messages as allowed by the given {@code QueueBound}, limits the lanes to
+	 * the given {@code LaneLimits}, and records held messages in the given
+	 * {@code MessageJournal}.
+	 *
+	 * @param gcmManager
+	 *            the multicast manager for communicating with the GCM service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param scheduler
+	 *            the scheduler for delayed messages
+	 * @param bound
+	 *            the bound on held messages
+	 * @param limits
+	 *            the concurrency limits of the lanes
+	 * @param journal
+	 *            the journal of held messages, may be {@code null}
+	 * @param lingerMillis
+	 *            the maximum time (in milliseconds) a message waits for other
+	 *            messages with the same payload before its batch is sent
+	 * @param maxBatchSize
+	 *            the maximum number of messages in a batch, at most
+	 *            {@link MulticastGcmManager#MAX_RECIPIENTS}
+	 */
+	public BatchingAsyncGcmManager(MulticastGcmManager gcmManager,
+			AsyncHandlers handlers, ScheduledExecutorService executor,
+			DelayScheduler scheduler, QueueBound bound, LaneLimits limits,
+			MessageJournal journal, long lingerMillis, int maxBatchSize) {
+		super(gcmManager, handlers, executor, scheduler, bound, limits,
+				journal);
+		if (lingerMillis < 0)
+			throw new IllegalArgumentException(
+					"Argument 'lingerMillis' may not be negative.");
+		if (maxBatchSize < 1 || maxBatchSize > MulticastGcmManager.MAX_RECIPIENTS)
+			throw new IllegalArgumentException(String.format(
+					"Argument 'maxBatchSize' must be between 1 and %d.",
+					MulticastGcmManager.MAX_RECIPIENTS));
+		this.gcm = gcmManager;
+		this.executor = executor;
+		this.lingerMillis = lingerMillis;
+		this.maxBatchSize = maxBatchSize;
+		this.batches = new ConcurrentHashMap<PayloadKey, Batch>();
+	}
+
+	@Override
+	void issue(MessageContext context) {
+		PayloadKey key = new PayloadKey(context.unwrap());
+		while (true) {
+			Batch batch = batches.get(key);
+			if (batch == null) {
+				Batch newBatch = new Batch(key);
+				batch = batches.putIfAbsent(key, newBatch);
+				if (batch == null) {
+					batch = newBatch;
+					executor.schedule(new FlushRunnable(batch), lingerMillis,
+							TimeUnit.MILLISECONDS);
+				}
+			}
+
+			switch (batch.add(context)) {
+			case ADDED:
+				return;
+			case FILLED:
+				send(batch);
+				return;
+			case CLOSED:
+				// Lost the race with a flush. Try a new batch.
+				continue;
+			}
+		}
+	}
+
+	private void send(Batch batch) {
+		List<MessageContext> contexts = batch.contexts;
+		List<Message> messages = new ArrayList<Message>(contexts.size());
+		for (MessageContext context : contexts) {
+			messages.add(context.unwrap());
+		}
+
+		List<Response> responses;
+		try {
+			responses = gcm.pushMessages(messages);
+		} catch (RuntimeException e) {
+			LOGGER.warn(
+					"Unexpected RuntimeException while sending GCM multicast message.",
+					e);
+			for (MessageContext context : contexts) {
+				context.getFutureResponse().setThrowable(e);
+			}
+			return;
+		} catch (Throwable throwable) {
+			for (MessageContext context : contexts) {
+				handleThrowable(context, throwable);
+			}
+			return;
+		}
+
+		for (int i = 0; i < contexts.size(); i++) {
+			MessageContext context = contexts.get(i);
+			try {
+				handleResponse(context, responses.get(i));
+			} catch (RuntimeException e) {
+				LOGGER.warn(
+						"Unexpected RuntimeException while handling GCM response.",
+						e);
+				context.getFutureResponse().setThrowable(e);
+			}
+		}
+	}
+
+	private static enum AddResult {
+		ADDED, FILLED, CLOSED
+	}
+
+	/**
+	 * The messages collected for one payload, waiting to be sent together.
+	 */
+	private class Batch {
+		private final PayloadKey key;
+
+		private final List<MessageContext> contexts;
+
+		private boolean closed;
+
+		public Batch(PayloadKey key) {
+			this.key = key;
+			this.contexts = new ArrayList<MessageContext>();
+			this.closed = false;
+		}
+
+		/**
+		 * Adds the message to the batch. If the batch is full afterwards, it
+		 * is closed and the caller is responsible for sending it.
+		 */
+		public synchronized AddResult add(MessageContext context) {
+			if (closed)
+				return AddResult.CLOSED;
+			contexts.add(context);
+			if (contexts.size() >= maxBatchSize) {
+				close();
+				return AddResult.FILLED;
+			}
+			return AddResult.ADDED;
+		}
+
+		/**
+		 * Closes the batch to further messages.
+		 *
+		 * @return {@code true} if the batch was open, in which case the caller
+		 *         is responsible for sending it
+		 */
+		public synchronized boolean close() {
+			if (closed)
+				return false;
+			closed = true;
+			batches.remove(key, this);
+			return true;
+		}
+	}
+
+	private class FlushRunnable implements Runnable {
+		private final Batch batch;
+
+		public FlushRunnable(Batch batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void run() {
+			if (batch.close())
+				send(batch);
+		}
+	}
+
+	/**
+	 * The fields of a message that must match for it to share a multicast
+	 * request with another message.
+	 */
+	private static class PayloadKey {
+		private final String collapseKey;
+
+		private final int timeToLive;
+
+		private final boolean delayWhileIdle;
+
+		private final Map<String, String> data;
+
+		private final int hashCode;
+
+		public PayloadKey(Message message) {
+			this.collapseKey = message.getCollapseKey();
+			this.timeToLive = message.timeToLive();
+			this.delayWhileIdle = message.delayWhileIdle();
+			this.data = message.getData();
+			this.hashCode = computeHashCode();
+		}
+
+		private int computeHashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result
+					+ ((collapseKey == null) ? 0 : collapseKey.hashCode());
+			result = prime * result + data.hashCode();
+			result = prime * result + (delayWhileIdle ? 1231 : 1237);
+			result = prime * result + timeToLive;
+			return result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof PayloadKey))
+				return false;
+			PayloadKey other = (PayloadKey) obj;
+			if (hashCode != other.hashCode)
+				return false;
+			if (collapseKey == null) {
+				if (other.collapseKey != null)
+					return false;
+			} else if (!collapseKey.equals(other.collapseKey))
+				return false;
+			return timeToLive == other.timeToLive
+					&& delayWhileIdle == other.delayWhileIdle
+					&& data.equals(other.data);
+		}
+	}
+}
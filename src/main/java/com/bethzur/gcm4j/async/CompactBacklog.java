@@ -0,0 +1,597 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+import com.bethzur.gcm4j.PayloadTemplate;
+import com.bethzur.gcm4j.Response;
+
+/**
+ * A compact holding area in front of an {@link AsyncGcmManager} for very
+ * large backlogs, e.g., millions of messages accumulated during a GCM outage.
+ * <p>
+ * A message pushed directly into the manager is held as a message, context,
+ * future, and scheduled task, which costs on the order of a kilobyte. The
+ * backlog instead stores each pending message as its registration id in UTF-8
+ * and one packed {@code long} holding the index of its
+ * {@link PayloadTemplate} and the time before which it may not be sent, in
+ * blocks of primitive arrays. That is roughly the length of the registration
+ * id plus 12 bytes. Messages are materialized with
+ * {@link PayloadTemplate#forRecipient(String)} and pushed into the manager
+ * only when fewer than {@code window} of them are in flight.
+ * <p>
+ * Messages whose future completes with an exception (e.g., after the
+ * manager's own retries are exhausted or when rejected by a
+ * {@link QueueBound}) are put back into the backlog and tried again after a
+ * delay that doubles on each attempt, up to {@code maxAttempts} attempts.
+ * Retries are kept in one queue per attempt, so each queue is ordered by the
+ * time it becomes due. The final outcome of each message is reported to the
+ * optional {@link Listener}.
+ * <p>
+ * The backlog, not the manager, owns the final outcome of its messages. A
+ * {@link com.bethzur.gcm4j.async.handler.DeadLetterSink} set on the
+ * manager's handlers sees every failed attempt, including those the backlog
+ * puts back, so it must not be set for a manager fed by a backlog. Final
+ * failures should be dead-lettered from the {@link Listener} instead.
+ * <p>
+ * A background thread moves messages between the backlog and the manager.
+ * This class is thread-safe. Messages still in the backlog when it is closed
+ * are dropped; those already in flight are left to the manager.
+ * <p>
+ * SLF4J is used for logging.
+ *
+ * @author David R. Bild
+ *
+ */
+public class CompactBacklog implements Closeable {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(CompactBacklog.class);
+
+	private static final int DEFAULT_WINDOW = 10000;
+
+	private static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	private static final long DEFAULT_RETRY_MILLIS = TimeUnit.SECONDS
+			.toMillis(30);
+
+	private static final int MAX_ATTEMPTS = 16;
+
+	private static final long PUMP_MILLIS = 10;
+
+	private static final int TEMPLATE_BITS = 24;
+
+	private static final int MAX_TEMPLATES = 1 << TEMPLATE_BITS;
+
+	private static final long TEMPLATE_MASK = MAX_TEMPLATES - 1;
+
+	private static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * Listener for the final outcome of messages sent from the backlog.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called once the message has completed and will not be retried by
+		 * the backlog. This is where messages that finally failed should be
+		 * dead-lettered. Called on the backlog thread, so should return
+		 * quickly.
+		 *
+		 * @param message
+		 *            the message
+		 * @param future
+		 *            the completed future returned by the manager
+		 */
+		public void messageCompleted(Message message, Future<Response> future);
+
+	}
+
+	private final AsyncGcmManager manager;
+
+	private final Lane lane;
+
+	private final int window;
+
+	private final int maxAttempts;
+
+	private final long retryMillis;
+
+	private final Listener listener;
+
+	private final long epoch;
+
+	// Guarded by this
+	private final CompactQueue[] queues;
+
+	private final ArrayList<PayloadTemplate> templates;
+
+	private final HashMap<PayloadTemplate, Integer> templateIndex;
+
+	private int[] templateRefs;
+
+	private final ArrayDeque<Integer> freeTemplates;
+
+	private int pending;
+
+	// Confined to the pump thread
+	private final Message[] inFlightMessages;
+
+	private final Future<?>[] inFlightFutures;
+
+	private final int[] inFlightTemplates;
+
+	private final byte[] inFlightAttempts;
+
+	private int inFlightCount;
+
+	private volatile int inFlight;
+
+	private volatile boolean closed;
+
+	private final Thread pumpThread;
+
+	/**
+	 * Constructs a new backlog pushing into the {@link Lane#BULK} lane and
+	 * keeping at most 10,000 messages in flight.
+	 *
+	 * @param manager
+	 *            the manager into which to push the messages
+	 */
+	public CompactBacklog(AsyncGcmManager manager) {
+		this(manager, DEFAULT_WINDOW, Lane.BULK);
+	}
+
+	/**
+	 * Constructs a new backlog that tries each message up to 5 times, 30
+	 * seconds apart at first.
+	 *
+	 * @param manager
+	 *            the manager into which to push the messages
+	 * @param window
+	 *            the maximum number of messages in flight in the manager
+	 * @param lane
+	 *            the lane in which to push the messages
+	 */
+	public CompactBacklog(AsyncGcmManager manager, int window, Lane lane) {
+		this(manager, window, lane, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_MILLIS,
+				null);
+	}
+
+	/**
+	 * Constructs a new backlog.
+	 *
+	 * @param manager
+	 *            the manager into which to push the messages
+	 * @param window
+	 *            the maximum number of messages in flight in the manager
+	 * @param lane
+	 *            the lane in which to push the messages
+	 * @param maxAttempts
+	 *            the maximum number of times each message is pushed, at most
+	 *            16
+	 * @param retryMillis
+	 *            the delay before the first retry, doubled on each further
+	 *            retry
+	 * @param listener
+	 *            the listener for the outcome of messages, may be
+	 *            {@code null}
+	 */
+	public CompactBacklog(AsyncGcmManager manager, int window, Lane lane,
+			int maxAttempts, long retryMillis, Listener listener) {
+		if (window < 1)
+			throw new IllegalArgumentException(
+					"Argument 'window' must be positive.");
+		if (maxAttempts < 1 || maxAttempts > MAX_ATTEMPTS)
+			throw new IllegalArgumentException(
+					"Argument 'maxAttempts' must be between 1 and "
+							+ MAX_ATTEMPTS + ".");
+		if (retryMillis < 0)
+			throw new IllegalArgumentException(
+					"Argument 'retryMillis' may not be negative.");
+		this.manager = manager;
+		this.lane = lane;
+		this.window = window;
+		this.maxAttempts = maxAttempts;
+		this.retryMillis = retryMillis;
+		this.listener = listener;
+		this.epoch = System.currentTimeMillis();
+
+		this.queues = new CompactQueue[maxAttempts];
+		for (int i = 0; i < queues.length; i++) {
+			queues[i] = new CompactQueue();
+		}
+		this.templates = new ArrayList<PayloadTemplate>();
+		this.templateIndex = new HashMap<PayloadTemplate, Integer>();
+		this.templateRefs = new int[16];
+		this.freeTemplates = new ArrayDeque<Integer>();
+
+		this.inFlightMessages = new Message[window];
+		this.inFlightFutures = new Future<?>[window];
+		this.inFlightTemplates = new int[window];
+		this.inFlightAttempts = new byte[window];
+
+		this.pumpThread = new Thread(new PumpRunnable(), "gcm4j-backlog-pump");
+		this.pumpThread.setDaemon(true);
+		this.pumpThread.start();
+	}
+
+	/**
+	 * Adds a message with the payload of the template for the specified
+	 * client to the backlog.
+	 *
+	 * @param template
+	 *            the payload of the message
+	 * @param registrationId
+	 *            the registration id of the client
+	 */
+	public void add(PayloadTemplate template, String registrationId) {
+		if (template == null)
+			throw new IllegalArgumentException(
+					"Argument 'template' may not be null.");
+		if (registrationId == null)
+			throw new IllegalArgumentException(
+					"Argument 'registrationId' may not be null.");
+		byte[] id = registrationId.getBytes(StandardCharsets.UTF_8);
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("Backlog is closed.");
+			int index = acquireTemplate(template);
+			queues[0].add(id, index);
+			pending++;
+		}
+	}
+
+	/**
+	 * Adds a message to the backlog. Messages not created from a
+	 * {@link PayloadTemplate} are converted to one, which is shared with
+	 * equal payloads already in the backlog.
+	 *
+	 * @param message
+	 *            the message
+	 */
+	public void add(Message message) {
+		PayloadTemplate template = PayloadTemplate.templateOf(message);
+		if (template == null)
+			template = new MessageBuilder(message).buildTemplate();
+		add(template, message.getRegistrationId());
+	}
+
+	/**
+	 * Gets the number of messages waiting in the backlog, not including those
+	 * in flight.
+	 *
+	 * @return the number of pending messages
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Gets the number of messages pushed into the manager whose future has not
+	 * yet been seen to complete.
+	 *
+	 * @return the number of messages in flight
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Stops moving messages into the manager and drops those still pending.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		pumpThread.interrupt();
+		try {
+			pumpThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// ------------------------- Templates ------------------------------------
+	private int acquireTemplate(PayloadTemplate template) {
+		Integer index = templateIndex.get(template);
+		if (index == null) {
+			if (!freeTemplates.isEmpty()) {
+				index = freeTemplates.poll();
+				templates.set(index, template);
+			} else {
+				if (templates.size() >= MAX_TEMPLATES)
+					throw new IllegalStateException(
+							"Too many distinct templates in backlog.");
+				index = templates.size();
+				templates.add(template);
+				if (index >= templateRefs.length)
+					templateRefs = Arrays.copyOf(templateRefs,
+							templateRefs.length * 2);
+			}
+			templateIndex.put(template, index);
+		}
+		templateRefs[index]++;
+		return index;
+	}
+
+	private synchronized void releaseTemplate(int index) {
+		if (--templateRefs[index] == 0) {
+			templateIndex.remove(templates.get(index));
+			templates.set(index, null);
+			freeTemplates.add(index);
+		}
+	}
+
+	// ------------------------- Pump Messages --------------------------------
+	private void pump() {
+		long now = System.currentTimeMillis();
+		reap(now);
+		fill(now);
+		inFlight = inFlightCount;
+	}
+
+	/**
+	 * Retires the messages whose futures have completed, putting failures
+	 * back into the backlog.
+	 */
+	private void reap(long now) {
+		for (int i = 0; i < inFlightCount;) {
+			Future<?> future = inFlightFutures[i];
+			if (!future.isDone() && !future.isCancelled()) {
+				i++;
+				continue;
+			}
+
+			Message message = inFlightMessages[i];
+			int template = inFlightTemplates[i];
+			int failures = inFlightAttempts[i] + 1;
+
+			int last = --inFlightCount;
+			inFlightMessages[i] = inFlightMessages[last];
+			inFlightFutures[i] = inFlightFutures[last];
+			inFlightTemplates[i] = inFlightTemplates[last];
+			inFlightAttempts[i] = inFlightAttempts[last];
+			inFlightMessages[last] = null;
+			inFlightFutures[last] = null;
+
+			if (failures < maxAttempts && failed(future)) {
+				requeue(message.getRegistrationId(), template, failures, now
+						+ (retryMillis << (failures - 1)));
+			} else {
+				releaseTemplate(template);
+				notifyListener(message, future);
+			}
+		}
+	}
+
+	/**
+	 * Pushes due messages into the manager until the window is full.
+	 */
+	private void fill(long now) {
+		int start = inFlightCount;
+		int end = start;
+		synchronized (this) {
+			if (closed)
+				return;
+			while (end < window) {
+				int attempts = dueQueue(now);
+				if (attempts < 0)
+					break;
+				CompactQueue queue = queues[attempts];
+				int template = (int) (queue.peekPacked() & TEMPLATE_MASK);
+				inFlightMessages[end] = templates.get(template).forRecipient(
+						queue.peekId());
+				inFlightTemplates[end] = template;
+				inFlightAttempts[end] = (byte) attempts;
+				queue.remove();
+				pending--;
+				end++;
+			}
+		}
+
+		for (int i = start; i < end; i++) {
+			inFlightFutures[i] = push(inFlightMessages[i]);
+		}
+		inFlightCount = end;
+	}
+
+	/**
+	 * Returns the queue from which to take the next message, preferring
+	 * retries, or {@code -1} if no message is due.
+	 */
+	private int dueQueue(long now) {
+		for (int i = queues.length - 1; i > 0; i--) {
+			if (!queues[i].isEmpty()
+					&& epoch + (queues[i].peekPacked() >>> TEMPLATE_BITS) <= now)
+				return i;
+		}
+		return queues[0].isEmpty() ? -1 : 0;
+	}
+
+	private synchronized void requeue(String registrationId, int template,
+			int attempts, long notBefore) {
+		if (closed)
+			return;
+		long packed = ((notBefore - epoch) << TEMPLATE_BITS) | template;
+		queues[attempts].add(registrationId.getBytes(StandardCharsets.UTF_8),
+				packed);
+		pending++;
+	}
+
+	private Future<?> push(Message message) {
+		try {
+			return manager.pushMessage(message, lane);
+		} catch (RuntimeException e) {
+			LOGGER.warn("Failed to push GCM message from backlog.", e);
+			FutureResponse failed = new FutureResponse();
+			failed.setThrowable(e);
+			return failed;
+		}
+	}
+
+	private static boolean failed(Future<?> future) {
+		if (future.isCancelled())
+			return false;
+		try {
+			future.get();
+			return false;
+		} catch (ExecutionException e) {
+			return true;
+		} catch (CancellationException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void notifyListener(Message message, Future<?> future) {
+		if (listener == null)
+			return;
+		try {
+			listener.messageCompleted(message, (Future<Response>) future);
+		} catch (RuntimeException e) {
+			LOGGER.warn("Backlog listener threw an exception.", e);
+		}
+	}
+
+	private class PumpRunnable implements Runnable {
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					pump();
+				} catch (RuntimeException e) {
+					LOGGER.warn(
+							"Unexpected RuntimeException while pumping GCM backlog.",
+							e);
+				}
+				try {
+					Thread.sleep(PUMP_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A FIFO queue of messages stored in blocks of primitive arrays.
+	 */
+	private static final class CompactQueue {
+		private final ArrayDeque<Block> blocks = new ArrayDeque<Block>();
+
+		public boolean isEmpty() {
+			return blocks.isEmpty();
+		}
+
+		public void add(byte[] id, long packed) {
+			Block tail = blocks.peekLast();
+			if (tail == null || tail.isFull()) {
+				tail = new Block();
+				blocks.addLast(tail);
+			}
+			tail.add(id, packed);
+		}
+
+		public long peekPacked() {
+			return blocks.peekFirst().peekPacked();
+		}
+
+		public String peekId() {
+			return blocks.peekFirst().peekId();
+		}
+
+		public void remove() {
+			Block head = blocks.peekFirst();
+			head.remove();
+			if (head.isDrained())
+				blocks.removeFirst();
+		}
+	}
+
+	/**
+	 * A block of up to {@code BLOCK_SIZE} messages. The registration ids are
+	 * concatenated in one array, delimited by their end offsets.
+	 */
+	private static final class Block {
+		private final long[] packed = new long[BLOCK_SIZE];
+
+		private final int[] ends = new int[BLOCK_SIZE];
+
+		private byte[] ids = new byte[BLOCK_SIZE * 32];
+
+		private int size;
+
+		private int head;
+
+		private int tail;
+
+		public boolean isFull() {
+			return tail == BLOCK_SIZE;
+		}
+
+		public boolean isDrained() {
+			return head == tail;
+		}
+
+		public void add(byte[] id, long value) {
+			if (size + id.length > ids.length)
+				ids = Arrays.copyOf(ids, Math.max(ids.length * 2, size
+						+ id.length));
+			System.arraycopy(id, 0, ids, size, id.length);
+			size += id.length;
+			ends[tail] = size;
+			packed[tail] = value;
+			tail++;
+			// Release the slack of the last growth
+			if (isFull() && size < ids.length)
+				ids = Arrays.copyOf(ids, size);
+		}
+
+		public long peekPacked() {
+			return packed[head];
+		}
+
+		public String peekId() {
+			int start = head == 0 ? 0 : ends[head - 1];
+			return new String(ids, start, ends[head] - start,
+					StandardCharsets.UTF_8);
+		}
+
+		public void remove() {
+			head++;
+		}
+	}
+
+}
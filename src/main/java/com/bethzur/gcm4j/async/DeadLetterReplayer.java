@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the messages recorded by a {@link FileDeadLetterSink} again through
+ * {@link AsyncGcmManager#pushMessage(com.bethzur.gcm4j.Message, Lane)} at a
+ * controlled rate, in the {@link Lane#BULK} lane by default.
+ * <p>
+ * The replay methods block the calling thread to pace the messages. Records
+ * that cannot be parsed are logged and skipped. Files are not modified;
+ * move or delete them after a successful replay.
+ * <p>
+ * SLF4J is used for logging.
+ *
+ * @author David R. Bild
+ *
+ */
+public class DeadLetterReplayer {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(DeadLetterReplayer.class);
+
+	private final AsyncGcmManager manager;
+
+	private final long intervalNanos;
+
+	private final Lane lane;
+
+	private long next;
+
+	/**
+	 * Constructs a new replayer pushing into the {@link Lane#BULK} lane.
+	 *
+	 * @param manager
+	 *            the manager into which to push the messages
+	 * @param messagesPerSecond
+	 *            the maximum rate at which messages are pushed
+	 */
+	public DeadLetterReplayer(AsyncGcmManager manager, double messagesPerSecond) {
+		this(manager, messagesPerSecond, Lane.BULK);
+	}
+
+	/**
+	 * Constructs a new replayer.
+	 *
+	 * @param manager
+	 *            the manager into which to push the messages
+	 * @param messagesPerSecond
+	 *            the maximum rate at which messages are pushed
+	 * @param lane
+	 *            the lane in which to push the messages
+	 */
+	public DeadLetterReplayer(AsyncGcmManager manager,
+			double messagesPerSecond, Lane lane) {
+		if (!(messagesPerSecond > 0))
+			throw new IllegalArgumentException(
+					"Argument 'messagesPerSecond' must be positive.");
+		this.manager = manager;
+		this.intervalNanos = Math.max(1,
+				(long) (TimeUnit.SECONDS.toNanos(1) / messagesPerSecond));
+		this.lane = lane;
+	}
+
+	/**
+	 * Replays all dead-letter files in a directory, in the order written.
+	 *
+	 * @param directory
+	 *            the directory of a {@code FileDeadLetterSink}
+	 * @return the number of messages pushed
+	 * @throws IOException
+	 *             if a file cannot be read
+	 * @throws InterruptedException
+	 *             if interrupted while pacing
+	 */
+	public int replayDirectory(File directory) throws IOException,
+			InterruptedException {
+		int count = 0;
+		for (File file : FileDeadLetterSink.segments(directory)) {
+			count += replay(file);
+		}
+		return count;
+	}
+
+	/**
+	 * Replays a single dead-letter file.
+	 *
+	 * @param file
+	 *            the file written by a {@code FileDeadLetterSink}
+	 * @return the number of messages pushed
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws InterruptedException
+	 *             if interrupted while pacing
+	 */
+	public int replay(File file) throws IOException, InterruptedException {
+		int count = 0;
+		BufferedReader reader = FileDeadLetterSink.open(file);
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.isEmpty())
+					continue;
+				try {
+					pace();
+					manager.pushMessage(FileDeadLetterSink.decode(line), lane);
+					count++;
+				} catch (IOException e) {
+					LOGGER.warn(String.format(
+							"Skipping invalid dead-letter record %s:%d.", file,
+							lineNumber), e);
+				} catch (IllegalStateException e) {
+					LOGGER.warn(String.format(
+							"Skipping invalid dead-letter record %s:%d.", file,
+							lineNumber), e);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		LOGGER.info("Replayed {} dead-letter messages from {}.", count, file);
+		return count;
+	}
+
+	private void pace() throws InterruptedException {
+		long now = System.nanoTime();
+		if (next == 0 || next < now)
+			next = now;
+		long wait = next - now;
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+		next += intervalNanos;
+	}
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks after a delay. {@link AsyncGcmManager} implementations use a
+ * {@code DelayScheduler} for messages delayed by a
+ * {@link com.bethzur.gcm4j.async.handler.MessageFilter MessageFilter} (e.g.,
+ * for backoff or to honor {@code Retry-After} headers), while messages without
+ * a delay go straight to the executor.
+ * <p>
+ * The default implementation delegates to the
+ * {@link java.util.concurrent.ScheduledExecutorService ScheduledExecutorService}
+ * of the manager. {@link HashedWheelDelayScheduler} is better suited for very
+ * large numbers of delayed messages.
+ *
+ * @see HashedWheelDelayScheduler
+ *
+ * @author David R. Bild
+ *
+ */
+public interface DelayScheduler {
+
+	/**
+	 * Schedules the task to run after the given delay. Implementations may run
+	 * the task later than requested, but not earlier.
+	 *
+	 * @param task
+	 *            the task to run
+	 * @param delay
+	 *            the delay after which to run the task
+	 * @param unit
+	 *            the unit of the delay
+	 * @throws RejectedExecutionException
+	 *             if the task cannot be scheduled (e.g., because the scheduler
+	 *             has been shut down)
+	 */
+	public void schedule(Runnable task, long delay, TimeUnit unit);
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DelayScheduler} that delegates to a
+ * {@link ScheduledExecutorService}.
+ *
+ * @author David R. Bild
+ *
+ */
+class ExecutorDelayScheduler implements DelayScheduler {
+
+	private final ScheduledExecutorService executor;
+
+	public ExecutorDelayScheduler(ScheduledExecutorService executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void schedule(Runnable task, long delay, TimeUnit unit) {
+		executor.schedule(task, delay, unit);
+	}
+
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.async.handler.DeadLetterSink;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A {@link DeadLetterSink} that appends failed messages to local files, one
+ * JSON object per line, with the message fields and either the response type
+ * ({@code "error"}) or the throwable ({@code "exception"}).
+ * <p>
+ * Records are serialized on the calling thread and queued; a background
+ * thread writes the queued records in batches and flushes them at a fixed
+ * interval (200 milliseconds by default). When a file exceeds the segment size
+ * (64 MB by default), a new file is started. Files are named
+ * {@code deadletter-<n>.jsonl} in increasing order.
+ * <p>
+ * The messages can be sent again with a {@link DeadLetterReplayer}.
+ * <p>
+ * SLF4J is used for logging.
+ *
+ * @author David R. Bild
+ *
+ */
+public class FileDeadLetterSink implements DeadLetterSink, Closeable {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(FileDeadLetterSink.class);
+
+	private static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final long DEFAULT_FLUSH_MILLIS = 200;
+
+	static final Pattern SEGMENT_NAME = Pattern
+			.compile("deadletter-(\\d+)\\.jsonl");
+
+	private final File directory;
+
+	private final long segmentSize;
+
+	private final long flushMillis;
+
+	private final Queue<String> queue;
+
+	private final Thread writerThread;
+
+	// Accessed by the writer thread only
+	private Writer writer;
+
+	private long segment;
+
+	private long written;
+
+	private volatile boolean closed;
+
+	/**
+	 * Constructs a new sink writing to the specified directory with 64 MB
+	 * segments and a flush interval of 200 milliseconds. The directory is
+	 * created if needed.
+	 *
+	 * @param directory
+	 *            the directory for the dead-letter files
+	 * @throws IOException
+	 *             if the directory cannot be created
+	 */
+	public FileDeadLetterSink(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_MILLIS);
+	}
+
+	/**
+	 * Constructs a new sink writing to the specified directory. The directory
+	 * is created if needed.
+	 *
+	 * @param directory
+	 *            the directory for the dead-letter files
+	 * @param segmentSize
+	 *            the size in bytes after which a new file is started
+	 * @param flushMillis
+	 *            the interval in milliseconds at which queued records are
+	 *            written and flushed
+	 * @throws IOException
+	 *             if the directory cannot be created
+	 */
+	public FileDeadLetterSink(File directory, long segmentSize,
+			long flushMillis) throws IOException {
+		if (segmentSize <= 0)
+			throw new IllegalArgumentException(
+					"Argument 'segmentSize' must be positive.");
+		if (flushMillis <= 0)
+			throw new IllegalArgumentException(
+					"Argument 'flushMillis' must be positive.");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException(String.format(
+					"Failed to create dead-letter directory: %s", directory));
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.flushMillis = flushMillis;
+		this.queue = new ConcurrentLinkedQueue<String>();
+		this.segment = lastSegment(directory);
+		this.written = segmentSize;
+		this.writerThread = new Thread(new WriterRunnable(),
+				"gcm4j-dead-letter-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	@Override
+	public void deadLetter(Message message, Response response) {
+		enqueue(message, response.getResponseType().name(), null);
+	}
+
+	@Override
+	public void deadLetter(Message message, Throwable throwable) {
+		enqueue(message, null, throwable.toString());
+	}
+
+	/**
+	 * Writes all queued records and closes the current file. Records passed
+	 * to the sink afterwards are discarded.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		writerThread.interrupt();
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void enqueue(Message message, String error, String exception) {
+		if (closed) {
+			LOGGER.warn("Dead-letter sink is closed; dropping message: {}",
+					message);
+			return;
+		}
+		try {
+			queue.add(encode(message, error, exception));
+		} catch (IOException e) {
+			// Cannot happen when writing to a StringWriter
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// ------------------------- Writing --------------------------------------
+	private void writeQueued() throws IOException {
+		String record;
+		boolean any = false;
+		while ((record = queue.poll()) != null) {
+			if (written >= segmentSize)
+				rotate();
+			writer.write(record);
+			writer.write('\n');
+			written += utf8Length(record) + 1;
+			any = true;
+		}
+		if (any)
+			writer.flush();
+	}
+
+	private void rotate() throws IOException {
+		if (writer != null)
+			writer.close();
+		segment++;
+		File file = new File(directory, String.format("deadletter-%d.jsonl",
+				segment));
+		writer = new OutputStreamWriter(new FileOutputStream(file, true),
+				StandardCharsets.UTF_8);
+		written = file.length();
+	}
+
+	/**
+	 * Computes the number of bytes in the UTF-8 encoding of a string without
+	 * encoding it.
+	 */
+	static long utf8Length(String s) {
+		long length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				length += 1;
+			else if (c < 0x800 || Character.isSurrogate(c))
+				// Each half of a surrogate pair counts 2 of its 4 bytes
+				length += 2;
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+	private static long lastSegment(File directory) {
+		long last = 0;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+				if (matcher.matches())
+					last = Math.max(last, Long.parseLong(matcher.group(1)));
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Writes queued records at a fixed interval until the sink is closed.
+	 */
+	private class WriterRunnable implements Runnable {
+		@Override
+		public void run() {
+			boolean running = true;
+			while (running) {
+				try {
+					Thread.sleep(flushMillis);
+				} catch (InterruptedException e) {
+					running = false;
+				}
+				try {
+					writeQueued();
+				} catch (IOException e) {
+					LOGGER.warn("Failed to write dead-letter records.", e);
+					closeWriter();
+					// Start a new file on the next write
+					written = segmentSize;
+				}
+			}
+			closeWriter();
+		}
+
+		private void closeWriter() {
+			if (writer == null)
+				return;
+			try {
+				writer.close();
+			} catch (IOException e) {
+				LOGGER.debug("Failed to close dead-letter file.", e);
+			}
+			writer = null;
+		}
+	}
+
+	// ------------------------- Encoding -------------------------------------
+	static String encode(Message message, String error, String exception)
+			throws IOException {
+		StringWriter string = new StringWriter(256);
+		JsonWriter json = new JsonWriter(string);
+		json.beginObject();
+		json.name("time").value(System.currentTimeMillis());
+		json.name("registration_id").value(message.getRegistrationId());
+		json.name("collapse_key").value(message.getCollapseKey());
+		json.name("delay_while_idle").value(message.delayWhileIdle());
+		json.name("time_to_live").value(message.timeToLive());
+		json.name("data").beginObject();
+		for (Map.Entry<String, String> entry : message.getData().entrySet()) {
+			json.name(entry.getKey()).value(entry.getValue());
+		}
+		json.endObject();
+		if (error != null)
+			json.name("error").value(error);
+		if (exception != null)
+			json.name("exception").value(exception);
+		json.endObject();
+		json.close();
+		return string.toString();
+	}
+
+	static Message decode(String line) throws IOException {
+		JsonReader json = new JsonReader(new StringReader(line));
+		MessageBuilder builder = new MessageBuilder();
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			if (name.equals("registration_id")) {
+				builder.registrationId(json.nextString());
+			} else if (name.equals("collapse_key")) {
+				builder.collapseKey(json.nextString());
+			} else if (name.equals("delay_while_idle")) {
+				builder.delayWhileIdle(json.nextBoolean());
+			} else if (name.equals("time_to_live")) {
+				builder.timeToLive(json.nextInt());
+			} else if (name.equals("data")) {
+				json.beginObject();
+				while (json.hasNext()) {
+					builder.put(json.nextName(), json.nextString());
+				}
+				json.endObject();
+			} else {
+				json.skipValue();
+			}
+		}
+		json.endObject();
+		try {
+			return builder.build();
+		} catch (IllegalStateException e) {
+			throw new IOException("Incomplete dead-letter record.", e);
+		}
+	}
+
+	/**
+	 * Lists the dead-letter files in a directory in the order written.
+	 */
+	static File[] segments(File directory) {
+		TreeMap<Long, File> files = new TreeMap<Long, File>();
+		File[] list = directory.listFiles();
+		if (list != null) {
+			for (File file : list) {
+				Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+				if (matcher.matches())
+					files.put(Long.parseLong(matcher.group(1)), file);
+			}
+		}
+		return files.values().toArray(new File[files.size()]);
+	}
+
+	static BufferedReader open(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(
+				file), StandardCharsets.UTF_8));
+	}
+
+}
@@ -15,19 +15,38 @@
  */
 package com.bethzur.gcm4j.async;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.async.handler.MessageDecision;
 
 /**
  * Future implementation for {@link Response} objects. This class does not
  * support canceling the underlying task, i.e., {@link #cancel(boolean)} always
  * returns {@code false}.
+ * <p>
+ * The future is completed at most once; later attempts to set a response,
+ * exception, or cancellation are ignored. An optional callback is run once
+ * upon completion, followed by any listeners added with
+ * {@link #addCompletionListener(Runnable)}. The task waiting to process the message, if any, is
+ * cancelled upon completion, so that a message completed early (e.g., shed by
+ * a {@link QueueBound}) is not retained by a scheduler or queue until the
+ * task comes up.
+ * <p>
+ * A cancelled future is either cancelled deliberately (e.g., by a filter
+ * deciding {@link MessageDecision#CANCEL} or superseded by a newer message) or
+ * rejected, i.e., failed without being sent (e.g., shed by the queue bound or
+ * decided {@link MessageDecision#REJECT}). Both throw a
+ * {@link CancellationException} from {@link #get()}, but only rejected
+ * messages are dead-lettered.
  * 
  * @author David R. Bild
  * 
@@ -37,6 +56,8 @@ class FutureResponse implements Future<Response> {
 	private final static int WAITING = 0;
 	private final static int DONE = 1;
 	private final static int CANCELLED = 2;
+	private final static int REJECTED = 3;
+	private final static int SUPERSEDED = 4;
 
 	private final CountDownLatch latch;
 
@@ -46,9 +67,34 @@ class FutureResponse implements Future<Response> {
 
 	private volatile Throwable exception;
 
+	private final AtomicBoolean completed;
+
+	private final Runnable onCompletion;
+
+	private volatile Future<?> task;
+
+	/**
+	 * The listeners to run on completion, {@code null} if none or once run.
+	 * Guarded by {@code this}.
+	 */
+	private List<Runnable> listeners;
+
 	public FutureResponse() {
+		this(null);
+	}
+
+	/**
+	 * Constructs a new future that runs the given callback once it is
+	 * completed.
+	 * 
+	 * @param onCompletion
+	 *            the callback to run on completion, may be {@code null}
+	 */
+	public FutureResponse(Runnable onCompletion) {
 		latch = new CountDownLatch(1);
 		state = WAITING;
+		completed = new AtomicBoolean(false);
+		this.onCompletion = onCompletion;
 	}
 
 	@Override
@@ -57,25 +103,126 @@ class FutureResponse implements Future<Response> {
 	}
 
 	void setCancelled() {
-		state = CANCELLED;
-		latch.countDown();
+		cancel(CANCELLED);
+	}
+
+	/**
+	 * Cancels the future as superseded by a newer message.
+	 */
+	void setSuperseded() {
+		cancel(SUPERSEDED);
+	}
+
+	/**
+	 * Cancels the future as rejected, i.e., failed without being sent.
+	 */
+	void setRejected() {
+		cancel(REJECTED);
+	}
+
+	private void cancel(int cancelled) {
+		if (!completed.compareAndSet(false, true))
+			return;
+		state = cancelled;
+		complete();
 	}
 
 	void setResponse(Response response) {
+		if (!completed.compareAndSet(false, true))
+			return;
 		this.response = response;
 		state = DONE;
-		latch.countDown();
+		complete();
 	}
 
 	void setThrowable(Throwable exception) {
+		if (!completed.compareAndSet(false, true))
+			return;
 		this.exception = exception;
 		state = DONE;
+		complete();
+	}
+
+	/**
+	 * Adds a callback to run once the future completes, or runs it now if the
+	 * future has already completed.
+	 * 
+	 * @param listener
+	 *            the callback to run on completion
+	 */
+	void addCompletionListener(Runnable listener) {
+		synchronized (this) {
+			if (!completed.get()) {
+				if (listeners == null)
+					listeners = new ArrayList<Runnable>(1);
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Sets the task that will next process the message, replacing any
+	 * previous one. The task is cancelled when the future completes, or
+	 * immediately if it already has.
+	 * 
+	 * @param task
+	 *            the pending task
+	 */
+	void setTask(Future<?> task) {
+		this.task = task;
+		if (completed.get())
+			cancelTask();
+	}
+
+	private void cancelTask() {
+		Future<?> pending = task;
+		if (pending != null) {
+			task = null;
+			pending.cancel(false);
+		}
+	}
+
+	private void complete() {
 		latch.countDown();
+		cancelTask();
+		if (onCompletion != null)
+			onCompletion.run();
+		List<Runnable> completionListeners;
+		synchronized (this) {
+			completionListeners = listeners;
+			listeners = null;
+		}
+		if (completionListeners != null) {
+			for (Runnable listener : completionListeners) {
+				listener.run();
+			}
+		}
+	}
+
+	/**
+	 * Indicates if the future has been completed in any way, including
+	 * cancellation.
+	 * 
+	 * @return {@code true} if the future has been completed
+	 */
+	boolean isCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Indicates if the future has been cancelled as rejected.
+	 * 
+	 * @return {@code true} if the future has been rejected
+	 */
+	boolean isRejected() {
+		return (state == REJECTED);
 	}
 
 	@Override
 	public boolean isCancelled() {
-		return (state == CANCELLED);
+		return (state >= CANCELLED);
 	}
 
 	@Override
@@ -95,7 +242,13 @@ class FutureResponse implements Future<Response> {
 
 	private Response innerGet() throws ExecutionException,
 			CancellationException {
-		if (isCancelled())
+		if (isRejected())
+			throw new CancellationException(
+					"Message rejected without being sent.");
+		else if (state == SUPERSEDED)
+			throw new CancellationException(
+					"Message superseded by a newer message.");
+		else if (isCancelled())
 			throw new CancellationException();
 		else if (exception != null)
 			throw new ExecutionException(exception);
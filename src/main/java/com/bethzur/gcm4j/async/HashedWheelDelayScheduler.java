@@ -0,0 +1,368 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link DelayScheduler} backed by a hashed timing wheel.
+ * <p>
+ * Scheduling a task is a lock-free, constant-time append to a queue, no matter
+ * how many tasks are waiting. A single ticker thread advances the wheel once
+ * per tick, moves newly scheduled tasks into their slots, and hands due tasks
+ * to the worker {@link Executor}. Tasks thus run up to one tick later than
+ * requested, but never earlier. This trades timing precision for throughput
+ * when hundreds of thousands of messages are delayed at once (e.g., during a
+ * storm of {@code 503} responses), where the single heap of a
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor} becomes a point of
+ * contention.
+ * <p>
+ * The ticker thread is started when the first task is scheduled and runs
+ * until {@link #shutdown()} is called. Tasks still waiting at shutdown are
+ * returned by {@link #shutdown()} rather than run. Tasks that are dropped at
+ * shutdown or rejected by the worker executor are also cancelled if they
+ * implement {@link Future}, so that their owners learn they will never run.
+ * <p>
+ * SLF4J is used for logging.
+ *
+ * @author David R. Bild
+ *
+ */
+public class HashedWheelDelayScheduler implements DelayScheduler {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(HashedWheelDelayScheduler.class);
+
+	private static final long DEFAULT_TICK_MILLIS = 10;
+	private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+	private static final int STATE_INIT = 0;
+	private static final int STATE_STARTED = 1;
+	private static final int STATE_SHUTDOWN = 2;
+
+	private final Executor workers;
+
+	private final long tickNanos;
+
+	private final Timeout[] wheel;
+
+	private final int mask;
+
+	private final Queue<Timeout> pending;
+
+	private final Thread ticker;
+
+	private final AtomicInteger state;
+
+	private volatile long startTime;
+
+	private final List<Runnable> dropped;
+
+	/**
+	 * Constructs a new scheduler with a 10 millisecond tick and 512 ticks per
+	 * wheel, dispatching due tasks to the given executor.
+	 *
+	 * @param workers
+	 *            the executor on which to run due tasks
+	 */
+	public HashedWheelDelayScheduler(Executor workers) {
+		this(workers, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS,
+				DEFAULT_TICKS_PER_WHEEL);
+	}
+
+	/**
+	 * Constructs a new scheduler dispatching due tasks to the given executor.
+	 * The ticker runs on a new daemon thread.
+	 *
+	 * @param workers
+	 *            the executor on which to run due tasks
+	 * @param tickDuration
+	 *            the duration of one tick, i.e., the timing precision
+	 * @param unit
+	 *            the unit of the tick duration
+	 * @param ticksPerWheel
+	 *            the number of slots in the wheel, rounded up to a power of
+	 *            two
+	 */
+	public HashedWheelDelayScheduler(Executor workers, long tickDuration,
+			TimeUnit unit, int ticksPerWheel) {
+		this(workers, tickDuration, unit, ticksPerWheel,
+				new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("gcm4j-delay-ticker-%d").build());
+	}
+
+	/**
+	 * Constructs a new scheduler dispatching due tasks to the given executor.
+	 *
+	 * @param workers
+	 *            the executor on which to run due tasks
+	 * @param tickDuration
+	 *            the duration of one tick, i.e., the timing precision
+	 * @param unit
+	 *            the unit of the tick duration
+	 * @param ticksPerWheel
+	 *            the number of slots in the wheel, rounded up to a power of
+	 *            two
+	 * @param threadFactory
+	 *            the factory for the ticker thread
+	 */
+	public HashedWheelDelayScheduler(Executor workers, long tickDuration,
+			TimeUnit unit, int ticksPerWheel, ThreadFactory threadFactory) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException(
+					"Argument 'tickDuration' must be positive.");
+		if (ticksPerWheel < 1 || ticksPerWheel > (1 << 30))
+			throw new IllegalArgumentException(
+					"Argument 'ticksPerWheel' must be between 1 and 2^30.");
+		this.workers = workers;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheel = new Timeout[roundUpToPowerOfTwo(ticksPerWheel)];
+		this.mask = wheel.length - 1;
+		this.pending = new ConcurrentLinkedQueue<Timeout>();
+		this.ticker = threadFactory.newThread(new Ticker());
+		this.state = new AtomicInteger(STATE_INIT);
+		this.dropped = new ArrayList<Runnable>();
+	}
+
+	@Override
+	public void schedule(Runnable task, long delay, TimeUnit unit) {
+		start();
+		Timeout timeout = new Timeout(task, System.nanoTime()
+				+ unit.toNanos(delay));
+		pending.add(timeout);
+		// Raced with shutdown after the ticker drained the pending queue
+		if (state.get() == STATE_SHUTDOWN && pending.remove(timeout))
+			throw new RejectedExecutionException(
+					"Scheduler has been shut down.");
+	}
+
+	/**
+	 * Stops the ticker thread and waits for it to exit. Tasks that are not yet
+	 * due are not run; those implementing {@link Future} are cancelled. Later
+	 * calls to {@link #schedule(Runnable, long, TimeUnit)} are rejected.
+	 *
+	 * @return the tasks that were scheduled but never run
+	 */
+	public List<Runnable> shutdown() {
+		switch (state.getAndSet(STATE_SHUTDOWN)) {
+		case STATE_INIT:
+			drain(false);
+			break;
+		case STATE_STARTED:
+			ticker.interrupt();
+			boolean interrupted = false;
+			while (ticker.isAlive()) {
+				try {
+					ticker.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			break;
+		}
+		synchronized (dropped) {
+			return new ArrayList<Runnable>(dropped);
+		}
+	}
+
+	private void start() {
+		switch (state.get()) {
+		case STATE_INIT:
+			if (state.compareAndSet(STATE_INIT, STATE_STARTED)) {
+				startTime = System.nanoTime();
+				ticker.start();
+			}
+			return;
+		case STATE_STARTED:
+			return;
+		default:
+			throw new RejectedExecutionException(
+					"Scheduler has been shut down.");
+		}
+	}
+
+	/**
+	 * Drops the tasks in the pending queue and, optionally, the wheel.
+	 *
+	 * @param includeWheel
+	 *            whether to drop the tasks in the wheel, which only the ticker
+	 *            thread may do
+	 */
+	private void drain(boolean includeWheel) {
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		Timeout timeout;
+		if (includeWheel) {
+			for (int i = 0; i < wheel.length; i++) {
+				timeout = wheel[i];
+				while (timeout != null) {
+					tasks.add(timeout.task);
+					timeout = timeout.next;
+				}
+				wheel[i] = null;
+			}
+		}
+		while ((timeout = pending.poll()) != null) {
+			tasks.add(timeout.task);
+		}
+		synchronized (dropped) {
+			dropped.addAll(tasks);
+		}
+		for (Runnable task : tasks) {
+			cancel(task);
+		}
+	}
+
+	/**
+	 * Cancels a task that will never run, if it is a {@link Future}.
+	 */
+	private static void cancel(Runnable task) {
+		if (!(task instanceof Future<?>))
+			return;
+		try {
+			((Future<?>) task).cancel(false);
+		} catch (RuntimeException e) {
+			LOGGER.warn("Unexpected RuntimeException while cancelling task.",
+					e);
+		}
+	}
+
+	private static int roundUpToPowerOfTwo(int n) {
+		int result = 1;
+		while (result < n) {
+			result <<= 1;
+		}
+		return result;
+	}
+
+	/**
+	 * A scheduled task. Linked into the list of its wheel slot; only touched
+	 * by the ticker thread once transferred from the pending queue.
+	 */
+	private static class Timeout {
+		private final Runnable task;
+
+		private final long deadline;
+
+		private long remainingRounds;
+
+		private Timeout next;
+
+		public Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+	}
+
+	private class Ticker implements Runnable {
+		private long tick = 0;
+
+		@Override
+		public void run() {
+			while (state.get() == STATE_STARTED) {
+				if (!waitForTickEnd())
+					break;
+				transferPending();
+				expire(tick & mask);
+				tick++;
+			}
+			drain(true);
+		}
+
+		/**
+		 * Sleeps until the current tick has elapsed.
+		 *
+		 * @return {@code false} if interrupted by shutdown
+		 */
+		private boolean waitForTickEnd() {
+			long tickEnd = startTime + (tick + 1) * tickNanos;
+			long remaining;
+			while ((remaining = tickEnd - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(remaining);
+				} catch (InterruptedException e) {
+					if (state.get() != STATE_STARTED)
+						return false;
+				}
+			}
+			return true;
+		}
+
+		private void transferPending() {
+			Timeout timeout;
+			while ((timeout = pending.poll()) != null) {
+				long due = Math.max(0, timeout.deadline - startTime)
+						/ tickNanos;
+				long slotTick = Math.max(due, tick);
+				timeout.remainingRounds = (slotTick - tick) / wheel.length;
+				int slot = (int) (slotTick & mask);
+				timeout.next = wheel[slot];
+				wheel[slot] = timeout;
+			}
+		}
+
+		private void expire(long slot) {
+			int index = (int) slot;
+			Timeout previous = null;
+			Timeout timeout = wheel[index];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0) {
+					if (previous == null)
+						wheel[index] = next;
+					else
+						previous.next = next;
+					timeout.next = null;
+					dispatch(timeout.task);
+				} else {
+					timeout.remainingRounds--;
+					previous = timeout;
+				}
+				timeout = next;
+			}
+		}
+
+		private void dispatch(Runnable task) {
+			try {
+				workers.execute(task);
+			} catch (RejectedExecutionException e) {
+				LOGGER.warn(
+						"Worker executor rejected delayed task. Cancelling task.",
+						e);
+				cancel(task);
+			} catch (RuntimeException e) {
+				LOGGER.warn(
+						"Unexpected RuntimeException while dispatching delayed task.",
+						e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+/**
+ * The lanes in which an {@link AsyncGcmManager} queues messages, from highest
+ * to lowest priority. Each lane has its own queue and may be limited to a
+ * share of the executor threads by {@link LaneLimits}. When a
+ * {@link QueueBound} is reached, messages in lower lanes are shed first to
+ * admit messages in higher lanes.
+ * <p>
+ * Retries of {@link #NORMAL} messages move to the {@link #RETRY} lane, so they
+ * do not compete with fresh traffic. Retries of other messages stay in their
+ * lane.
+ *
+ * @author David R. Bild
+ *
+ */
+public enum Lane {
+	/**
+	 * Time-critical messages, e.g., login codes or chat.
+	 */
+	HIGH,
+	/**
+	 * Regular messages. The default lane.
+	 */
+	NORMAL,
+	/**
+	 * Retries of {@link #NORMAL} messages.
+	 */
+	RETRY,
+	/**
+	 * Bulk messages, e.g., marketing campaigns.
+	 */
+	BULK;
+
+	/**
+	 * Gets the lane for a retry of a message in this lane.
+	 *
+	 * @return the lane for retries
+	 */
+	Lane forRetry() {
+		return (this == NORMAL) ? RETRY : this;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on an executor, limiting the number of concurrent tasks per
+ * {@link Lane} as configured by {@link LaneLimits}. Tasks beyond the limit of
+ * their lane wait in a separate queue per lane. Tasks in unlimited lanes are
+ * handed to the executor directly.
+ *
+ * @author David R. Bild
+ *
+ */
+class LaneDispatcher {
+
+	private final Executor executor;
+
+	private final LaneState[] lanes;
+
+	public LaneDispatcher(Executor executor, LaneLimits limits) {
+		this.executor = executor;
+		Lane[] values = Lane.values();
+		this.lanes = new LaneState[values.length];
+		for (Lane lane : values) {
+			lanes[lane.ordinal()] = new LaneState(limits.get(lane));
+		}
+	}
+
+	/**
+	 * Runs the task in the given lane, now or once a running task in the lane
+	 * finishes.
+	 *
+	 * @param lane
+	 *            the lane of the task
+	 * @param task
+	 *            the task to run
+	 */
+	public void execute(Lane lane, Runnable task) {
+		LaneState state = lanes[lane.ordinal()];
+		if (state.limit == LaneLimits.UNLIMITED) {
+			executor.execute(task);
+			return;
+		}
+		state.queue.add(task);
+		drain(state);
+	}
+
+	private void drain(LaneState state) {
+		while (!state.queue.isEmpty()) {
+			int running = state.running.get();
+			if (running >= state.limit)
+				return;
+			if (!state.running.compareAndSet(running, running + 1))
+				continue;
+
+			Runnable task = state.queue.poll();
+			if (task == null) {
+				state.running.decrementAndGet();
+				continue;
+			}
+			try {
+				executor.execute(new LaneRunnable(state, task));
+			} catch (RejectedExecutionException e) {
+				state.running.decrementAndGet();
+				throw e;
+			}
+		}
+	}
+
+	private static class LaneState {
+		private final int limit;
+
+		private final Queue<Runnable> queue;
+
+		private final AtomicInteger running;
+
+		public LaneState(int limit) {
+			this.limit = limit;
+			this.queue = new ConcurrentLinkedQueue<Runnable>();
+			this.running = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Runs a task and then releases its slot in the lane.
+	 */
+	private class LaneRunnable implements Runnable {
+		private final LaneState state;
+
+		private final Runnable task;
+
+		public LaneRunnable(LaneState state, Runnable task) {
+			this.state = state;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				state.running.decrementAndGet();
+				drain(state);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.Arrays;
+
+/**
+ * Limits on the number of messages each {@link Lane} may process
+ * concurrently, i.e., its share of the executor threads. Messages beyond the
+ * limit wait in the queue of their lane, so a flood of messages in one lane
+ * cannot occupy every thread. By default, lanes are unlimited.
+ * <p>
+ * Instances are immutable. Example limiting bulk messages and retries on an
+ * executor of 16 threads:<br/>
+ * <code>
+ * LaneLimits limits = LaneLimits.unlimited().with(Lane.BULK, 4).with(Lane.RETRY, 4);
+ * </code>
+ *
+ * @author David R. Bild
+ *
+ */
+public final class LaneLimits {
+
+	/**
+	 * Marks a lane without a limit.
+	 */
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	private static final LaneLimits UNLIMITED_LIMITS = new LaneLimits(
+			createUnlimited());
+
+	private final int[] limits;
+
+	private LaneLimits(int[] limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * Returns limits that allow every lane to use every executor thread.
+	 *
+	 * @return the unlimited limits
+	 */
+	public static LaneLimits unlimited() {
+		return UNLIMITED_LIMITS;
+	}
+
+	/**
+	 * Returns a copy of these limits with the limit for the given lane
+	 * replaced.
+	 *
+	 * @param lane
+	 *            the lane to limit
+	 * @param limit
+	 *            the maximum number of messages processed concurrently in the
+	 *            lane, or {@link #UNLIMITED}
+	 * @return the new limits
+	 */
+	public LaneLimits with(Lane lane, int limit) {
+		if (limit < 1)
+			throw new IllegalArgumentException(
+					"Argument 'limit' must be positive.");
+		int[] copy = limits.clone();
+		copy[lane.ordinal()] = limit;
+		return new LaneLimits(copy);
+	}
+
+	/**
+	 * Gets the limit for the given lane.
+	 *
+	 * @param lane
+	 *            the lane
+	 * @return the maximum number of messages processed concurrently in the
+	 *         lane, or {@link #UNLIMITED}
+	 */
+	public int get(Lane lane) {
+		return limits[lane.ordinal()];
+	}
+
+	private static int[] createUnlimited() {
+		int[] limits = new int[Lane.values().length];
+		Arrays.fill(limits, UNLIMITED);
+		return limits;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("LaneLimits(");
+		for (Lane lane : Lane.values()) {
+			if (lane.ordinal() > 0)
+				sb.append(", ");
+			sb.append(lane).append('=');
+			int limit = get(lane);
+			sb.append((limit == UNLIMITED) ? "unlimited" : Integer
+					.toString(limit));
+		}
+		return sb.append(')').toString();
+	}
+
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+
+/**
+ * A {@link MessageJournal} backed by an append-only log of memory-mapped
+ * segment files in a directory.
+ * <p>
+ * Appending a message or a completion marker copies a small record into the
+ * mapped segment, without a system call. A background thread forces dirty
+ * segments to disk at a fixed interval (10 milliseconds by default), so
+ * {@code fsync} calls are grouped across all records written in the interval.
+ * Records survive a crash of the process as soon as they are written; only a
+ * crash of the operating system may lose the records of the last interval.
+ * Each record carries a CRC, so a torn record ends the replay of its segment.
+ * <p>
+ * When a segment is full, a new one is started. Segments are deleted once all
+ * messages appended to them and to all older segments have completed. A
+ * message held for a long time thus keeps later segments on disk.
+ * <p>
+ * Messages not completed when the journal was last closed are recovered when
+ * it is opened and can be pushed into a manager with
+ * {@link #replay(AsyncGcmManager)}. Replay is at-least-once; a message may be
+ * sent twice if the process stops during replay or after a message was sent
+ * but before its completion was recorded.
+ * <p>
+ * SLF4J is used for logging.
+ *
+ * @author David R. Bild
+ *
+ */
+public class MappedMessageJournal implements MessageJournal, Closeable {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(MappedMessageJournal.class);
+
+	private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final long DEFAULT_SYNC_MILLIS = 10;
+
+	private static final Pattern SEGMENT_NAME = Pattern
+			.compile("journal-(\\d+)\\.log");
+
+	private static final int MAGIC = 0x47434D4A;
+
+	private static final int HEADER_SIZE = 12;
+
+	private static final int RECORD_OVERHEAD = 8;
+
+	private static final byte APPEND = 1;
+
+	private static final byte COMPLETE = 2;
+
+	private static final Lane[] LANES = Lane.values();
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	private final long syncMillis;
+
+	private final AtomicBoolean dirty;
+
+	private final Thread syncThread;
+
+	private final Object lock = new Object();
+
+	// Guarded by lock
+	private final TreeMap<Long, Segment> segments;
+
+	private final List<Segment> unsynced;
+
+	private Segment active;
+
+	private List<Recovered> recovered;
+
+	private boolean closed;
+
+	/**
+	 * Opens the journal in the specified directory with 64 MB segments and a
+	 * sync interval of 10 milliseconds, recovering uncompleted messages. The
+	 * directory is created if needed.
+	 *
+	 * @param directory
+	 *            the directory holding the segment files
+	 * @return the opened journal
+	 * @throws IOException
+	 *             if the directory or segments cannot be read or created
+	 */
+	public static MappedMessageJournal open(File directory) throws IOException {
+		return open(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_MILLIS);
+	}
+
+	/**
+	 * Opens the journal in the specified directory, recovering uncompleted
+	 * messages. The directory is created if needed.
+	 *
+	 * @param directory
+	 *            the directory holding the segment files
+	 * @param segmentSize
+	 *            the size of each segment file in bytes
+	 * @param syncMillis
+	 *            the interval in milliseconds at which written records are
+	 *            forced to disk
+	 * @return the opened journal
+	 * @throws IOException
+	 *             if the directory or segments cannot be read or created
+	 */
+	public static MappedMessageJournal open(File directory, int segmentSize,
+			long syncMillis) throws IOException {
+		if (segmentSize < 4096)
+			throw new IllegalArgumentException(
+					"Argument 'segmentSize' must be at least 4096.");
+		if (syncMillis <= 0)
+			throw new IllegalArgumentException(
+					"Argument 'syncMillis' must be positive.");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException(String.format(
+					"Failed to create journal directory: %s", directory));
+		MappedMessageJournal journal = new MappedMessageJournal(directory,
+				segmentSize, syncMillis);
+		journal.recover();
+		journal.syncThread.start();
+		return journal;
+	}
+
+	private MappedMessageJournal(File directory, int segmentSize,
+			long syncMillis) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncMillis = syncMillis;
+		this.dirty = new AtomicBoolean();
+		this.segments = new TreeMap<Long, Segment>();
+		this.unsynced = new ArrayList<Segment>();
+		this.recovered = new ArrayList<Recovered>();
+		this.syncThread = new Thread(new SyncRunnable(), "gcm4j-journal-sync");
+		this.syncThread.setDaemon(true);
+	}
+
+	/**
+	 * Gets the number of recovered messages not yet replayed.
+	 *
+	 * @return the number of recovered messages
+	 */
+	public int getRecoveredCount() {
+		synchronized (lock) {
+			return recovered.size();
+		}
+	}
+
+	/**
+	 * Pushes the messages recovered when the journal was opened into the
+	 * specified manager, in their original order and lanes, and marks the
+	 * recovered entries complete. The manager normally journals the messages
+	 * again under new ids.
+	 *
+	 * @param manager
+	 *            the manager into which to push the messages
+	 * @return the number of replayed messages
+	 */
+	public int replay(AsyncGcmManager manager) {
+		List<Recovered> messages;
+		synchronized (lock) {
+			messages = recovered;
+			recovered = new ArrayList<Recovered>();
+		}
+		for (Recovered message : messages) {
+			manager.pushMessage(message.message, message.lane);
+			complete(message.id);
+		}
+		return messages.size();
+	}
+
+	@Override
+	public long append(Message message, Lane lane) {
+		byte[] body = encode(message, lane);
+		synchronized (lock) {
+			checkOpen();
+			Segment segment = ensureSpace(RECORD_OVERHEAD + 9 + body.length);
+			long id = (segment.seq << 32) | segment.appended++;
+			segment.live++;
+			writeRecord(segment, APPEND, id, body);
+			dirty.set(true);
+			return id;
+		}
+	}
+
+	@Override
+	public void complete(long id) {
+		synchronized (lock) {
+			if (closed)
+				return;
+			Segment segment = ensureSpace(RECORD_OVERHEAD + 9);
+			writeRecord(segment, COMPLETE, id, null);
+			dirty.set(true);
+
+			Segment owner = segments.get(id >>> 32);
+			if (owner != null && --owner.live == 0)
+				deleteCompleted();
+		}
+	}
+
+	/**
+	 * Forces all records to disk and closes the segment files. Later appends
+	 * fail and later completions are ignored.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		syncThread.interrupt();
+		try {
+			syncThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (lock) {
+			for (Segment segment : segments.values()) {
+				segment.buffer.force();
+				segment.channel.close();
+			}
+		}
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("Journal is closed.");
+	}
+
+	// ------------------------- Segments -------------------------------------
+	private Segment ensureSpace(int length) {
+		if (length > segmentSize - HEADER_SIZE)
+			throw new IllegalArgumentException(
+					"Message is too large for a journal segment.");
+		if (active.buffer.remaining() < length + 4) {
+			unsynced.add(active);
+			active = createSegment(active.seq + 1);
+		}
+		return active;
+	}
+
+	private Segment createSegment(long seq) {
+		File file = new File(directory, String.format("journal-%d.log", seq));
+		try {
+			Segment segment = mapSegment(seq, file, segmentSize);
+			segment.buffer.putInt(MAGIC);
+			segment.buffer.putLong(seq);
+			segments.put(seq, segment);
+			return segment;
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format(
+					"Failed to create journal segment: %s", file), e);
+		}
+	}
+
+	private static Segment mapSegment(long seq, File file, int size)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		try {
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			return new Segment(seq, file, channel, buffer);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static void writeRecord(Segment segment, byte type, long id,
+			byte[] payload) {
+		int length = 9 + ((payload == null) ? 0 : payload.length);
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (id >>> shift));
+		}
+		if (payload != null)
+			crc.update(payload);
+
+		MappedByteBuffer buffer = segment.buffer;
+		int start = buffer.position();
+		// Write the length last, so a torn record reads as the end
+		buffer.position(start + 4);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(type);
+		buffer.putLong(id);
+		if (payload != null)
+			buffer.put(payload);
+		buffer.putInt(start, length);
+	}
+
+	/**
+	 * Deletes the oldest segments while they hold no uncompleted messages.
+	 * Guarded by lock.
+	 */
+	private void deleteCompleted() {
+		Iterator<Segment> it = segments.values().iterator();
+		while (it.hasNext()) {
+			Segment segment = it.next();
+			if (segment == active || segment.live > 0)
+				return;
+			it.remove();
+			unsynced.remove(segment);
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+				LOGGER.debug("Failed to close journal segment.", e);
+			}
+			if (!segment.file.delete())
+				LOGGER.warn("Failed to delete journal segment: {}",
+						segment.file);
+		}
+	}
+
+	/**
+	 * Forces written records to disk, if any were written since the last
+	 * call.
+	 */
+	private void sync() {
+		if (!dirty.getAndSet(false))
+			return;
+		List<Segment> toSync;
+		synchronized (lock) {
+			toSync = new ArrayList<Segment>(unsynced);
+			unsynced.clear();
+			toSync.add(active);
+		}
+		for (Segment segment : toSync) {
+			try {
+				segment.buffer.force();
+			} catch (RuntimeException e) {
+				// Channel closed by a concurrent deletion
+				LOGGER.debug("Failed to force journal segment.", e);
+			}
+		}
+	}
+
+	// ------------------------- Recovery -------------------------------------
+	private void recover() throws IOException {
+		TreeMap<Long, File> files = new TreeMap<Long, File>();
+		File[] list = directory.listFiles();
+		if (list != null) {
+			for (File file : list) {
+				Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+				if (matcher.matches())
+					files.put(Long.parseLong(matcher.group(1)), file);
+			}
+		}
+
+		Map<Long, Recovered> pending = new LinkedHashMap<Long, Recovered>();
+		long nextSeq = 0;
+		for (Map.Entry<Long, File> entry : files.entrySet()) {
+			long seq = entry.getKey();
+			File file = entry.getValue();
+			nextSeq = seq + 1;
+			Segment segment = mapSegment(seq, file, (int) Math.min(
+					file.length(), Integer.MAX_VALUE));
+			if (segment.buffer.remaining() < HEADER_SIZE
+					|| segment.buffer.getInt() != MAGIC
+					|| segment.buffer.getLong() != seq) {
+				LOGGER.warn("Ignoring invalid journal segment: {}", file);
+				segment.channel.close();
+				continue;
+			}
+			segments.put(seq, segment);
+			readRecords(segment, pending);
+		}
+
+		for (Recovered message : pending.values()) {
+			segments.get(message.id >>> 32).live++;
+		}
+		recovered = new ArrayList<Recovered>(pending.values());
+		if (!recovered.isEmpty())
+			LOGGER.info("Recovered {} uncompleted messages from journal.",
+					recovered.size());
+
+		synchronized (lock) {
+			active = createSegment(nextSeq);
+			deleteCompleted();
+		}
+	}
+
+	private static void readRecords(Segment segment,
+			Map<Long, Recovered> pending) {
+		MappedByteBuffer buffer = segment.buffer;
+		while (buffer.remaining() >= RECORD_OVERHEAD + 9) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			if (length < 9 || length > buffer.remaining() - 4)
+				return;
+			int crc = buffer.getInt();
+			byte[] body = new byte[length];
+			buffer.get(body);
+
+			CRC32 actual = new CRC32();
+			actual.update(body);
+			if ((int) actual.getValue() != crc) {
+				LOGGER.warn("Corrupt record at offset {} in journal segment {}.",
+						start, segment.file);
+				return;
+			}
+
+			long id = 0;
+			for (int i = 1; i < 9; i++) {
+				id = (id << 8) | (body[i] & 0xFF);
+			}
+			switch (body[0]) {
+			case APPEND:
+				try {
+					pending.put(id, decode(id, body));
+				} catch (IOException e) {
+					LOGGER.warn("Failed to decode journaled message.", e);
+				}
+				break;
+			case COMPLETE:
+				pending.remove(id);
+				break;
+			default:
+				return;
+			}
+		}
+	}
+
+	// ------------------------- Encoding -------------------------------------
+	private static byte[] encode(Message message, Lane lane) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(lane.ordinal());
+			out.writeUTF(message.getRegistrationId());
+			out.writeUTF(message.getCollapseKey());
+			out.writeBoolean(message.delayWhileIdle());
+			out.writeInt(message.timeToLive());
+			Map<String, String> data = message.getData();
+			out.writeInt(data.size());
+			for (Map.Entry<String, String> entry : data.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+		} catch (IOException e) {
+			// Only for strings over 64 KB, far beyond the GCM payload limit
+			throw new IllegalArgumentException(
+					"Message is too large to journal.", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Recovered decode(long id, byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				body, 9, body.length - 9));
+		int lane = in.readByte();
+		if (lane < 0 || lane >= LANES.length)
+			throw new IOException(String.format("Invalid lane: %d", lane));
+		MessageBuilder builder = new MessageBuilder()
+				.registrationId(in.readUTF()).collapseKey(in.readUTF())
+				.delayWhileIdle(in.readBoolean()).timeToLive(in.readInt());
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			builder.put(in.readUTF(), in.readUTF());
+		}
+		return new Recovered(id, builder.build(), LANES[lane]);
+	}
+
+	/**
+	 * A mapped segment file and the number of its appended messages not yet
+	 * completed.
+	 */
+	private static class Segment {
+		private final long seq;
+
+		private final File file;
+
+		private final FileChannel channel;
+
+		private final MappedByteBuffer buffer;
+
+		private int appended;
+
+		private int live;
+
+		public Segment(long seq, File file, FileChannel channel,
+				MappedByteBuffer buffer) {
+			this.seq = seq;
+			this.file = file;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * A message recovered from the journal.
+	 */
+	private static class Recovered {
+		private final long id;
+
+		private final Message message;
+
+		private final Lane lane;
+
+		public Recovered(long id, Message message, Lane lane) {
+			this.id = id;
+			this.message = message;
+			this.lane = lane;
+		}
+	}
+
+	/**
+	 * Periodically forces written records to disk.
+	 */
+	private class SyncRunnable implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(syncMillis);
+				} catch (InterruptedException e) {
+					sync();
+					return;
+				}
+				sync();
+			}
+		}
+	}
+
+}
@@ -15,6 +15,8 @@
  */
 package com.bethzur.gcm4j.async;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.bethzur.gcm4j.Message;
 import com.bethzur.gcm4j.async.handler.Context;
 import com.bethzur.gcm4j.async.handler.MessageDecision;
@@ -27,6 +29,19 @@ import com.bethzur.gcm4j.async.handler.MessageDecision;
  */
 class MessageContext extends AbstractContext<Message, MessageDecision> {
 
+	/**
+	 * Dispatches held messages again once resumed.
+	 */
+	interface Resumer {
+		public void resume(MessageContext context);
+	}
+
+	/**
+	 * The resumer while the message passes the dequeue filters, otherwise
+	 * {@code null}.
+	 */
+	private Resumer resumer;
+
 	/**
 	 * Constructs a new {@code MessageContext} wrapping the given
 	 * {@code FutureResponse} and {@code Message}.
@@ -37,23 +52,89 @@ class MessageContext extends AbstractContext<Message, MessageDecision> {
 	 *            the message
 	 */
 	public MessageContext(FutureResponse futureResponse, Message message) {
-		super(futureResponse, message, MessageDecision.SEND);
+		this(futureResponse, message, Lane.NORMAL);
+	}
+
+	/**
+	 * Constructs a new {@code MessageContext} wrapping the given
+	 * {@code FutureResponse} and {@code Message}, queued in the given lane.
+	 * 
+	 * @param futureResponse
+	 *            the {@code FutureResponse} for the message
+	 * @param message
+	 *            the message
+	 * @param lane
+	 *            the lane in which the message is queued
+	 */
+	public MessageContext(FutureResponse futureResponse, Message message,
+			Lane lane) {
+		super(futureResponse, message, lane, MessageDecision.SEND);
 	}
 
 	/**
 	 * Constructs a new {@code AbstractContext} from an existing context,
-	 * object, and initial decision. The future, delay, and internal context map
-	 * are copied. This constructor is useful for transforming, for example, a
-	 * {@link ResponseContext} into a {@code MessageContext} when the message
-	 * should be retried.
+	 * object, and initial decision. The future and delay are copied and the
+	 * attributes are shared. This constructor is useful for transforming, for
+	 * example, a {@link ResponseContext} into a {@code MessageContext} when the
+	 * message should be retried. The new context is queued in the retry lane
+	 * for the lane of the existing context.
 	 * 
 	 * @param context
-	 *            the context whose future, delay, and context map to copy.
+	 *            the context whose future, delay, and attributes to use.
 	 * @param message
 	 *            the message
 	 */
 	public MessageContext(AbstractContext<?, ?> context, Message message) {
-		super(context, message, MessageDecision.SEND);
+		this(context, message, context.getLane().forRetry());
+	}
+
+	private MessageContext(AbstractContext<?, ?> context, Message message,
+			Lane lane) {
+		super(context, message, lane, MessageDecision.SEND);
+	}
+
+	/**
+	 * Allows dequeue filters to hold the message, resuming it with the given
+	 * resumer.
+	 * 
+	 * @param resumer
+	 *            the resumer, or {@code null} to disallow holding
+	 */
+	void setResumer(Resumer resumer) {
+		this.resumer = resumer;
+	}
+
+	@Override
+	public Runnable hold() {
+		if (resumer == null)
+			return super.hold();
+		setDecision(MessageDecision.HOLD);
+		// Resume a copy, since this context is still being filtered
+		return new ResumeRunnable(resumer, new MessageContext(this, unwrap(),
+				getLane()));
+	}
+
+	/**
+	 * Resumes a held message at most once.
+	 */
+	private static class ResumeRunnable implements Runnable {
+		private final Resumer resumer;
+
+		private final MessageContext context;
+
+		private final AtomicBoolean resumed;
+
+		public ResumeRunnable(Resumer resumer, MessageContext context) {
+			this.resumer = resumer;
+			this.context = context;
+			this.resumed = new AtomicBoolean(false);
+		}
+
+		@Override
+		public void run() {
+			if (resumed.compareAndSet(false, true))
+				resumer.resume(context);
+		}
 	}
 
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import com.bethzur.gcm4j.Message;
+
+/**
+ * A durable record of the messages held by an {@link AsyncGcmManager}. Each
+ * message is appended when pushed and marked complete when its future
+ * completes, so that messages still held when the process stops can be
+ * replayed after a restart.
+ * <p>
+ * Implementations must be thread-safe. They should not add blocking I/O to
+ * the calling thread, since both methods are called on the send path.
+ *
+ * @author David R. Bild
+ *
+ */
+public interface MessageJournal {
+
+	/**
+	 * Records a newly pushed message.
+	 *
+	 * @param message
+	 *            the message
+	 * @param lane
+	 *            the lane in which the message is queued
+	 * @return the id of the journal entry
+	 */
+	public long append(Message message, Lane lane);
+
+	/**
+	 * Records that the future of a message has completed, so the message need
+	 * not be replayed.
+	 *
+	 * @param id
+	 *            the id returned by {@link #append(Message, Lane)}
+	 */
+	public void complete(long id);
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number of messages an {@link AsyncGcmManager} holds, counting
+ * every message accepted by {@link AsyncGcmManager#pushMessage(com.bethzur.gcm4j.Message)
+ * pushMessage} until its future completes, whether it is waiting to be sent,
+ * delayed for a retry, or in flight. The {@link OverflowPolicy} decides what
+ * happens to a new message when the bound is reached.
+ * <p>
+ * Instances are immutable and can be obtained from the static factory
+ * methods.
+ *
+ * @author David R. Bild
+ *
+ */
+public final class QueueBound {
+
+	/**
+	 * What to do with a new message when the bound is reached.
+	 */
+	public static enum OverflowPolicy {
+		/**
+		 * Block the caller of {@code pushMessage} until room is available or
+		 * the timeout expires. On timeout, the message is rejected.
+		 */
+		BLOCK,
+		/**
+		 * Reject the message immediately. The returned future fails with a
+		 * {@link java.util.concurrent.RejectedExecutionException
+		 * RejectedExecutionException}.
+		 */
+		REJECT,
+		/**
+		 * Accept the message and cancel the oldest message still held. A
+		 * cancelled message that is already in flight completes in the
+		 * background, but its result is discarded.
+		 */
+		DROP_OLDEST
+	}
+
+	private static final QueueBound UNBOUNDED = new QueueBound(
+			Integer.MAX_VALUE, OverflowPolicy.REJECT, 0);
+
+	private final int capacity;
+
+	private final OverflowPolicy policy;
+
+	private final long timeoutMillis;
+
+	private QueueBound(int capacity, OverflowPolicy policy, long timeoutMillis) {
+		if (capacity < 1)
+			throw new IllegalArgumentException(
+					"Argument 'capacity' must be positive.");
+		if (timeoutMillis < 0)
+			throw new IllegalArgumentException(
+					"Argument 'timeout' may not be negative.");
+		this.capacity = capacity;
+		this.policy = policy;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Returns a bound that accepts any number of messages.
+	 *
+	 * @return the unbounded bound
+	 */
+	public static QueueBound unbounded() {
+		return UNBOUNDED;
+	}
+
+	/**
+	 * Returns a bound that blocks the caller when {@code capacity} messages
+	 * are held, rejecting the message if no room becomes available within the
+	 * timeout.
+	 *
+	 * @param capacity
+	 *            the maximum number of messages held
+	 * @param timeout
+	 *            the maximum time to block
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the bound
+	 */
+	public static QueueBound block(int capacity, long timeout, TimeUnit unit) {
+		return new QueueBound(capacity, OverflowPolicy.BLOCK,
+				unit.toMillis(timeout));
+	}
+
+	/**
+	 * Returns a bound that rejects new messages when {@code capacity} messages
+	 * are held.
+	 *
+	 * @param capacity
+	 *            the maximum number of messages held
+	 * @return the bound
+	 */
+	public static QueueBound reject(int capacity) {
+		return new QueueBound(capacity, OverflowPolicy.REJECT, 0);
+	}
+
+	/**
+	 * Returns a bound that cancels the oldest held message to make room for a
+	 * new one when {@code capacity} messages are held.
+	 *
+	 * @param capacity
+	 *            the maximum number of messages held
+	 * @return the bound
+	 */
+	public static QueueBound dropOldest(int capacity) {
+		return new QueueBound(capacity, OverflowPolicy.DROP_OLDEST, 0);
+	}
+
+	/**
+	 * Indicates if this bound accepts any number of messages.
+	 *
+	 * @return {@code true} if unbounded
+	 */
+	public boolean isUnbounded() {
+		return this == UNBOUNDED;
+	}
+
+	/**
+	 * Gets the maximum number of messages held.
+	 *
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the policy applied when the bound is reached.
+	 *
+	 * @return the overflow policy
+	 */
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Gets the maximum time (in milliseconds) to block for
+	 * {@link OverflowPolicy#BLOCK}.
+	 *
+	 * @return the timeout in milliseconds
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	@Override
+	public String toString() {
+		if (isUnbounded())
+			return "QueueBound(unbounded)";
+		return String.format(
+				"QueueBound(capacity=%d, policy=%s, timeoutMillis=%d)",
+				capacity, policy, timeoutMillis);
+	}
+
+}
@@ -37,23 +37,23 @@ class ResponseContext extends AbstractContext<Response, ResultDecision> {
 	 *            the response
 	 */
 	public ResponseContext(FutureResponse futureResponse, Response response) {
-		super(futureResponse, response, ResultDecision.RETURN);
+		super(futureResponse, response, Lane.NORMAL, ResultDecision.RETURN);
 	}
 
 	/**
 	 * Constructs a new {@code AbstractContext} from an existing context,
-	 * object, and initial decision. The future, delay, and internal context map
-	 * are copied. This constructor is useful for transforming, for example, a
-	 * {@link MessageContext} into a {@code ResponseContext} when the response
-	 * is received.
+	 * object, and initial decision. The future and delay are copied and the
+	 * attributes are shared. This constructor is useful for transforming, for
+	 * example, a {@link MessageContext} into a {@code ResponseContext} when the
+	 * response is received.
 	 * 
 	 * @param context
-	 *            the context whose future, delay, and context map to copy.
+	 *            the context whose future, delay, and attributes to use.
 	 * @param message
 	 *            the response
 	 */
 	public ResponseContext(AbstractContext<?, ?> context, Response response) {
-		super(context, response, ResultDecision.RETURN);
+		super(context, response, context.getLane(), ResultDecision.RETURN);
 	}
 
 }
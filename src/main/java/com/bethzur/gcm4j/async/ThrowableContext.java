@@ -36,23 +36,23 @@ class ThrowableContext extends AbstractContext<Throwable, ResultDecision> {
 	 *            the throwable
 	 */
 	public ThrowableContext(FutureResponse futureResponse, Throwable throwable) {
-		super(futureResponse, throwable, ResultDecision.RETURN);
+		super(futureResponse, throwable, Lane.NORMAL, ResultDecision.RETURN);
 	}
 
 	/**
 	 * Constructs a new {@code AbstractContext} from an existing context,
-	 * object, and initial decision. The future, delay, and internal context map
-	 * are copied. This constructor is useful for transforming, for example, a
-	 * {@link MessageContext} into a {@code ThrowableContext} when the exception
-	 * is caught.
+	 * object, and initial decision. The future and delay are copied and the
+	 * attributes are shared. This constructor is useful for transforming, for
+	 * example, a {@link MessageContext} into a {@code ThrowableContext} when
+	 * the exception is caught.
 	 * 
 	 * @param context
-	 *            the context whose future, delay, and context map to copy.
+	 *            the context whose future, delay, and attributes to use.
 	 * @param message
 	 *            the throwable
 	 */
 	public ThrowableContext(AbstractContext<?, ?> context, Throwable throwable) {
-		super(context, throwable, ResultDecision.RETURN);
+		super(context, throwable, context.getLane(), ResultDecision.RETURN);
 	}
 
 }
@@ -0,0 +1,486 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+import com.bethzur.gcm4j.UnexpectedResponseException;
+
+/**
+ * A message filter and response/throwable handler that limits the number of
+ * requests in flight to the GCM service, adapting the limit at runtime with
+ * an additive-increase/multiplicative-decrease (AIMD) rule.
+ * <p>
+ * The limit grows by about one per round trip while responses are healthy. It
+ * shrinks by the backoff ratio, at most once per round trip, on a congestion
+ * signal: a {@link ResponseType#ServiceUnavailable ServiceUnavailable},
+ * {@link ResponseType#QuotaExceeded QuotaExceeded}, or
+ * {@link ResponseType#InternalError InternalError} response, an exception, or
+ * a response latency more than the latency tolerance times the lowest
+ * observed latency. Thus the limit tracks the actual capacity of the service
+ * instead of overshooting into a storm of {@code 503} responses.
+ * <p>
+ * A message dequeued while the limit is reached is held (see
+ * {@link Context#hold()}) in arrival order. Whenever a request completes, the
+ * oldest held message is granted its slot and resumed, so waiting messages
+ * neither poll nor pass through the enqueue filters again. A granted slot
+ * returns if the message is completed (e.g., shed) before it is sent, or
+ * delayed by another filter. Combined with a
+ * {@link com.bethzur.gcm4j.NonBlockingGcmManager NonBlockingGcmManager}, the
+ * limiter rather than the executor size bounds the concurrency.
+ * <p>
+ * The limiter must see the final decision of the dequeue filters, so it should
+ * be appended after all other filters. It handles all responses and, as
+ * throwable handler, {@link IOException} and
+ * {@link UnexpectedResponseException} (see
+ * {@link AsyncHandlers#appendThrowableHandler(Class, ThrowableHandler)}).
+ * The slot of a request that ends otherwise, e.g., with a
+ * {@link RuntimeException}, is reclaimed after a lease timeout of one minute,
+ * or the limiter can be registered for those types as well.
+ *
+ * @author David R. Bild
+ *
+ */
+public class AdaptiveConcurrencyLimiter implements MessageFilter,
+		ResponseHandler<Response>, ThrowableHandler<Throwable> {
+	static final ContextKey<Lease> CONTEXT_KEY = ContextKey
+			.create(AdaptiveConcurrencyLimiter.class.getCanonicalName());
+
+	private static final int DEFAULT_INITIAL_LIMIT = 20;
+	private static final int DEFAULT_MIN_LIMIT = 1;
+	private static final int DEFAULT_MAX_LIMIT = 1000;
+	private static final double DEFAULT_BACKOFF_RATIO = 0.9;
+	private static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+	private static final long LEASE_NANOS = TimeUnit.MINUTES.toNanos(1);
+	private static final int MIN_LATENCY_RESET_SAMPLES = 10000;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final double backoffRatio;
+
+	private final double latencyTolerance;
+
+	private final AtomicInteger inFlight;
+
+	private final ConcurrentMap<Lease, Boolean> leases;
+
+	private final AtomicLong lastSweep;
+
+	private final Queue<Waiter> waiters;
+
+	/**
+	 * Requests to release waiters; only the thread raising it from zero
+	 * releases them.
+	 */
+	private final AtomicInteger releasing;
+
+	// Guarded by this
+	private double limit;
+
+	private long minLatency;
+
+	private long lastDecrease;
+
+	private int samples;
+
+	/**
+	 * Constructs a new limiter with an initial limit of 20, bounds of 1 and
+	 * 1000, a backoff ratio of 0.9, and a latency tolerance of 2.
+	 */
+	public AdaptiveConcurrencyLimiter() {
+		this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT,
+				DEFAULT_BACKOFF_RATIO, DEFAULT_LATENCY_TOLERANCE);
+	}
+
+	/**
+	 * Constructs a new limiter.
+	 *
+	 * @param initialLimit
+	 *            the initial number of requests allowed in flight
+	 * @param minLimit
+	 *            the lower bound of the limit
+	 * @param maxLimit
+	 *            the upper bound of the limit
+	 * @param backoffRatio
+	 *            the factor, between 0 and 1, by which the limit is
+	 *            multiplied on congestion
+	 * @param latencyTolerance
+	 *            the factor, greater than 1, by which the latency may exceed
+	 *            the lowest observed latency before it is treated as
+	 *            congestion
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit,
+			int maxLimit, double backoffRatio, double latencyTolerance) {
+		if (minLimit < 1 || maxLimit < minLimit)
+			throw new IllegalArgumentException(
+					"Arguments must satisfy 1 <= minLimit <= maxLimit.");
+		if (initialLimit < minLimit || initialLimit > maxLimit)
+			throw new IllegalArgumentException(
+					"Argument 'initialLimit' must be between minLimit and maxLimit.");
+		if (backoffRatio <= 0 || backoffRatio >= 1)
+			throw new IllegalArgumentException(
+					"Argument 'backoffRatio' must be between 0 and 1.");
+		if (latencyTolerance <= 1)
+			throw new IllegalArgumentException(
+					"Argument 'latencyTolerance' must be greater than 1.");
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.backoffRatio = backoffRatio;
+		this.latencyTolerance = latencyTolerance;
+		this.inFlight = new AtomicInteger();
+		this.leases = new ConcurrentHashMap<Lease, Boolean>();
+		this.lastSweep = new AtomicLong(System.nanoTime());
+		this.waiters = new ConcurrentLinkedQueue<Waiter>();
+		this.releasing = new AtomicInteger();
+		this.limit = initialLimit;
+		this.minLatency = Long.MAX_VALUE;
+		this.lastDecrease = System.nanoTime();
+		this.samples = 0;
+	}
+
+	/**
+	 * Constructs a new limiter with default parameters and registers the
+	 * underlying filters and handlers with the provided {@link AsyncHandlers}
+	 * instance.
+	 *
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public AdaptiveConcurrencyLimiter(AsyncHandlers handlers) {
+		this();
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new limiter and registers the underlying filters and
+	 * handlers with the provided {@link AsyncHandlers} instance.
+	 *
+	 * @param initialLimit
+	 *            the initial number of requests allowed in flight
+	 * @param minLimit
+	 *            the lower bound of the limit
+	 * @param maxLimit
+	 *            the upper bound of the limit
+	 * @param backoffRatio
+	 *            the factor, between 0 and 1, by which the limit is
+	 *            multiplied on congestion
+	 * @param latencyTolerance
+	 *            the factor, greater than 1, by which the latency may exceed
+	 *            the lowest observed latency before it is treated as
+	 *            congestion
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit,
+			int maxLimit, double backoffRatio, double latencyTolerance,
+			AsyncHandlers handlers) {
+		this(initialLimit, minLimit, maxLimit, backoffRatio, latencyTolerance);
+		register(handlers);
+	}
+
+	private void register(AsyncHandlers handlers) {
+		handlers.appendDequeueFilter(this);
+		for (ResponseType type : ResponseType.values()) {
+			handlers.appendResponseHandler(type, this);
+		}
+		handlers.appendThrowableHandler(IOException.class, this);
+		handlers.appendThrowableHandler(UnexpectedResponseException.class,
+				this);
+	}
+
+	/**
+	 * Gets the current limit on requests in flight.
+	 *
+	 * @return the current limit
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Gets the number of requests in flight.
+	 *
+	 * @return the number of requests in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Gets the number of messages held until a slot becomes available.
+	 *
+	 * @return the number of held messages
+	 */
+	public int getWaiting() {
+		return waiters.size();
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		// Limits requests in flight only
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			Lease granted = context.get(CONTEXT_KEY);
+			if (context.getDelay() > 0) {
+				// Delayed by another filter after it was resumed
+				if (granted != null)
+					release(context, granted);
+				return;
+			}
+			if (granted != null) {
+				if (granted.claim()) {
+					// Resumed with a slot
+					granted.start = System.nanoTime();
+					return;
+				}
+				// Returned meanwhile
+				context.put(CONTEXT_KEY, null);
+			}
+			// Queue behind earlier waiters
+			if (waiters.isEmpty() && tryAcquire()) {
+				context.put(CONTEXT_KEY, acquireLease());
+			} else {
+				waiters.add(new Waiter(context, context.hold()));
+				// A slot may have been freed before the waiter was added
+				releaseWaiters();
+			}
+			return;
+		default:
+			return;
+		}
+	}
+
+	private boolean tryAcquire() {
+		sweepExpiredLeases();
+		int max = getLimit();
+		while (true) {
+			int current = inFlight.get();
+			if (current >= max)
+				return false;
+			if (inFlight.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	private Lease acquireLease() {
+		Lease lease = new Lease(System.nanoTime());
+		lease.claim();
+		leases.put(lease, Boolean.TRUE);
+		return lease;
+	}
+
+	/**
+	 * Grants a slot to a held message, to be claimed when it is dequeued
+	 * again. The slot returns if the message completes first.
+	 */
+	private Lease grantLease(Context<?, ?> context) {
+		Lease lease = new Lease(System.nanoTime());
+		leases.put(lease, Boolean.TRUE);
+		context.put(CONTEXT_KEY, lease);
+		context.addCompletionListener(lease);
+		return lease;
+	}
+
+	/**
+	 * Releases the lease of the context, if any.
+	 *
+	 * @return the latency of the request in nanoseconds, or -1 if the context
+	 *         held no lease
+	 */
+	private long release(Context<?, ResultDecision> context) {
+		Lease lease = context.get(CONTEXT_KEY);
+		if (lease == null)
+			return -1;
+		return release(context, lease);
+	}
+
+	private long release(Context<?, ?> context, Lease lease) {
+		context.put(CONTEXT_KEY, null);
+		if (!release(lease))
+			return -1;
+		return System.nanoTime() - lease.start;
+	}
+
+	/**
+	 * Returns the slot of the lease and hands it to the oldest waiter.
+	 *
+	 * @return {@code false} if the lease was already released
+	 */
+	private boolean release(Lease lease) {
+		if (leases.remove(lease) == null)
+			return false;
+		inFlight.decrementAndGet();
+		releaseWaiters();
+		return true;
+	}
+
+	/**
+	 * Grants free slots to the oldest waiters and resumes them.
+	 */
+	private void releaseWaiters() {
+		if (releasing.getAndIncrement() != 0)
+			return;
+		int requests = 1;
+		do {
+			while (!waiters.isEmpty() && tryAcquire()) {
+				Waiter waiter = waiters.poll();
+				if (waiter == null) {
+					inFlight.decrementAndGet();
+					break;
+				}
+				grantLease(waiter.context);
+				waiter.resume.run();
+			}
+			requests = releasing.addAndGet(-requests);
+		} while (requests != 0);
+	}
+
+	private void sweepExpiredLeases() {
+		long now = System.nanoTime();
+		long last = lastSweep.get();
+		if (now - last < LEASE_NANOS / 4 || !lastSweep.compareAndSet(last, now))
+			return;
+
+		boolean expired = false;
+		Iterator<Lease> it = leases.keySet().iterator();
+		while (it.hasNext()) {
+			Lease lease = it.next();
+			if (now - lease.start > LEASE_NANOS && leases.remove(lease) != null) {
+				inFlight.decrementAndGet();
+				expired = true;
+			}
+		}
+		if (expired) {
+			recordCongestion(now);
+			releaseWaiters();
+		}
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		long latency = release(context);
+		if (latency < 0)
+			return;
+
+		switch (context.unwrap().getResponseType()) {
+		case ServiceUnavailable:
+		case QuotaExceeded:
+		case InternalError:
+			recordCongestion(System.nanoTime());
+			return;
+		default:
+			recordLatency(latency);
+			return;
+		}
+	}
+
+	// ------------------------- Handle Throwables ----------------------------
+	@Override
+	public void handleThrowable(Context<Throwable, ResultDecision> context) {
+		if (release(context) >= 0)
+			recordCongestion(System.nanoTime());
+	}
+
+	private synchronized void recordLatency(long latency) {
+		if (++samples >= MIN_LATENCY_RESET_SAMPLES) {
+			// Forget the old minimum, in case the baseline has shifted
+			samples = 0;
+			minLatency = latency;
+		} else if (latency < minLatency) {
+			minLatency = latency;
+		}
+
+		if (latency > latencyTolerance * minLatency) {
+			recordCongestion(System.nanoTime());
+		} else {
+			limit = Math.min(maxLimit, limit + 1.0 / limit);
+		}
+	}
+
+	private synchronized void recordCongestion(long now) {
+		// Decrease at most once per round trip
+		long roundTrip = (minLatency == Long.MAX_VALUE) ? 0 : minLatency;
+		if (now - lastDecrease < roundTrip)
+			return;
+		lastDecrease = now;
+		limit = Math.max(minLimit, limit * backoffRatio);
+	}
+
+	/**
+	 * The slot of one request in flight. A slot granted to a held message is
+	 * unclaimed until the message is dequeued again, and returns if the
+	 * future of the message completes before.
+	 */
+	private class Lease implements Runnable {
+		private volatile long start;
+
+		private final AtomicBoolean claimed;
+
+		public Lease(long start) {
+			this.start = start;
+			this.claimed = new AtomicBoolean(false);
+		}
+
+		public boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+
+		@Override
+		public void run() {
+			if (claim())
+				release(this);
+		}
+	}
+
+	/**
+	 * A message held until a slot becomes available.
+	 */
+	private static class Waiter {
+		private final Context<Message, MessageDecision> context;
+
+		private final Runnable resume;
+
+		public Waiter(Context<Message, MessageDecision> context,
+				Runnable resume) {
+			this.context = context;
+			this.resume = resume;
+		}
+	}
+
+}
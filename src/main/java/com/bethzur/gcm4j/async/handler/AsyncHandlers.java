@@ -67,8 +67,10 @@ public interface AsyncHandlers {
 	/**
 	 * Appends a new handler to the throwable handler chain. The handlers will
 	 * be called when an exception is thrown while processing a message or
-	 * handling a response. A handler that accepts multiple types must be
-	 * registered once for each type.
+	 * handling a response. The handler accepts throwables of the given type
+	 * and its subtypes. A handler that accepts multiple unrelated types must be
+	 * registered once for each type, but is called at most once per
+	 * throwable.
 	 *
 	 * @param type
 	 *            the type of throwable that the handler accepts
@@ -78,6 +80,19 @@ public interface AsyncHandlers {
 	public <T extends Throwable> void appendThrowableHandler(
 			Class<? extends T> type, ThrowableHandler<T> handler);
 
+	/**
+	 * Sets the sink for messages that finally failed, i.e., whose
+	 * non-success response or throwable is returned instead of retried, or
+	 * that were rejected without being sent. Replaces any previously set
+	 * sink. Leave the sink unset for a manager fed by a
+	 * {@link com.bethzur.gcm4j.async.CompactBacklog}, whose listener receives
+	 * the final failures instead.
+	 *
+	 * @param sink
+	 *            the dead-letter sink, or {@code null} for none
+	 */
+	public void setDeadLetterSink(DeadLetterSink sink);
+
 	/**
 	 * Filters the message through the full enqueue filter chain.
 	 *
@@ -113,4 +128,26 @@ public interface AsyncHandlers {
 	 */
 	public <T extends Throwable> void handleThrowable(
 			Context<T, ResultDecision> throwableContext);
+
+	/**
+	 * Passes a message whose non-success response is returned to the
+	 * dead-letter sink, if any.
+	 *
+	 * @param message
+	 *            the failed message
+	 * @param response
+	 *            the returned response
+	 */
+	public void deadLetter(Message message, Response response);
+
+	/**
+	 * Passes a message whose throwable is returned to the dead-letter sink, if
+	 * any.
+	 *
+	 * @param message
+	 *            the failed message
+	 * @param throwable
+	 *            the returned throwable
+	 */
+	public void deadLetter(Message message, Throwable throwable);
 }
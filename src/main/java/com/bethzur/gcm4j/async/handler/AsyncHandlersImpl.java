@@ -15,60 +15,87 @@
  */
 package com.bethzur.gcm4j.async.handler;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.bethzur.gcm4j.Message;
 import com.bethzur.gcm4j.Response;
 import com.bethzur.gcm4j.ResponseType;
-import com.bethzur.gcm4j.util.CopyOnWriteArrayListMultimap;
 
 /**
  * Implementation of {@code AsyncHandlers}. Can be instantiated using the
  * factory methods in {@link AsyncHandlersFactory}.
+ * <p>
+ * The filter and handler chains are compiled into arrays that are replaced
+ * atomically whenever a filter or handler is appended, so dispatch is a plain
+ * array walk without locking. Response chains are indexed by the ordinal of
+ * the {@link ResponseType}. The throwable chain for each concrete throwable
+ * class is resolved against the class hierarchy on first use and cached until
+ * the next throwable handler is appended.
  * 
  * @author David R. Bild
  * 
  */
 class AsyncHandlersImpl implements AsyncHandlers {
-	private CopyOnWriteArrayListMultimap<ResponseType, ResponseHandler<? extends Response>> responseHandlers;
+	private static final MessageFilter[] NO_FILTERS = new MessageFilter[0];
 
-	private CopyOnWriteArrayListMultimap<Class<? extends Throwable>, ThrowableHandler<? extends Throwable>> throwableHandlers;
+	private static final ThrowableHandler<?>[] NO_THROWABLE_HANDLERS = new ThrowableHandler<?>[0];
 
-	private List<MessageFilter> enqueueFilters;
+	private volatile MessageFilter[] enqueueFilters;
 
-	private List<MessageFilter> dequeueFilters;
+	private volatile MessageFilter[] dequeueFilters;
+
+	private volatile ResponseHandler<?>[][] responseHandlers;
+
+	private volatile ConcurrentMap<Class<?>, ThrowableHandler<?>[]> throwableHandlers;
+
+	// Guarded by this
+	private final List<ThrowableRegistration> throwableRegistrations;
+
+	private volatile DeadLetterSink deadLetterSink;
 
 	/**
 	 * Constructs a new intance.
 	 */
 	public AsyncHandlersImpl() {
-		responseHandlers = CopyOnWriteArrayListMultimap.create();
-		throwableHandlers = CopyOnWriteArrayListMultimap.create();
-		enqueueFilters = new CopyOnWriteArrayList<MessageFilter>();
-		dequeueFilters = new CopyOnWriteArrayList<MessageFilter>();
+		enqueueFilters = NO_FILTERS;
+		dequeueFilters = NO_FILTERS;
+		responseHandlers = new ResponseHandler<?>[ResponseType.values().length][0];
+		throwableHandlers = new ConcurrentHashMap<Class<?>, ThrowableHandler<?>[]>();
+		throwableRegistrations = new ArrayList<ThrowableRegistration>();
 	}
 
 	@Override
-	public void appendEnqueueFilter(MessageFilter filter) {
-		enqueueFilters.add(filter);
+	public synchronized void appendEnqueueFilter(MessageFilter filter) {
+		enqueueFilters = append(enqueueFilters, filter);
 	}
 
 	@Override
-	public void appendDequeueFilter(MessageFilter filter) {
-		dequeueFilters.add(filter);
+	public synchronized void appendDequeueFilter(MessageFilter filter) {
+		dequeueFilters = append(dequeueFilters, filter);
 	}
 
 	@Override
-	public <T extends Response> void appendResponseHandler(ResponseType type,
-			ResponseHandler<T> handler) {
-		responseHandlers.put(type, handler);
+	public synchronized <T extends Response> void appendResponseHandler(
+			ResponseType type, ResponseHandler<T> handler) {
+		ResponseHandler<?>[][] chains = responseHandlers.clone();
+		chains[type.ordinal()] = append(chains[type.ordinal()], handler);
+		responseHandlers = chains;
 	}
 
 	@Override
-	public <T extends Throwable> void appendThrowableHandler(
+	public synchronized <T extends Throwable> void appendThrowableHandler(
 			Class<? extends T> type, ThrowableHandler<T> handler) {
-		throwableHandlers.put(type, handler);
+		throwableRegistrations.add(new ThrowableRegistration(type, handler));
+		throwableHandlers = new ConcurrentHashMap<Class<?>, ThrowableHandler<?>[]>();
+	}
+
+	@Override
+	public void setDeadLetterSink(DeadLetterSink sink) {
+		this.deadLetterSink = sink;
 	}
 
 	public void filterMessageEnqueue(
@@ -91,8 +118,8 @@ class AsyncHandlersImpl implements AsyncHandlers {
 	@Override
 	public <R extends Response> void handleResponse(
 			Context<R, ResultDecision> responseContext) {
-		for (ResponseHandler<? extends Response> h : responseHandlers
-				.get(responseContext.unwrap().getResponseType())) {
+		for (ResponseHandler<?> h : responseHandlers[responseContext.unwrap()
+				.getResponseType().ordinal()]) {
 			((ResponseHandler<R>) h).handleResponse(responseContext);
 		}
 	}
@@ -103,9 +130,73 @@ class AsyncHandlersImpl implements AsyncHandlers {
 	@Override
 	public <T extends Throwable> void handleThrowable(
 			Context<T, ResultDecision> throwableContext) {
-		for (ThrowableHandler<? extends Throwable> h : throwableHandlers
-				.get(throwableContext.unwrap().getClass())) {
+		Class<?> type = throwableContext.unwrap().getClass();
+		ThrowableHandler<?>[] chain = throwableHandlers.get(type);
+		if (chain == null)
+			chain = resolveThrowableHandlers(type);
+		for (ThrowableHandler<?> h : chain) {
 			((ThrowableHandler<T>) h).handleThrowable(throwableContext);
 		}
 	}
+
+	/**
+	 * Compiles and caches the chain for a concrete throwable class: every
+	 * handler registered for the class or a superclass or interface of it, in
+	 * the order appended, each handler at most once.
+	 */
+	private synchronized ThrowableHandler<?>[] resolveThrowableHandlers(
+			Class<?> type) {
+		List<ThrowableHandler<?>> chain = new ArrayList<ThrowableHandler<?>>();
+		for (ThrowableRegistration registration : throwableRegistrations) {
+			if (registration.type.isAssignableFrom(type)
+					&& !containsIdentical(chain, registration.handler))
+				chain.add(registration.handler);
+		}
+		ThrowableHandler<?>[] compiled = chain.isEmpty() ? NO_THROWABLE_HANDLERS
+				: chain.toArray(new ThrowableHandler<?>[chain.size()]);
+		throwableHandlers.put(type, compiled);
+		return compiled;
+	}
+
+	private static boolean containsIdentical(List<?> list, Object element) {
+		for (Object e : list) {
+			if (e == element)
+				return true;
+		}
+		return false;
+	}
+
+	private static <E> E[] append(E[] array, E element) {
+		E[] appended = Arrays.copyOf(array, array.length + 1);
+		appended[array.length] = element;
+		return appended;
+	}
+
+	@Override
+	public void deadLetter(Message message, Response response) {
+		DeadLetterSink sink = deadLetterSink;
+		if (sink != null)
+			sink.deadLetter(message, response);
+	}
+
+	@Override
+	public void deadLetter(Message message, Throwable throwable) {
+		DeadLetterSink sink = deadLetterSink;
+		if (sink != null)
+			sink.deadLetter(message, throwable);
+	}
+
+	/**
+	 * A throwable handler and the type for which it was appended.
+	 */
+	private static class ThrowableRegistration {
+		private final Class<?> type;
+
+		private final ThrowableHandler<?> handler;
+
+		public ThrowableRegistration(Class<?> type, ThrowableHandler<?> handler) {
+			this.type = type;
+			this.handler = handler;
+		}
+	}
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+import com.bethzur.gcm4j.PayloadTemplate;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+import com.bethzur.gcm4j.SuccessResponse;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A message filter and response handler that applies the canonical
+ * registration ids returned by GCM. When a {@link ResponseType#Success
+ * Success} response carries a canonical registration id, the mapping from the
+ * old id is recorded, and later messages to the old id are rewritten on
+ * enqueue to the canonical id.
+ * <p>
+ * Mappings are kept in a bounded map (by default, 100,000 entries), evicting
+ * the least recently used. Chains of mappings (e.g., {@code a -> b} and
+ * {@code b -> c}) are followed.
+ * <p>
+ * New mappings are also reported in batches to an optional {@link Listener},
+ * e.g., to update a database in bulk. A batch is delivered once it reaches the
+ * batch size or, when the next mapping is recorded, once the oldest pending
+ * mapping is older than the maximum delay. Call {@link #flush()} to deliver
+ * pending mappings explicitly, e.g., periodically or at shutdown.
+ * <p>
+ * SLF4J is used for logging.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class CanonicalIdRewriter implements MessageFilter,
+		ResponseHandler<Response> {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(CanonicalIdRewriter.class);
+
+	private static final int DEFAULT_MAX_SIZE = 100000;
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private static final long DEFAULT_MAX_DELAY_MILLIS = TimeUnit.SECONDS
+			.toMillis(10);
+
+	private static final int MAX_CHAIN = 8;
+
+	/**
+	 * Listener for batches of changed registration ids.
+	 */
+	public interface Listener {
+		/**
+		 * Called with a batch of newly learned canonical registration ids.
+		 * 
+		 * @param changes
+		 *            map from old registration ids to canonical ids
+		 */
+		public void canonicalIdsChanged(Map<String, String> changes);
+	}
+
+	private final Cache<String, String> canonicalIds;
+
+	private final Listener listener;
+
+	private final int batchSize;
+
+	private final long maxDelayMillis;
+
+	private final Queue<String[]> pending;
+
+	private final AtomicInteger pendingCount;
+
+	private final AtomicLong oldestPending;
+
+	/**
+	 * Constructs a new rewriter keeping up to 100,000 mappings without a
+	 * listener.
+	 */
+	public CanonicalIdRewriter() {
+		this(DEFAULT_MAX_SIZE, null, DEFAULT_BATCH_SIZE,
+				DEFAULT_MAX_DELAY_MILLIS);
+	}
+
+	/**
+	 * Constructs a new rewriter.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of mappings to keep
+	 * @param listener
+	 *            the listener for new mappings, or {@code null}
+	 * @param batchSize
+	 *            the number of pending mappings that triggers delivery
+	 * @param maxDelayMillis
+	 *            the age in milliseconds of the oldest pending mapping that
+	 *            triggers delivery
+	 */
+	public CanonicalIdRewriter(int maxSize, Listener listener, int batchSize,
+			long maxDelayMillis) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException(
+					"Argument 'maxSize' must be positive.");
+		if (batchSize < 1)
+			throw new IllegalArgumentException(
+					"Argument 'batchSize' must be positive.");
+		this.canonicalIds = CacheBuilder.newBuilder().maximumSize(maxSize)
+				.build();
+		this.listener = listener;
+		this.batchSize = batchSize;
+		this.maxDelayMillis = maxDelayMillis;
+		this.pending = new ConcurrentLinkedQueue<String[]>();
+		this.pendingCount = new AtomicInteger();
+		this.oldestPending = new AtomicLong(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructs a new rewriter keeping up to 100,000 mappings without a
+	 * listener and registers the underlying filters and handlers with the
+	 * provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public CanonicalIdRewriter(AsyncHandlers handlers) {
+		this();
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new rewriter and registers the underlying filters and
+	 * handlers with the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of mappings to keep
+	 * @param listener
+	 *            the listener for new mappings, or {@code null}
+	 * @param batchSize
+	 *            the number of pending mappings that triggers delivery
+	 * @param maxDelayMillis
+	 *            the age in milliseconds of the oldest pending mapping that
+	 *            triggers delivery
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public CanonicalIdRewriter(int maxSize, Listener listener, int batchSize,
+			long maxDelayMillis, AsyncHandlers handlers) {
+		this(maxSize, listener, batchSize, maxDelayMillis);
+		register(handlers);
+	}
+
+	private void register(AsyncHandlers handlers) {
+		handlers.appendEnqueueFilter(this);
+		handlers.appendResponseHandler(ResponseType.Success, this);
+	}
+
+	/**
+	 * Gets the canonical registration id for the specified id.
+	 * 
+	 * @param registrationId
+	 *            the registration id
+	 * @return the canonical id, or the specified id if none is known
+	 */
+	public String canonicalId(String registrationId) {
+		String id = registrationId;
+		for (int i = 0; i < MAX_CHAIN; i++) {
+			String next = canonicalIds.getIfPresent(id);
+			if (next == null)
+				break;
+			id = next;
+		}
+		return id;
+	}
+
+	/**
+	 * Records a mapping from an old registration id to its canonical id, e.g.,
+	 * to preload mappings learned before a restart. Preloaded mappings are not
+	 * reported to the listener.
+	 * 
+	 * @param registrationId
+	 *            the old registration id
+	 * @param canonicalId
+	 *            the canonical registration id
+	 */
+	public void put(String registrationId, String canonicalId) {
+		if (!registrationId.equals(canonicalId))
+			canonicalIds.put(registrationId, canonicalId);
+	}
+
+	/**
+	 * Delivers all pending mappings to the listener.
+	 */
+	public void flush() {
+		if (listener == null)
+			return;
+
+		Map<String, String> changes;
+		synchronized (pending) {
+			if (pending.isEmpty())
+				return;
+			oldestPending.set(Long.MAX_VALUE);
+			changes = new LinkedHashMap<String, String>();
+			String[] change;
+			while ((change = pending.poll()) != null) {
+				pendingCount.decrementAndGet();
+				changes.put(change[0], change[1]);
+			}
+		}
+
+		try {
+			listener.canonicalIdsChanged(changes);
+		} catch (RuntimeException e) {
+			LOGGER.warn("Canonical id listener threw an exception.", e);
+		}
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			Message message = context.unwrap();
+			String registrationId = message.getRegistrationId();
+			String canonicalId = canonicalId(registrationId);
+			if (canonicalId.equals(registrationId))
+				return;
+			PayloadTemplate template = PayloadTemplate.templateOf(message);
+			if (template != null)
+				context.wrap(template.forRecipient(canonicalId));
+			else
+				context.wrap(new MessageBuilder(message).registrationId(
+						canonicalId).build());
+			return;
+		default:
+			return;
+		}
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		// Rewrites on enqueue only
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		Response response = context.unwrap();
+		if (!(response instanceof SuccessResponse))
+			return;
+
+		String canonicalId = ((SuccessResponse) response).getRegistrationId();
+		String registrationId = response.getMessage().getRegistrationId();
+		if (canonicalId == null || canonicalId.equals(registrationId))
+			return;
+
+		if (canonicalId.equals(canonicalIds.asMap().put(registrationId,
+				canonicalId)))
+			// Already known
+			return;
+		if (listener != null)
+			addPending(registrationId, canonicalId);
+	}
+
+	private void addPending(String registrationId, String canonicalId) {
+		long now = System.currentTimeMillis();
+		pending.add(new String[] { registrationId, canonicalId });
+		int count = pendingCount.incrementAndGet();
+		oldestPending.compareAndSet(Long.MAX_VALUE, now);
+		if (count >= batchSize || now - oldestPending.get() >= maxDelayMillis)
+			flush();
+	}
+
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+
+/**
+ * A message filter and response/throwable handler that stops sending to the
+ * GCM service while it is failing, instead of letting every message wait out
+ * the connect or read timeout.
+ * <p>
+ * The breaker starts closed. After a number of consecutive failures (an
+ * {@link ResponseType#InternalError InternalError} response or an I/O
+ * exception) it opens for a fixed period, during which dequeued messages are
+ * either held (see {@link Context#hold()}) or failed immediately (see
+ * {@link MessageDecision#REJECT}).
+ * It then becomes half-open and lets a limited number of probe requests
+ * through; other messages stay held. A successful probe closes the breaker; a
+ * failed probe opens it again. Any other response counts as a success, since
+ * the service answered.
+ * <p>
+ * Held messages are not released all at once when the breaker closes. The
+ * closing probe releases two of them, and each released message releases two
+ * more when it completes, so the backlog drains at a rate that doubles with
+ * every round trip instead of arriving as a herd. One message per open or
+ * half-open period is delayed rather than held, so that it returns when the
+ * period ends to become the next probe. If that message completes before
+ * returning (e.g., it is cancelled, superseded, or shed), a held message is
+ * released to take its place.
+ * <p>
+ * The breaker is registered for {@link IOException}, which includes the
+ * subclasses thrown by the HTTP clients on connect and read failures. If
+ * probes end with other throwables, a fresh set of probes is allowed after the
+ * open period.
+ * <p>
+ * The breaker must see the final decision of the dequeue filters, so it should
+ * be appended after all other filters.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class CircuitBreaker implements MessageFilter,
+		ResponseHandler<Response>, ThrowableHandler<Throwable> {
+	static final ContextKey<Phase> CONTEXT_KEY = ContextKey
+			.create(CircuitBreaker.class.getCanonicalName());
+
+	static final ContextKey<Phase> WAKE_CONTEXT_KEY = ContextKey
+			.create(CircuitBreaker.class.getCanonicalName() + ".wake");
+
+	private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	private static final long DEFAULT_OPEN_MILLIS = TimeUnit.SECONDS
+			.toMillis(30);
+	private static final int DEFAULT_MAX_PROBES = 1;
+
+	private static final int RELEASE_STEP = 2;
+
+	/**
+	 * The states of the breaker.
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final Phase CLOSED = new Phase(State.CLOSED, 0);
+
+	private final int failureThreshold;
+
+	private final long openMillis;
+
+	private final int maxProbes;
+
+	private final boolean failFast;
+
+	private final AtomicInteger failures;
+
+	private final AtomicReference<Phase> phase;
+
+	private final Queue<Waiter> held;
+
+	/**
+	 * Constructs a new breaker that opens for 30 seconds after 5 consecutive
+	 * failures, holding messages while open, and allows 1 probe when
+	 * half-open.
+	 */
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS,
+				DEFAULT_MAX_PROBES, false);
+	}
+
+	/**
+	 * Constructs a new breaker.
+	 * 
+	 * @param failureThreshold
+	 *            the number of consecutive failures that opens the breaker
+	 * @param openMillis
+	 *            the time in milliseconds the breaker stays open before
+	 *            allowing probes
+	 * @param maxProbes
+	 *            the number of concurrent probe requests allowed when
+	 *            half-open
+	 * @param failFast
+	 *            {@code true} to reject messages while open, {@code false}
+	 *            to hold them until probes are allowed
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis,
+			int maxProbes, boolean failFast) {
+		if (failureThreshold < 1)
+			throw new IllegalArgumentException(
+					"Argument 'failureThreshold' must be positive.");
+		if (openMillis <= 0)
+			throw new IllegalArgumentException(
+					"Argument 'openMillis' must be positive.");
+		if (maxProbes < 1)
+			throw new IllegalArgumentException(
+					"Argument 'maxProbes' must be positive.");
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+		this.maxProbes = maxProbes;
+		this.failFast = failFast;
+		this.failures = new AtomicInteger();
+		this.phase = new AtomicReference<Phase>(CLOSED);
+		this.held = new ConcurrentLinkedQueue<Waiter>();
+	}
+
+	/**
+	 * Constructs a new breaker with default parameters and registers the
+	 * underlying filters and handlers with the provided {@link AsyncHandlers}
+	 * instance.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public CircuitBreaker(AsyncHandlers handlers) {
+		this();
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new breaker and registers the underlying filters and
+	 * handlers with the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param failureThreshold
+	 *            the number of consecutive failures that opens the breaker
+	 * @param openMillis
+	 *            the time in milliseconds the breaker stays open before
+	 *            allowing probes
+	 * @param maxProbes
+	 *            the number of concurrent probe requests allowed when
+	 *            half-open
+	 * @param failFast
+	 *            {@code true} to reject messages while open, {@code false}
+	 *            to hold them until probes are allowed
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis,
+			int maxProbes, boolean failFast, AsyncHandlers handlers) {
+		this(failureThreshold, openMillis, maxProbes, failFast);
+		register(handlers);
+	}
+
+	private void register(AsyncHandlers handlers) {
+		handlers.appendDequeueFilter(this);
+		for (ResponseType type : ResponseType.values()) {
+			handlers.appendResponseHandler(type, this);
+		}
+		handlers.appendThrowableHandler(IOException.class, this);
+	}
+
+	/**
+	 * Gets the current state of the breaker.
+	 * 
+	 * @return the current state
+	 */
+	public State getState() {
+		return phase.get().state;
+	}
+
+	/**
+	 * Gets the number of messages held until the breaker closes. Messages
+	 * that complete while held may be counted until they reach the head of
+	 * the queue.
+	 * 
+	 * @return the number of held messages
+	 */
+	public int getHeld() {
+		return held.size();
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		// Gates requests to the service only
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			if (context.getDelay() > 0)
+				return;
+			admit(context);
+			return;
+		default:
+			return;
+		}
+	}
+
+	/**
+	 * Admits a message to be sent, or rejects, delays, or holds it.
+	 */
+	private void admit(Context<Message, MessageDecision> context) {
+		Phase woken = context.get(WAKE_CONTEXT_KEY);
+		if (woken != null)
+			context.put(WAKE_CONTEXT_KEY, null);
+
+		while (true) {
+			Phase current = phase.get();
+			switch (current.state) {
+			case CLOSED:
+				return;
+			case OPEN:
+			case HALF_OPEN:
+				long now = System.currentTimeMillis();
+				if (now >= current.until) {
+					// Open period over, or probes lost; allow fresh probes
+					phase.compareAndSet(current, new Phase(State.HALF_OPEN,
+							now + openMillis));
+					continue;
+				}
+				if (current.state == State.HALF_OPEN
+						&& current.tryProbe(maxProbes)) {
+					context.put(CONTEXT_KEY, current);
+				} else if (failFast) {
+					context.setDecision(MessageDecision.REJECT);
+				} else if (woken == current) {
+					// Returned early; waits out the rest of the period
+					context.put(WAKE_CONTEXT_KEY, current);
+					context.setDelay(current.until - now);
+				} else if (current.tryWake()) {
+					// Returns when the period ends to probe the service
+					context.put(WAKE_CONTEXT_KEY, current);
+					context.setDelay(current.until - now);
+					context.addCompletionListener(new WakeRunnable(current));
+				} else {
+					hold(context, current);
+				}
+				return;
+			}
+		}
+	}
+
+	private void hold(Context<Message, MessageDecision> context, Phase current) {
+		Waiter waiter = new Waiter(context.hold());
+		held.add(waiter);
+		context.addCompletionListener(waiter);
+		// The breaker may have moved on, or the wake message completed,
+		// before the waiter was queued
+		if (phase.get() != current || !current.isWoken())
+			releaseHeld(1);
+	}
+
+	/**
+	 * Resumes up to the given number of held messages, skipping those that
+	 * completed while held.
+	 */
+	private void releaseHeld(int count) {
+		while (count > 0) {
+			Waiter waiter = held.poll();
+			if (waiter == null)
+				return;
+			if (waiter.release())
+				count--;
+		}
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		switch (context.unwrap().getResponseType()) {
+		case InternalError:
+			recordFailure(context);
+			return;
+		default:
+			recordSuccess(context);
+			return;
+		}
+	}
+
+	// ------------------------- Handle Throwables ----------------------------
+	@Override
+	public void handleThrowable(Context<Throwable, ResultDecision> context) {
+		recordFailure(context);
+	}
+
+	private void recordSuccess(Context<?, ResultDecision> context) {
+		Phase probe = retrieveProbe(context);
+		failures.set(0);
+		if (probe != null && phase.compareAndSet(probe, CLOSED))
+			releaseHeld(RELEASE_STEP);
+	}
+
+	private void recordFailure(Context<?, ResultDecision> context) {
+		Phase probe = retrieveProbe(context);
+		if (probe != null) {
+			open(probe);
+		} else if (failures.incrementAndGet() >= failureThreshold) {
+			Phase current = phase.get();
+			if (current.state == State.CLOSED)
+				open(current);
+		}
+	}
+
+	private void open(Phase current) {
+		failures.set(0);
+		if (phase.compareAndSet(current, new Phase(State.OPEN,
+				System.currentTimeMillis() + openMillis))) {
+			// Held messages wait on the new phase; one returns to wake it
+			releaseHeld(1);
+		}
+	}
+
+	private Phase retrieveProbe(Context<?, ResultDecision> context) {
+		Phase probe = context.get(CONTEXT_KEY);
+		if (probe != null)
+			context.put(CONTEXT_KEY, null);
+		return probe;
+	}
+
+	/**
+	 * An immutable state of the breaker, with the time at which an open
+	 * period ends or at which outstanding probes are abandoned.
+	 */
+	private static class Phase {
+		private final State state;
+
+		private final long until;
+
+		private final AtomicInteger probes;
+
+		private final AtomicBoolean woken;
+
+		public Phase(State state, long until) {
+			this.state = state;
+			this.until = until;
+			this.probes = new AtomicInteger();
+			this.woken = new AtomicBoolean();
+		}
+
+		public boolean tryWake() {
+			return !woken.get() && woken.compareAndSet(false, true);
+		}
+
+		public boolean isWoken() {
+			return woken.get();
+		}
+
+		public void clearWake() {
+			woken.set(false);
+		}
+
+		public boolean tryProbe(int maxProbes) {
+			while (true) {
+				int current = probes.get();
+				if (current >= maxProbes)
+					return false;
+				if (probes.compareAndSet(current, current + 1))
+					return true;
+			}
+		}
+	}
+
+	/**
+	 * Passes the duty to wake a phase on if the delayed message completes
+	 * before returning to end the phase, so that held messages do not wait on
+	 * a message that never returns.
+	 */
+	private class WakeRunnable implements Runnable {
+		private final Phase woken;
+
+		public WakeRunnable(Phase woken) {
+			this.woken = woken;
+		}
+
+		@Override
+		public void run() {
+			if (phase.get() != woken)
+				return;
+			woken.clearWake();
+			// Returns to become the next wake message
+			releaseHeld(1);
+		}
+	}
+
+	/**
+	 * A held message. Run as a completion listener, it releases further held
+	 * messages if it had been released and the breaker is closed.
+	 */
+	private class Waiter implements Runnable {
+		private static final int HELD = 0;
+		private static final int RELEASED = 1;
+		private static final int DONE = 2;
+
+		private final Runnable resume;
+
+		private final AtomicInteger state;
+
+		public Waiter(Runnable resume) {
+			this.resume = resume;
+			this.state = new AtomicInteger(HELD);
+		}
+
+		/**
+		 * Resumes the message unless it completed while held.
+		 * 
+		 * @return {@code true} if the message was resumed
+		 */
+		public boolean release() {
+			if (!state.compareAndSet(HELD, RELEASED))
+				return false;
+			resume.run();
+			return true;
+		}
+
+		@Override
+		public void run() {
+			if (state.compareAndSet(HELD, DONE))
+				return;
+			if (phase.get().state == State.CLOSED)
+				releaseHeld(RELEASE_STEP);
+		}
+	}
+
+}
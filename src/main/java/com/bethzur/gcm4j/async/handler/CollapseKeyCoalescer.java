@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bethzur.gcm4j.Message;
+
+/**
+ * A message filter that coalesces queued messages with the same registration
+ * id and collapse key. The GCM service delivers only the latest message per
+ * collapse key to a device anyway, so when a newer message is queued while an
+ * older one is still waiting (e.g., during backoff), the older one is
+ * cancelled instead of being sent.
+ * <p>
+ * A message is pending from the time it is enqueued until it is dequeued to be
+ * sent without further delay or its future completes. A message is coalesced
+ * under the registration id and collapse key it had when first enqueued, even
+ * if a later filter rewrites it. A superseded message is cancelled (see
+ * {@link Context#superseder()}) as soon as the newer message is enqueued,
+ * wherever it waits, so that a delayed or held message is not retained until
+ * it would be dequeued. A message that is enqueued (e.g., for a retry) after a
+ * newer message is cancelled immediately. Messages already sent are never
+ * affected. Superseded messages are not passed to the {@link DeadLetterSink}.
+ * <p>
+ * This filter is not registered by default. It should be appended after all
+ * other filters, so that it sees their final decisions:<br/>
+ * <code>
+ * AsyncHandlers handlers = AsyncHandlersFactory.create(); <br/>
+ * new CollapseKeyCoalescer(handlers);
+ * </code>
+ *
+ * @author David R. Bild
+ *
+ */
+public class CollapseKeyCoalescer implements MessageFilter {
+	static final ContextKey<Entry> CONTEXT_KEY = ContextKey
+			.create(CollapseKeyCoalescer.class.getCanonicalName());
+
+	private final ConcurrentMap<Key, Entry> pending;
+
+	private final AtomicLong sequence;
+
+	/**
+	 * Constructs a new coalescer.
+	 */
+	public CollapseKeyCoalescer() {
+		this.pending = new ConcurrentHashMap<Key, Entry>();
+		this.sequence = new AtomicLong();
+	}
+
+	/**
+	 * Constructs a new coalescer and appends it to the enqueue and dequeue
+	 * filters of the provided {@link AsyncHandlers} instance.
+	 *
+	 * @param handlers
+	 *            the handlers object with which to register the filter
+	 */
+	public CollapseKeyCoalescer(AsyncHandlers handlers) {
+		this();
+		handlers.appendEnqueueFilter(this);
+		handlers.appendDequeueFilter(this);
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			Entry entry = retrieveEntry(context);
+			if (entry == null) {
+				entry = new Entry(new Key(context.unwrap()),
+						sequence.incrementAndGet(), context.superseder());
+				context.put(CONTEXT_KEY, entry);
+				context.addCompletionListener(new ForgetRunnable(entry));
+			}
+			if (!register(entry))
+				context.setDecision(MessageDecision.CANCEL);
+			return;
+		default:
+			return;
+		}
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		Entry entry = retrieveEntry(context);
+		if (entry == null)
+			return;
+
+		// Superseded while being dequeued
+		if (entry.superseded) {
+			context.setDecision(MessageDecision.CANCEL);
+			return;
+		}
+
+		switch (context.getDecision()) {
+		case SEND:
+			// Delayed messages are enqueued again and remain pending
+			if (context.getDelay() <= 0)
+				pending.remove(entry.key, entry);
+			return;
+		case HOLD:
+			// Dequeued again when resumed and remains pending
+			return;
+		default:
+			pending.remove(entry.key, entry);
+			return;
+		}
+	}
+
+	/**
+	 * Gets the number of pending messages.
+	 *
+	 * @return the number of pending messages
+	 */
+	public int size() {
+		return pending.size();
+	}
+
+	private Entry retrieveEntry(Context<Message, MessageDecision> context) {
+		return context.get(CONTEXT_KEY);
+	}
+
+	/**
+	 * Makes the entry the pending entry for its key, superseding an older one.
+	 *
+	 * @return {@code false} if a newer entry is already pending
+	 */
+	private boolean register(Entry entry) {
+		Key key = entry.key;
+		while (true) {
+			Entry current = pending.putIfAbsent(key, entry);
+			if (current == null || current == entry)
+				return true;
+			if (current.sequence > entry.sequence) {
+				entry.supersede();
+				return false;
+			}
+			if (pending.replace(key, current, entry)) {
+				current.supersede();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * The coalescing state of one message, shared by all of its contexts.
+	 */
+	private static class Entry {
+		private final Key key;
+
+		private final long sequence;
+
+		private final Runnable superseder;
+
+		private volatile boolean superseded;
+
+		public Entry(Key key, long sequence, Runnable superseder) {
+			this.key = key;
+			this.sequence = sequence;
+			this.superseder = superseder;
+			this.superseded = false;
+		}
+
+		public void supersede() {
+			superseded = true;
+			superseder.run();
+		}
+	}
+
+	/**
+	 * Forgets the entry of a message once its future completes.
+	 */
+	private class ForgetRunnable implements Runnable {
+		private final Entry entry;
+
+		public ForgetRunnable(Entry entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public void run() {
+			pending.remove(entry.key, entry);
+		}
+	}
+
+	/**
+	 * The registration id and collapse key of a message.
+	 */
+	private static class Key {
+		private final String registrationId;
+
+		private final String collapseKey;
+
+		public Key(Message message) {
+			this.registrationId = message.getRegistrationId();
+			this.collapseKey = message.getCollapseKey();
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result
+					+ ((collapseKey == null) ? 0 : collapseKey.hashCode());
+			result = prime
+					* result
+					+ ((registrationId == null) ? 0 : registrationId
+							.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			if (collapseKey == null) {
+				if (other.collapseKey != null)
+					return false;
+			} else if (!collapseKey.equals(other.collapseKey))
+				return false;
+			if (registrationId == null) {
+				if (other.registrationId != null)
+					return false;
+			} else if (!registrationId.equals(other.registrationId))
+				return false;
+			return true;
+		}
+	}
+
+}
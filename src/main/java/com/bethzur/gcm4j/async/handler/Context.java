@@ -29,9 +29,14 @@ import java.util.concurrent.Future;
  * {@link AsyncGcmManager#pushMessage(Message)} method call,</li>
  * <li>the delay before the object should be sent or retried,</li>
  * <li>the decision (delay, retry, return, etc.) for the object, and</li>
- * <li>an object map for {@link MessageFilter}, and {@link ResponseHandler}, and
+ * <li>attributes for {@link MessageFilter}, and {@link ResponseHandler}, and
  * {@link ThrowableHandler} instances to store message-specific context.</li>
  * </ul>
+ * Attributes should be stored under a typed {@link ContextKey}, which is
+ * backed by an array slot. The untyped {@link #put(Object, Object)} and
+ * {@link #get(Object)} methods are backed by a map that is created on first
+ * use. The attributes are shared by all contexts of a message, including
+ * those of its retries.
  *
  * @author David R. Bild
  *
@@ -49,6 +54,16 @@ public interface Context<T, E extends Enum<E>> {
 	 */
 	public T unwrap();
 
+	/**
+	 * Replaces the object for this context. Message filters may use this to
+	 * rewrite a message before it is sent; the replacement is also used for
+	 * any retries.
+	 *
+	 * @param wrapped
+	 *            the new object for this context
+	 */
+	public void wrap(T wrapped);
+
 	/**
 	 * Gets the decision for the associated object (e.g., delay, cancel, or
 	 * retry).
@@ -85,6 +100,67 @@ public interface Context<T, E extends Enum<E>> {
 	 */
 	public void setDelay(long delay);
 
+	/**
+	 * Registers a callback to run once the {@link Future} of the message
+	 * completes in any way, including cancellation by another filter or the
+	 * queue bound. The callback runs immediately if the future has already
+	 * completed. Handlers that track messages outside of the context should use
+	 * this to forget them, since later filters and handlers may not be invoked.
+	 *
+	 * @param listener
+	 *            the callback to run on completion
+	 */
+	public void addCompletionListener(Runnable listener);
+
+	/**
+	 * Holds the message instead of sending it, e.g., until capacity becomes
+	 * available. Only dequeue filters may hold messages. The decision becomes
+	 * {@link MessageDecision#HOLD}, which later filters should leave alone.
+	 * <p>
+	 * Running the returned callback resumes the message: it is dispatched to
+	 * its lane again and passes through the dequeue filters anew, but not
+	 * through the enqueue filters. The callback has no effect after the first
+	 * run. A held message still counts against the queue bound and may be shed
+	 * while held, in which case resuming it has no effect either.
+	 *
+	 * @return the callback resuming the message
+	 * @throws UnsupportedOperationException
+	 *             if the context is not that of a message being dequeued
+	 */
+	public Runnable hold();
+
+	/**
+	 * Gets a callback that cancels the message as superseded by a newer one,
+	 * wherever the message is: its {@link Future} completes at once with a
+	 * {@link java.util.concurrent.CancellationException}, and a task waiting
+	 * to process it is cancelled. Like {@link MessageDecision#CANCEL}, this is
+	 * a deliberate cancellation, so the message is not passed to the
+	 * {@link DeadLetterSink}. The callback may be kept and run from any thread
+	 * and has no effect once the future has completed.
+	 *
+	 * @return the callback superseding the message
+	 */
+	public Runnable superseder();
+
+	/**
+	 * Stores a value under a typed key.
+	 *
+	 * @param key
+	 *            the key, usually a {@code static final} field of the handler
+	 * @param value
+	 *            the value to store, or {@code null} to clear the key
+	 */
+	public <V> void put(ContextKey<V> key, V value);
+
+	/**
+	 * Gets the value stored under a typed key.
+	 *
+	 * @param key
+	 *            the key, usually a {@code static final} field of the handler
+	 * @return the value or {@code null} if none is stored
+	 */
+	public <V> V get(ContextKey<V> key);
+
 	/**
 	 * Adds an key-value pair to the internal context map. Handlers and filters
 	 * should use the following convention. Each handler (filter) may store one
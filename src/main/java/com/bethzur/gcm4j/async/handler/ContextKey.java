@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A typed key for storing a value in a {@link Context}. Each key is assigned
+ * a fixed slot index when it is created, so contexts store values in a small
+ * array and {@link Context#get(ContextKey)} and
+ * {@link Context#put(ContextKey, Object)} are a single array access, without
+ * hashing or a per-message map.
+ * <p>
+ * Keys should be created once, as {@code static final} fields, since every
+ * key ever created claims a slot in every context that stores a value. By
+ * convention, the name is the canonical name of the owning class, e.g.:<br/>
+ * <code>
+ * static final ContextKey&lt;Attempt&gt; CONTEXT_KEY = ContextKey.create(MyHandler.class.getCanonicalName());
+ * </code>
+ *
+ * @author David R. Bild
+ *
+ * @param <V>
+ *            the type of the value stored under the key
+ */
+public final class ContextKey<V> {
+
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	private final String name;
+
+	private final int index;
+
+	private ContextKey(String name, int index) {
+		this.name = name;
+		this.index = index;
+	}
+
+	/**
+	 * Creates a new key with the next free slot index.
+	 *
+	 * @param name
+	 *            the name of the key, used only for debugging
+	 * @return the new key
+	 */
+	public static <V> ContextKey<V> create(String name) {
+		return new ContextKey<V>(name, COUNT.getAndIncrement());
+	}
+
+	/**
+	 * Returns the number of keys created so far, i.e., one more than the
+	 * highest slot index in use.
+	 *
+	 * @return the number of keys
+	 */
+	public static int count() {
+		return COUNT.get();
+	}
+
+	/**
+	 * Gets the name of the key.
+	 *
+	 * @return the name of the key
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the slot index of the key.
+	 *
+	 * @return the slot index of the key
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ContextKey(name=\"%s\", index=%d)", name, index);
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.Response;
+
+/**
+ * A destination for messages that finally failed, i.e., whose non-success
+ * {@link Response} or {@link Throwable} is returned via the future instead of
+ * being retried (e.g., {@code MessageTooBig}, {@code MismatchSenderId}, retries
+ * exhausted, or an exception), or that were rejected without being sent by a
+ * filter (see {@link MessageDecision#REJECT}) or the queue bound (passed as a
+ * {@link java.util.concurrent.CancellationException} or
+ * {@link java.util.concurrent.RejectedExecutionException}). Messages cancelled
+ * deliberately (see {@link MessageDecision#CANCEL}) are not passed, nor are
+ * {@code NotRegistered} and {@code InvalidRegistration} responses, since
+ * sending to those ids again cannot succeed. The sink is set with
+ * {@link AsyncHandlers#setDeadLetterSink(DeadLetterSink)}.
+ * <p>
+ * The sink only sees the failures of the manager. It must not be set for a
+ * manager fed by a {@link com.bethzur.gcm4j.async.CompactBacklog}, which
+ * retries failed messages itself; dead-letter from the backlog's
+ * {@link com.bethzur.gcm4j.async.CompactBacklog.Listener} instead.
+ * <p>
+ * Implementations must be thread-safe and should return quickly, since they
+ * are called on the thread that completes the message, e.g., a thread
+ * handling responses or pushing a message that sheds another.
+ *
+ * @see com.bethzur.gcm4j.async.FileDeadLetterSink
+ *
+ * @author David R. Bild
+ *
+ */
+public interface DeadLetterSink {
+
+	/**
+	 * Records a message whose non-success response was returned.
+	 *
+	 * @param message
+	 *            the failed message
+	 * @param response
+	 *            the returned response
+	 */
+	public void deadLetter(Message message, Response response);
+
+	/**
+	 * Records a message whose throwable was returned.
+	 *
+	 * @param message
+	 *            the failed message
+	 * @param throwable
+	 *            the returned throwable
+	 */
+	public void deadLetter(Message message, Throwable throwable);
+
+}
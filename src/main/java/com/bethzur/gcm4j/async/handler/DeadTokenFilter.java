@@ -0,0 +1,386 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A message filter and response handler that remembers registration ids for
+ * which GCM returned {@link ResponseType#NotRegistered NotRegistered} or
+ * {@link ResponseType#InvalidRegistration InvalidRegistration} and stops
+ * sending to them. Messages to a known-dead id are not sent; their futures are
+ * completed on enqueue with a response of the cached type. A
+ * {@link ResponseType#Success Success} response removes the id again.
+ * <p>
+ * The ids are kept as 63-bit hashes in striped open-addressing tables instead
+ * of as strings. Each table holds 8-byte slots at a load of at most 0.75 and
+ * doubles when full, so an id costs about 11 to 21 bytes. False positives are
+ * negligible at any realistic number of ids.
+ * <p>
+ * The set can be exported with {@link #writeTo(OutputStream)} and imported
+ * with {@link #readFrom(InputStream)} to survive restarts, or populated from
+ * another store with {@link #add(String, ResponseType)}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class DeadTokenFilter implements MessageFilter,
+		ResponseHandler<Response> {
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private static final int STRIPE_BITS = 6;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private final Stripe[] stripes;
+
+	/**
+	 * Constructs a new, empty filter.
+	 */
+	public DeadTokenFilter() {
+		this.stripes = new Stripe[1 << STRIPE_BITS];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Constructs a new, empty filter and registers the underlying filters and
+	 * handlers with the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public DeadTokenFilter(AsyncHandlers handlers) {
+		this();
+		handlers.appendEnqueueFilter(this);
+		handlers.appendResponseHandler(ResponseType.NotRegistered, this);
+		handlers.appendResponseHandler(ResponseType.InvalidRegistration, this);
+		handlers.appendResponseHandler(ResponseType.Success, this);
+	}
+
+	/**
+	 * Adds a dead registration id.
+	 * 
+	 * @param registrationId
+	 *            the registration id
+	 * @param type
+	 *            {@link ResponseType#NotRegistered} or
+	 *            {@link ResponseType#InvalidRegistration}
+	 */
+	public void add(String registrationId, ResponseType type) {
+		long key = key(registrationId);
+		switch (type) {
+		case NotRegistered:
+			stripe(key).add(key);
+			return;
+		case InvalidRegistration:
+			stripe(key).add(key | 1);
+			return;
+		default:
+			throw new IllegalArgumentException(String.format(
+					"Response type %s does not indicate a dead id.", type));
+		}
+	}
+
+	/**
+	 * Removes a registration id.
+	 * 
+	 * @param registrationId
+	 *            the registration id
+	 */
+	public void remove(String registrationId) {
+		long key = key(registrationId);
+		stripe(key).remove(key);
+	}
+
+	/**
+	 * Gets the cached response type for a registration id.
+	 * 
+	 * @param registrationId
+	 *            the registration id
+	 * @return the cached response type, or {@code null} if the id is not known
+	 *         to be dead
+	 */
+	public ResponseType get(String registrationId) {
+		long key = key(registrationId);
+		long entry = stripe(key).get(key);
+		if (entry == 0)
+			return null;
+		return ((entry & 1) == 0) ? ResponseType.NotRegistered
+				: ResponseType.InvalidRegistration;
+	}
+
+	/**
+	 * Returns the number of dead registration ids.
+	 * 
+	 * @return the number of dead registration ids
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Writes the set of dead registration ids (as hashes) to a stream. The
+	 * stream is not closed.
+	 * 
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if writing to the stream fails
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(FORMAT_VERSION);
+		for (Stripe stripe : stripes) {
+			long[] entries = stripe.entries();
+			data.writeInt(entries.length);
+			for (long entry : entries) {
+				data.writeLong(entry);
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * Adds the dead registration ids written by {@link #writeTo(OutputStream)}
+	 * to this set. The stream is not closed.
+	 * 
+	 * @param in
+	 *            the stream to read from
+	 * @throws IOException
+	 *             if reading from the stream fails or its format is invalid
+	 */
+	public void readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		int version = data.readInt();
+		if (version != FORMAT_VERSION)
+			throw new IOException(String.format(
+					"Unsupported dead token format version: %d", version));
+		for (int i = 0; i < stripes.length; i++) {
+			int count = data.readInt();
+			if (count < 0)
+				throw new IOException("Invalid dead token count.");
+			for (int j = 0; j < count; j++) {
+				long entry = data.readLong();
+				if ((entry & ~1L) == 0)
+					throw new IOException("Invalid dead token entry.");
+				stripe(entry).add(entry);
+			}
+		}
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			Message message = context.unwrap();
+			ResponseType type = get(message.getRegistrationId());
+			if (type != null) {
+				context.put(MessageDecision.RESPONSE_KEY, new DeadTokenResponse(
+						type, message));
+				context.setDecision(MessageDecision.RETURN);
+			}
+			return;
+		default:
+			return;
+		}
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		// Filters on enqueue only
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		Response response = context.unwrap();
+		String registrationId = response.getMessage().getRegistrationId();
+		switch (response.getResponseType()) {
+		case NotRegistered:
+		case InvalidRegistration:
+			add(registrationId, response.getResponseType());
+			return;
+		case Success:
+			// Locks only the id's stripe
+			remove(registrationId);
+			return;
+		default:
+			return;
+		}
+	}
+
+	/**
+	 * Computes the table key for an id: its 64-bit hash with the lowest bit
+	 * cleared (reserved for the response type) and never zero (reserved for
+	 * empty slots).
+	 */
+	private static long key(String registrationId) {
+		long key = HASH.hashString(registrationId).asLong() & ~1L;
+		return (key == 0) ? 2 : key;
+	}
+
+	private Stripe stripe(long key) {
+		return stripes[(int) (key >>> (64 - STRIPE_BITS))];
+	}
+
+	/**
+	 * An open-addressing (linear probing) hash table of keys, guarded by its
+	 * own lock. A slot value of zero is empty.
+	 */
+	static class Stripe {
+		private static final int INITIAL_CAPACITY = 16;
+
+		private long[] slots = new long[INITIAL_CAPACITY];
+
+		private int size = 0;
+
+		public synchronized long get(long key) {
+			int mask = slots.length - 1;
+			for (int i = index(key, mask);; i = (i + 1) & mask) {
+				long slot = slots[i];
+				if (slot == 0)
+					return 0;
+				if ((slot & ~1L) == (key & ~1L))
+					return slot;
+			}
+		}
+
+		public synchronized void add(long entry) {
+			int mask = slots.length - 1;
+			for (int i = index(entry, mask);; i = (i + 1) & mask) {
+				long slot = slots[i];
+				if (slot == 0) {
+					slots[i] = entry;
+					if (++size * 4 > slots.length * 3)
+						resize(slots.length * 2);
+					return;
+				}
+				if ((slot & ~1L) == (entry & ~1L)) {
+					slots[i] = entry;
+					return;
+				}
+			}
+		}
+
+		public synchronized void remove(long key) {
+			int mask = slots.length - 1;
+			int i = index(key, mask);
+			while (true) {
+				long slot = slots[i];
+				if (slot == 0)
+					return;
+				if ((slot & ~1L) == (key & ~1L))
+					break;
+				i = (i + 1) & mask;
+			}
+
+			// Shift later entries of the probe sequence back into the hole
+			slots[i] = 0;
+			size--;
+			for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+				int home = index(slots[j], mask);
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					slots[i] = slots[j];
+					slots[j] = 0;
+					i = j;
+				}
+			}
+		}
+
+		public synchronized int size() {
+			return size;
+		}
+
+		public synchronized long[] entries() {
+			long[] entries = new long[size];
+			int n = 0;
+			for (long slot : slots) {
+				if (slot != 0)
+					entries[n++] = slot;
+			}
+			return entries;
+		}
+
+		private void resize(int capacity) {
+			long[] old = slots;
+			slots = new long[capacity];
+			int mask = capacity - 1;
+			for (long slot : old) {
+				if (slot == 0)
+					continue;
+				int i = index(slot, mask);
+				while (slots[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				slots[i] = slot;
+			}
+		}
+
+		private static int index(long key, int mask) {
+			return (int) (key >>> 1) & mask;
+		}
+	}
+
+	/**
+	 * The response returned for messages to known-dead ids.
+	 */
+	private static class DeadTokenResponse implements Response {
+		private final ResponseType type;
+
+		private final Message message;
+
+		public DeadTokenResponse(ResponseType type, Message message) {
+			this.type = type;
+			this.message = message;
+		}
+
+		@Override
+		public ResponseType getResponseType() {
+			return type;
+		}
+
+		@Override
+		public Message getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("DeadTokenResponse(type=%s, message=%s)",
+					type, message);
+		}
+	}
+
+}
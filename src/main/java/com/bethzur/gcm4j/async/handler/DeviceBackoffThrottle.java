@@ -15,8 +15,11 @@
  */
 package com.bethzur.gcm4j.async.handler;
 
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import com.bethzur.gcm4j.Message;
 import com.bethzur.gcm4j.Response;
@@ -24,23 +27,59 @@ import com.bethzur.gcm4j.ResponseType;
 import com.bethzur.gcm4j.backoff.Attempt;
 import com.bethzur.gcm4j.backoff.Backoff;
 import com.bethzur.gcm4j.backoff.BackoffProvider;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 
 /**
  * A message filter and response handler that implements per-device retry with
  * backoff for {@link ResponseType#DeviceQuotaExceeded
  * DeviceQuotaExceeded} responses.
+ * <p>
+ * The table of backed-off devices is bounded. An entry is evicted once its
+ * backoff has expired and no failure has been recorded for a further grace
+ * period of one minute, so devices that go quiet after a
+ * {@code DeviceQuotaExceeded} do not stay forever. Expired entries are found
+ * by an incremental sweep that checks a few entries, in the order they were
+ * added, each time a message is filtered, so no sending thread ever scans the
+ * whole table. If the table is full, the oldest entries are evicted to make
+ * room. Devices are keyed by a 128-bit hash of the registration id instead of
+ * the id itself.
  * 
  * @author David R. Bild
  * 
  */
 public class DeviceBackoffThrottle implements MessageFilter,
 		ResponseHandler<Response> {
-	static final String CONTEXT_KEY = DeviceBackoffThrottle.class
-			.getCanonicalName();
+	static final ContextKey<Attempt> CONTEXT_KEY = ContextKey
+			.create(DeviceBackoffThrottle.class.getCanonicalName());
+
+	private static final int DEFAULT_MAX_DEVICES = 1000000;
+
+	private static final long GRACE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * The number of entries checked by the sweep per filtered message.
+	 */
+	private static final int SWEEP_BATCH = 4;
+
+	/**
+	 * The maximum number of entries evicted to add one entry to a full table.
+	 */
+	private static final int EVICT_BATCH = 16;
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
 
 	private final BackoffProvider provider;
 
-	private ConcurrentMap<String, Backoff> backoffs;
+	private final int maxDevices;
+
+	private final ConcurrentMap<DeviceKey, Entry> backoffs;
+
+	/**
+	 * The entries in the order they were added or last checked by the sweep.
+	 * May hold entries already removed from the table, which are skipped.
+	 */
+	private final Queue<Entry> sweepOrder;
 
 	/**
 	 * Constructs a new throttle that will use the specified provider to
@@ -50,8 +89,27 @@ public class DeviceBackoffThrottle implements MessageFilter,
 	 *            the provider to construct backoff objects as needed
 	 */
 	public DeviceBackoffThrottle(BackoffProvider provider) {
+		this(provider, DEFAULT_MAX_DEVICES);
+	}
+
+	/**
+	 * Constructs a new throttle that will use the specified provider to
+	 * construct {@link Backoff} instances as needed, tracking at most the
+	 * specified number of devices.
+	 * 
+	 * @param provider
+	 *            the provider to construct backoff objects as needed
+	 * @param maxDevices
+	 *            the maximum number of devices to track
+	 */
+	public DeviceBackoffThrottle(BackoffProvider provider, int maxDevices) {
+		if (maxDevices < 1)
+			throw new IllegalArgumentException(
+					"Argument 'maxDevices' must be positive.");
 		this.provider = provider;
-		this.backoffs = new ConcurrentHashMap<String, Backoff>();
+		this.maxDevices = maxDevices;
+		this.backoffs = new ConcurrentHashMap<DeviceKey, Entry>();
+		this.sweepOrder = new ConcurrentLinkedQueue<Entry>();
 	}
 
 	/**
@@ -68,7 +126,26 @@ public class DeviceBackoffThrottle implements MessageFilter,
 	 */
 	public DeviceBackoffThrottle(BackoffProvider provider,
 			AsyncHandlers handlers) {
-		this(provider);
+		this(provider, DEFAULT_MAX_DEVICES, handlers);
+	}
+
+	/**
+	 * Constructs a new throttle that will use the specified provider to
+	 * construct {@link Backoff} instances as needed, tracking at most the
+	 * specified number of devices, and registers the underlying filters and
+	 * handlers with the provider {@link AsyncHandlers} instance.
+	 * 
+	 * @param provider
+	 *            the provider to construct backoff objects as needed
+	 * @param maxDevices
+	 *            the maximum number of devices to track
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public DeviceBackoffThrottle(BackoffProvider provider, int maxDevices,
+			AsyncHandlers handlers) {
+		this(provider, maxDevices);
 		handlers.appendEnqueueFilter(this);
 		handlers.appendDequeueFilter(this);
 		handlers.appendResponseHandler(ResponseType.DeviceQuotaExceeded, this);
@@ -77,28 +154,40 @@ public class DeviceBackoffThrottle implements MessageFilter,
 		handlers.appendResponseHandler(ResponseType.NotRegistered, this);
 	}
 
+	/**
+	 * Returns the number of devices currently tracked.
+	 * 
+	 * @return the number of devices currently tracked
+	 */
+	public int size() {
+		return backoffs.size();
+	}
+
 	// ------------------------- Filter Messages ------------------------------
 	@Override
 	public void enqueueFilter(Context<Message, MessageDecision> context) {
-		String deviceKey = context.unwrap().getRegistrationId();
-		updateDelay(context, deviceKey);
+		updateDelay(context);
 	}
 
 	@Override
 	public void dequeueFilter(Context<Message, MessageDecision> context) {
-		String deviceKey = context.unwrap().getRegistrationId();
-		updateDelay(context, deviceKey);
+		updateDelay(context);
 	}
 
-	private Backoff retrieveBackoff(String deviceKey) {
+	private Entry retrieveEntry(DeviceKey deviceKey) {
 		return backoffs.get(deviceKey);
 	}
 
-	private Attempt createAttempt(Context<Message, MessageDecision> context,
-			String deviceKey) {
-		Backoff backoff = retrieveBackoff(deviceKey);
-		if (backoff != null) {
-			Attempt attempt = backoff.begin();
+	private Attempt createAttempt(Context<Message, MessageDecision> context) {
+		// Also drops entries of devices removed since
+		sweepExpired();
+		if (backoffs.isEmpty())
+			return null;
+
+		Entry entry = retrieveEntry(DeviceKey.of(context.unwrap()
+				.getRegistrationId()));
+		if (entry != null) {
+			Attempt attempt = entry.backoff.begin();
 			context.put(CONTEXT_KEY, attempt);
 			return attempt;
 		} else {
@@ -106,11 +195,10 @@ public class DeviceBackoffThrottle implements MessageFilter,
 		}
 	}
 
-	private void updateDelay(Context<Message, MessageDecision> context,
-			String deviceKey) {
+	private void updateDelay(Context<Message, MessageDecision> context) {
 		switch (context.getDecision()) {
 		case SEND:
-			Attempt attempt = createAttempt(context, deviceKey);
+			Attempt attempt = createAttempt(context);
 			if (attempt != null) {
 				long delay = attempt.delay();
 				if (delay > context.getDelay())
@@ -126,48 +214,151 @@ public class DeviceBackoffThrottle implements MessageFilter,
 	@Override
 	public void handleResponse(Context<Response, ResultDecision> context) {
 		Response response = context.unwrap();
-		String deviceKey = response.getMessage().getRegistrationId();
 		switch (response.getResponseType()) {
 		case DeviceQuotaExceeded:
 			context.setDecision(ResultDecision.RETRY);
-			recordFailure(context, deviceKey);
+			recordFailure(context, DeviceKey.of(response.getMessage()
+					.getRegistrationId()));
 			return;
 		case Success:
 		case InvalidRegistration:
 		case NotRegistered:
-			removeBackoff(deviceKey);
+			if (!backoffs.isEmpty())
+				removeEntry(DeviceKey.of(response.getMessage()
+						.getRegistrationId()));
 		default:
 			return;
 		}
 	}
 
 	private void recordFailure(Context<Response, ResultDecision> context,
-			String deviceKey) {
+			DeviceKey deviceKey) {
+		Entry entry = createOrRetrieveEntry(deviceKey);
 		Attempt attempt = retrieveAttempt(context);
 		if (attempt != null) {
 			attempt.recordFailure();
 		} else {
-			createOrRetrieveBackoff(deviceKey).begin().recordFailure();
+			entry.backoff.begin().recordFailure();
 		}
+		entry.expiry = System.currentTimeMillis()
+				+ entry.backoff.begin().delay();
 	}
 
 	private Attempt retrieveAttempt(Context<Response, ResultDecision> context) {
-		return context.get(CONTEXT_KEY, Attempt.class);
+		return context.get(CONTEXT_KEY);
 	}
 
-	private Backoff createOrRetrieveBackoff(String deviceKey) {
-		Backoff backoff = retrieveBackoff(deviceKey);
-		if (backoff == null) {
-			Backoff newBackoff = provider.createBackoff();
-			backoff = backoffs.putIfAbsent(deviceKey, newBackoff);
-			if (backoff == null)
-				backoff = newBackoff;
+	private Entry createOrRetrieveEntry(DeviceKey deviceKey) {
+		Entry entry = retrieveEntry(deviceKey);
+		if (entry == null) {
+			if (backoffs.size() >= maxDevices)
+				evictOldest();
+			Entry newEntry = new Entry(deviceKey, provider.createBackoff());
+			entry = backoffs.putIfAbsent(deviceKey, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+				sweepOrder.add(entry);
+			}
 		}
-		return backoff;
+		return entry;
 	}
 
-	private void removeBackoff(String deviceKey) {
+	private void removeEntry(DeviceKey deviceKey) {
 		backoffs.remove(deviceKey);
 	}
 
+	/**
+	 * Checks the next few entries of the sweep order, evicting those whose
+	 * backoff and grace period have expired and moving the others to the end.
+	 */
+	private void sweepExpired() {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < SWEEP_BATCH; i++) {
+			Entry entry = sweepOrder.poll();
+			if (entry == null)
+				return;
+			if (backoffs.get(entry.key) != entry)
+				// Already removed
+				continue;
+			if (entry.expiry + GRACE_MILLIS < now)
+				backoffs.remove(entry.key, entry);
+			else
+				sweepOrder.add(entry);
+		}
+	}
+
+	/**
+	 * Evicts the oldest entries until the table has room for one more, or at
+	 * most a few entries have been evicted.
+	 */
+	private void evictOldest() {
+		for (int i = 0; i < EVICT_BATCH && backoffs.size() >= maxDevices; i++) {
+			Entry entry = sweepOrder.poll();
+			if (entry == null)
+				return;
+			backoffs.remove(entry.key, entry);
+		}
+	}
+
+	/**
+	 * The backoff state of a device and the time at which it expires.
+	 */
+	private static class Entry {
+		private final DeviceKey key;
+
+		private final Backoff backoff;
+
+		private volatile long expiry;
+
+		public Entry(DeviceKey key, Backoff backoff) {
+			this.key = key;
+			this.backoff = backoff;
+			this.expiry = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * A compact, fixed-size key for a device, the 128-bit hash of its
+	 * registration id. Collisions are negligible at any realistic number of
+	 * devices and would only share a backoff between two devices.
+	 */
+	private static final class DeviceKey {
+		private final long high;
+
+		private final long low;
+
+		private DeviceKey(long high, long low) {
+			this.high = high;
+			this.low = low;
+		}
+
+		public static DeviceKey of(String registrationId) {
+			byte[] bytes = HASH.hashString(registrationId).asBytes();
+			return new DeviceKey(toLong(bytes, 0), toLong(bytes, 8));
+		}
+
+		private static long toLong(byte[] bytes, int offset) {
+			long value = 0;
+			for (int i = offset + 7; i >= offset; i--) {
+				value = (value << 8) | (bytes[i] & 0xFF);
+			}
+			return value;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) low;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof DeviceKey))
+				return false;
+			DeviceKey other = (DeviceKey) obj;
+			return high == other.high && low == other.low;
+		}
+	}
+
 }
@@ -15,6 +15,14 @@
  */
 package com.bethzur.gcm4j.async.handler;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import com.bethzur.gcm4j.Message;
 import com.bethzur.gcm4j.Response;
 import com.bethzur.gcm4j.ResponseType;
@@ -27,18 +35,55 @@ import com.bethzur.gcm4j.backoff.Backoff;
  * backoff for {@link ResponseType#QuotaExceeded QuotaExceeded} and
  * {@link ResponseType#ServiceUnavailable ServiceUnavailable} responses and
  * delays messages to respect {@code Retry-After} headers.
+ * <p>
+ * A {@code Retry-After} header closes a global pause gate until the specified
+ * time. Messages dequeued while the gate is closed or ramping up are held
+ * (see {@link Context#hold()}) in arrival order instead of each being delayed
+ * on its own. After the pause, they are released at a rate that ramps up
+ * linearly from zero to a configurable rate over a configurable period (by
+ * default, 500 messages per second over 10 seconds), and then stays at that
+ * rate until the backlog held by the gate has drained.
+ * <p>
+ * The release is paced by a single message, the pacer, which is delayed until
+ * the next release slot instead of being held. When its slot is due, the
+ * pacer passes the gate, releases any other held messages whose slots are due
+ * by then, and resumes the oldest held message as the next pacer. If the pacer
+ * completes before its slot (e.g., it is cancelled or shed), the next held
+ * message takes its place. A retry during the same pause is held behind the
+ * backlog again.
  * 
  * @author David R. Bild
  * 
  */
 public class GlobalBackoffThrottle implements MessageFilter,
 		ResponseHandler<Response> {
-	static final String CONTEXT_KEY = GlobalBackoffThrottle.class
-			.getCanonicalName();
+	static final ContextKey<Attempt> CONTEXT_KEY = ContextKey
+			.create(GlobalBackoffThrottle.class.getCanonicalName());
+
+	static final ContextKey<Pacer> PACER_CONTEXT_KEY = ContextKey
+			.create(GlobalBackoffThrottle.class.getCanonicalName() + ".pacer");
+
+	static final ContextKey<Boolean> PASS_CONTEXT_KEY = ContextKey
+			.create(GlobalBackoffThrottle.class.getCanonicalName() + ".pass");
+
+	private static final long DEFAULT_RAMP_MILLIS = TimeUnit.SECONDS
+			.toMillis(10);
+
+	private static final double DEFAULT_RAMP_RATE = 500;
+
+	private static final Pause OPEN = new Pause(0);
+
+	private final Backoff backoff;
+
+	private final long rampMillis;
 
-	private Backoff backoff;
+	private final double rampRate;
 
-	private long nextRetryTime;
+	private final AtomicReference<Pause> pause;
+
+	private final Queue<Waiter> held;
+
+	private final AtomicBoolean pacing;
 
 	/**
 	 * Constructs a new throttle using the provided {@code Backoff} instance for
@@ -48,7 +93,35 @@ public class GlobalBackoffThrottle implements MessageFilter,
 	 *            the backoff object
 	 */
 	public GlobalBackoffThrottle(Backoff backoff) {
+		this(backoff, DEFAULT_RAMP_MILLIS, DEFAULT_RAMP_RATE);
+	}
+
+	/**
+	 * Constructs a new throttle using the provided {@code Backoff} instance for
+	 * backoff and the specified ramp-up after a {@code Retry-After} pause.
+	 * 
+	 * @param backoff
+	 *            the backoff object
+	 * @param rampMillis
+	 *            the duration of the ramp-up in milliseconds
+	 * @param rampRate
+	 *            the release rate in messages per second reached at the end
+	 *            of the ramp-up
+	 */
+	public GlobalBackoffThrottle(Backoff backoff, long rampMillis,
+			double rampRate) {
+		if (rampMillis <= 0)
+			throw new IllegalArgumentException(
+					"Argument 'rampMillis' must be positive.");
+		if (!(rampRate > 0))
+			throw new IllegalArgumentException(
+					"Argument 'rampRate' must be positive.");
 		this.backoff = backoff;
+		this.rampMillis = rampMillis;
+		this.rampRate = rampRate;
+		this.pause = new AtomicReference<Pause>(OPEN);
+		this.held = new ConcurrentLinkedQueue<Waiter>();
+		this.pacing = new AtomicBoolean();
 	}
 
 	/**
@@ -67,6 +140,29 @@ public class GlobalBackoffThrottle implements MessageFilter,
 		register(handlers);
 	}
 
+	/**
+	 * Constructs a new throttle using the provided {@code Backoff} instance for
+	 * backoff and the specified ramp-up after a {@code Retry-After} pause and
+	 * registers the underlying filters and handlers with the provider
+	 * {@link AsyncHandlers} instance.
+	 * 
+	 * @param backoff
+	 *            the backoff object
+	 * @param rampMillis
+	 *            the duration of the ramp-up in milliseconds
+	 * @param rampRate
+	 *            the release rate in messages per second reached at the end
+	 *            of the ramp-up
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public GlobalBackoffThrottle(Backoff backoff, long rampMillis,
+			double rampRate, AsyncHandlers handlers) {
+		this(backoff, rampMillis, rampRate);
+		register(handlers);
+	}
+
 	private void register(AsyncHandlers handlers) {
 		handlers.appendEnqueueFilter(this);
 		handlers.appendDequeueFilter(this);
@@ -75,6 +171,17 @@ public class GlobalBackoffThrottle implements MessageFilter,
 		handlers.appendResponseHandler(ResponseType.Success, this);
 	}
 
+	/**
+	 * Gets the number of messages held by the pause gate. Messages that
+	 * complete while held may be counted until they reach the head of the
+	 * queue.
+	 * 
+	 * @return the number of held messages
+	 */
+	public int getHeld() {
+		return held.size();
+	}
+
 	// ------------------------- Filter Messages ------------------------------
 	@Override
 	public void enqueueFilter(Context<Message, MessageDecision> context) {
@@ -84,6 +191,15 @@ public class GlobalBackoffThrottle implements MessageFilter,
 	@Override
 	public void dequeueFilter(Context<Message, MessageDecision> context) {
 		updateDelay(context);
+		switch (context.getDecision()) {
+		case SEND:
+			// Delayed messages are gated when dequeued again
+			if (context.getDelay() <= 0)
+				gate(context);
+			return;
+		default:
+			return;
+		}
 	}
 
 	private Attempt createAttempt(Context<Message, MessageDecision> context) {
@@ -95,8 +211,7 @@ public class GlobalBackoffThrottle implements MessageFilter,
 	private void updateDelay(Context<Message, MessageDecision> context) {
 		switch (context.getDecision()) {
 		case SEND:
-			Attempt attempt = createAttempt(context);
-			long delay = Math.max(attempt.delay(), retryDelay());
+			long delay = createAttempt(context).delay();
 			if (delay > context.getDelay())
 				context.setDelay(delay);
 			return;
@@ -105,9 +220,116 @@ public class GlobalBackoffThrottle implements MessageFilter,
 		}
 	}
 
-	private long retryDelay() {
-		long delay = nextRetryTime - System.currentTimeMillis();
-		return Math.max(0, delay);
+	/**
+	 * Passes, holds, or paces a message at the pause gate.
+	 */
+	private void gate(Context<Message, MessageDecision> context) {
+		if (context.get(PASS_CONTEXT_KEY) != null) {
+			// Released by the pacer
+			context.put(PASS_CONTEXT_KEY, null);
+			return;
+		}
+		Pacer pacer = context.get(PACER_CONTEXT_KEY);
+		if (pacer != null) {
+			pace(context, pacer);
+			return;
+		}
+
+		Pause current = pause.get();
+		if (current == OPEN)
+			return;
+		if (!pacing.compareAndSet(false, true)) {
+			hold(context);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (held.isEmpty()
+				&& now >= current.until + rampMillis
+				&& now >= current.releaseTime(current.released.get(),
+						rampMillis, rampRate)
+				&& pause.compareAndSet(current, OPEN)) {
+			// Ramp-up over and backlog drained
+			pacing.set(false);
+			return;
+		}
+		pacer = new Pacer();
+		context.put(PACER_CONTEXT_KEY, pacer);
+		context.addCompletionListener(pacer);
+		pace(context, pacer);
+	}
+
+	/**
+	 * Delays the pacer until the next release slot or, if it is due, passes
+	 * it and releases the held messages due by now.
+	 */
+	private void pace(Context<Message, MessageDecision> context, Pacer pacer) {
+		Pause current = pause.get();
+		long now = System.currentTimeMillis();
+		if (current != OPEN) {
+			long due = current.releaseTime(current.released.get(),
+					rampMillis, rampRate);
+			if (due > now) {
+				context.setDelay(due - now);
+				return;
+			}
+			current.released.incrementAndGet();
+		}
+		context.put(PACER_CONTEXT_KEY, null);
+		// Completed meanwhile, which already passed pacing on
+		if (!pacer.finish())
+			return;
+
+		while (current != OPEN
+				&& current.releaseTime(current.released.get(), rampMillis,
+						rampRate) <= now) {
+			Waiter waiter = nextWaiter();
+			if (waiter == null)
+				break;
+			current.released.incrementAndGet();
+			waiter.pass();
+		}
+		handOff();
+	}
+
+	private void hold(Context<Message, MessageDecision> context) {
+		Waiter waiter = new Waiter(context, context.hold());
+		held.add(waiter);
+		context.addCompletionListener(waiter);
+		// Pacing may have stopped before the waiter was queued
+		if (!pacing.get() && pacing.compareAndSet(false, true))
+			handOff();
+	}
+
+	/**
+	 * Passes pacing on to the oldest held message, or stops pacing if none is
+	 * held. Only called while pacing.
+	 */
+	private void handOff() {
+		while (true) {
+			Waiter waiter = nextWaiter();
+			if (waiter != null) {
+				waiter.pace();
+				return;
+			}
+			pacing.set(false);
+			// A message may have been held before pacing stopped
+			if (held.isEmpty() || !pacing.compareAndSet(false, true))
+				return;
+		}
+	}
+
+	/**
+	 * Removes the oldest held message, skipping those that completed while
+	 * held.
+	 * 
+	 * @return the message, or {@code null} if none is held
+	 */
+	private Waiter nextWaiter() {
+		while (true) {
+			Waiter waiter = held.poll();
+			if (waiter == null || waiter.claim())
+				return waiter;
+		}
 	}
 
 	// ------------------------- Handle Responses -----------------------------
@@ -133,12 +355,136 @@ public class GlobalBackoffThrottle implements MessageFilter,
 	}
 
 	private Attempt retrieveAttempt(Context<Response, ResultDecision> context) {
-		return context.get(CONTEXT_KEY, Attempt.class);
+		return context.get(CONTEXT_KEY);
 	}
 
 	private void updateRetryAfter(UnavailableResponse response) {
-		if (response.hasRetryAfter())
-			nextRetryTime = response.retryAfter().getTime();
+		if (!response.hasRetryAfter())
+			return;
+
+		long until = response.retryAfter().getTime();
+		while (true) {
+			Pause current = pause.get();
+			if (current.until >= until)
+				return;
+			if (pause.compareAndSet(current, new Pause(until)))
+				return;
+		}
+	}
+
+	/**
+	 * A pause of the gate until a given time, followed by a ramp-up. Release
+	 * slots are handed out in order from the {@code released} counter.
+	 */
+	private static class Pause {
+		private final long until;
+
+		private final AtomicLong released;
+
+		public Pause(long until) {
+			this.until = until;
+			this.released = new AtomicLong();
+		}
+
+		/**
+		 * Computes the release time of the n-th held message. The rate grows
+		 * linearly from zero to {@code rampRate} over the ramp-up, so
+		 * {@code rampRate * t^2 / (2 * rampMillis)} messages are released by
+		 * time {@code t}, and then stays at {@code rampRate}.
+		 */
+		public long releaseTime(long n, long rampMillis, double rampRate) {
+			double perMilli = rampRate / 1000;
+			double rampCount = perMilli * rampMillis / 2;
+			double offset;
+			if (n < rampCount)
+				offset = Math.sqrt(2 * n * rampMillis / perMilli);
+			else
+				offset = rampMillis + (n - rampCount) / perMilli;
+			return until + (long) offset;
+		}
+	}
+
+	/**
+	 * The duty to pace the release, carried by one message at a time. Run as
+	 * a completion listener, it passes pacing on if the message completes
+	 * before its slot.
+	 */
+	private class Pacer implements Runnable {
+		private final AtomicBoolean active;
+
+		public Pacer() {
+			this.active = new AtomicBoolean(true);
+		}
+
+		/**
+		 * Ends the duty of this pacer.
+		 * 
+		 * @return {@code false} if it had already ended
+		 */
+		public boolean finish() {
+			return active.compareAndSet(true, false);
+		}
+
+		@Override
+		public void run() {
+			if (finish())
+				handOff();
+		}
+	}
+
+	/**
+	 * A held message. Run as a completion listener, it marks the message as
+	 * completed, so that it is skipped when released.
+	 */
+	private class Waiter implements Runnable {
+		private static final int HELD = 0;
+		private static final int RELEASED = 1;
+		private static final int DONE = 2;
+
+		private final Context<Message, MessageDecision> context;
+
+		private final Runnable resume;
+
+		private final AtomicInteger state;
+
+		public Waiter(Context<Message, MessageDecision> context,
+				Runnable resume) {
+			this.context = context;
+			this.resume = resume;
+			this.state = new AtomicInteger(HELD);
+		}
+
+		/**
+		 * Claims the message for release unless it completed while held.
+		 * 
+		 * @return {@code true} if the message was claimed
+		 */
+		public boolean claim() {
+			return state.compareAndSet(HELD, RELEASED);
+		}
+
+		/**
+		 * Resumes the claimed message to pass the gate.
+		 */
+		public void pass() {
+			context.put(PASS_CONTEXT_KEY, Boolean.TRUE);
+			resume.run();
+		}
+
+		/**
+		 * Resumes the claimed message as the next pacer.
+		 */
+		public void pace() {
+			Pacer pacer = new Pacer();
+			context.put(PACER_CONTEXT_KEY, pacer);
+			context.addCompletionListener(pacer);
+			resume.run();
+		}
+
+		@Override
+		public void run() {
+			state.compareAndSet(HELD, DONE);
+		}
 	}
 
 }
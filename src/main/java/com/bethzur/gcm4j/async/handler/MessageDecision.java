@@ -16,6 +16,7 @@
 package com.bethzur.gcm4j.async.handler;
 
 import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.Response;
 
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
@@ -33,7 +34,33 @@ public enum MessageDecision {
 	SEND,
 	/**
 	 * Cancel the message, returning a {@link CancellationException} in the
-	 * associated {@link Future}.
+	 * associated {@link Future}. The message is cancelled deliberately, e.g.,
+	 * because it is obsolete, and is not passed to the {@link DeadLetterSink}.
 	 */
-	CANCEL
+	CANCEL,
+	/**
+	 * Reject the message without sending it, returning a
+	 * {@link CancellationException} in the associated {@link Future} like
+	 * {@link #CANCEL}. The message failed, e.g., because the service is
+	 * unavailable, and is passed to the {@link DeadLetterSink}.
+	 */
+	REJECT,
+	/**
+	 * Do not send the message, but return the {@link Response} stored in the
+	 * {@link Context} under {@link #RESPONSE_KEY} in the associated
+	 * {@link Future}. If no response is stored, the message is canceled.
+	 */
+	RETURN,
+	/**
+	 * Hold the message, neither sending nor completing it, until the filter
+	 * that held it resumes it. Set by {@link Context#hold()} only.
+	 */
+	HOLD;
+
+	/**
+	 * The context key under which a filter deciding {@link #RETURN} stores the
+	 * response to return.
+	 */
+	public static final ContextKey<Response> RESPONSE_KEY = ContextKey
+			.create(MessageDecision.class.getCanonicalName() + ".response");
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bethzur.gcm4j.Message;
+
+/**
+ * A message filter that limits the global send rate with a token bucket and
+ * optionally paces sends against a daily quota, delaying messages so they are
+ * spread out instead of being rejected by GCM with
+ * {@link com.bethzur.gcm4j.ResponseType#QuotaExceeded QuotaExceeded}.
+ * <p>
+ * The bucket is implemented as a virtual scheduling clock that is advanced
+ * with compare-and-set, so the filter is lock-free. Each message dequeued to
+ * be sent reserves the next free slot and is delayed until that slot, so
+ * messages are paced rather than polled. Up to {@code burst} messages may be
+ * sent at once after an idle period.
+ * <p>
+ * With a daily quota, the rate is further limited to the remaining quota
+ * spread over the remaining time of the current day (UTC), so the quota lasts
+ * until it resets. Once it is used up, messages are delayed until the next
+ * day without being charged or reserving a slot; when dequeued again after
+ * the reset, they reserve slots of the new day and are paced as usual.
+ * <p>
+ * The filter should be appended after filters that may delay or cancel
+ * messages on dequeue, so that slots are reserved only for messages that are
+ * sent.
+ *
+ * @author David R. Bild
+ *
+ */
+public class RateLimitThrottle implements MessageFilter {
+	static final ContextKey<Reservation> CONTEXT_KEY = ContextKey
+			.create(RateLimitThrottle.class.getCanonicalName());
+
+	private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * The number of low bits of the quota state holding the count of the
+	 * day; the high bits hold the day.
+	 */
+	private static final int COUNT_BITS = 40;
+
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+	private final long intervalNanos;
+
+	private final long burstNanos;
+
+	private final long dailyQuota;
+
+	private final AtomicLong nextFree;
+
+	/**
+	 * The current day and the quota used on it, packed so that both roll over
+	 * in one step.
+	 */
+	private final AtomicLong quotaState;
+
+	/**
+	 * Constructs a new throttle limiting the send rate without a daily quota.
+	 *
+	 * @param permitsPerSecond
+	 *            the sustained number of messages per second
+	 * @param burst
+	 *            the number of messages that may be sent at once after an
+	 *            idle period
+	 */
+	public RateLimitThrottle(double permitsPerSecond, int burst) {
+		this(permitsPerSecond, burst, 0);
+	}
+
+	/**
+	 * Constructs a new throttle limiting the send rate and pacing sends
+	 * against a daily quota.
+	 *
+	 * @param permitsPerSecond
+	 *            the sustained number of messages per second
+	 * @param burst
+	 *            the number of messages that may be sent at once after an
+	 *            idle period
+	 * @param dailyQuota
+	 *            the number of messages that may be sent per day (UTC), or
+	 *            {@code 0} for no quota
+	 */
+	public RateLimitThrottle(double permitsPerSecond, int burst,
+			long dailyQuota) {
+		if (!(permitsPerSecond > 0))
+			throw new IllegalArgumentException(
+					"Argument 'permitsPerSecond' must be positive.");
+		if (burst < 1)
+			throw new IllegalArgumentException(
+					"Argument 'burst' must be positive.");
+		if (dailyQuota < 0 || dailyQuota > COUNT_MASK)
+			throw new IllegalArgumentException(
+					"Argument 'dailyQuota' must be between 0 and 2^40 - 1.");
+		this.intervalNanos = Math.max(1,
+				(long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.burstNanos = (burst - 1) * intervalNanos;
+		this.dailyQuota = dailyQuota;
+		this.nextFree = new AtomicLong(System.nanoTime());
+		this.quotaState = new AtomicLong(currentDay() << COUNT_BITS);
+	}
+
+	/**
+	 * Constructs a new throttle limiting the send rate without a daily quota
+	 * and registers it with the provided {@link AsyncHandlers} instance.
+	 *
+	 * @param permitsPerSecond
+	 *            the sustained number of messages per second
+	 * @param burst
+	 *            the number of messages that may be sent at once after an
+	 *            idle period
+	 * @param handlers
+	 *            the handlers object with which to register the filter
+	 */
+	public RateLimitThrottle(double permitsPerSecond, int burst,
+			AsyncHandlers handlers) {
+		this(permitsPerSecond, burst, 0, handlers);
+	}
+
+	/**
+	 * Constructs a new throttle limiting the send rate and pacing sends
+	 * against a daily quota and registers it with the provided
+	 * {@link AsyncHandlers} instance.
+	 *
+	 * @param permitsPerSecond
+	 *            the sustained number of messages per second
+	 * @param burst
+	 *            the number of messages that may be sent at once after an
+	 *            idle period
+	 * @param dailyQuota
+	 *            the number of messages that may be sent per day (UTC), or
+	 *            {@code 0} for no quota
+	 * @param handlers
+	 *            the handlers object with which to register the filter
+	 */
+	public RateLimitThrottle(double permitsPerSecond, int burst,
+			long dailyQuota, AsyncHandlers handlers) {
+		this(permitsPerSecond, burst, dailyQuota);
+		handlers.appendDequeueFilter(this);
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		// Slots are reserved on dequeue only
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			if (context.getDelay() > 0)
+				return;
+
+			Reservation reservation = context.get(CONTEXT_KEY);
+			if (reservation != null) {
+				long remaining = reservation.time - System.nanoTime();
+				if (remaining > 0) {
+					// Dequeued early; keep the reservation
+					context.setDelay(toMillis(remaining));
+					return;
+				}
+				context.put(CONTEXT_KEY, null);
+				if (!reservation.quotaReset)
+					return;
+				// The quota has reset, so reserve a slot of the new day
+			}
+
+			reservation = reserve();
+			if (reservation != null) {
+				context.put(CONTEXT_KEY, reservation);
+				context.setDelay(Math.max(1,
+						toMillis(reservation.time - System.nanoTime())));
+			}
+			return;
+		default:
+			return;
+		}
+	}
+
+	/**
+	 * Reserves the next free slot or, if the daily quota is used up, waits
+	 * for the quota to reset.
+	 *
+	 * @return the reservation to wait for, or {@code null} if the message may
+	 *         be sent now
+	 */
+	private Reservation reserve() {
+		long interval = intervalNanos;
+		if (dailyQuota > 0) {
+			long now = System.currentTimeMillis();
+			long today = now / DAY_MILLIS;
+			long remainingMillis = (today + 1) * DAY_MILLIS - now;
+			long used = chargeQuota(today);
+			if (used < 0)
+				// Used up; wait for the next day without taking a slot
+				return new Reservation(System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(remainingMillis), true);
+			long remainingQuota = dailyQuota - used + 1;
+			interval = Math.max(interval, TimeUnit.MILLISECONDS
+					.toNanos(remainingMillis) / remainingQuota);
+		}
+
+		while (true) {
+			long now = System.nanoTime();
+			long current = nextFree.get();
+			long slot = Math.max(current, now - burstNanos);
+			if (nextFree.compareAndSet(current, slot + interval))
+				return (slot > now) ? new Reservation(slot, false) : null;
+		}
+	}
+
+	/**
+	 * Charges one message against the quota of the given day, rolling over
+	 * to that day if it is newer than the current one.
+	 *
+	 * @return the quota used today including this message, or -1 if the quota
+	 *         is used up
+	 */
+	private long chargeQuota(long today) {
+		while (true) {
+			long current = quotaState.get();
+			long day = current >>> COUNT_BITS;
+			long used = (today > day) ? 0 : current & COUNT_MASK;
+			if (used >= dailyQuota)
+				return -1;
+			long next = (Math.max(today, day) << COUNT_BITS) | (used + 1);
+			if (quotaState.compareAndSet(current, next))
+				return used + 1;
+		}
+	}
+
+	private static long currentDay() {
+		return System.currentTimeMillis() / DAY_MILLIS;
+	}
+
+	private static long toMillis(long nanos) {
+		return (nanos + 999999) / 1000000;
+	}
+
+	/**
+	 * The slot reserved for a delayed message, or the reset of the used-up
+	 * quota.
+	 */
+	private static class Reservation {
+		private final long time;
+
+		private final boolean quotaReset;
+
+		public Reservation(long time, boolean quotaReset) {
+			this.time = time;
+			this.quotaReset = quotaReset;
+		}
+	}
+
+}
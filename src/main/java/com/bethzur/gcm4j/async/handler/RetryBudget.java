@@ -0,0 +1,258 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+import com.bethzur.gcm4j.UnexpectedResponseException;
+
+/**
+ * A message filter and response/throwable handler that caps retry
+ * amplification. It counts first attempts and retries over a sliding window
+ * and, once retries exceed the budget, turns {@link ResultDecision#RETRY
+ * RETRY} decisions into {@link ResultDecision#RETURN RETURN}.
+ * <p>
+ * The budget is a ratio of retries to first attempts in the window (e.g.,
+ * {@code 0.2} allows one retry per five fresh messages) plus a minimum number
+ * of retries per second, so that retries are allowed when the send volume is
+ * low. The counters are striped {@link LongAdder}s in per-second buckets, so
+ * counting is cheap and uncontended.
+ * <p>
+ * The budget must see the final decision of the other response and throwable
+ * handlers, so it should be appended after them. The budget is registered
+ * for {@link IOException} and {@link UnexpectedResponseException}, which
+ * include their subclasses.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class RetryBudget implements MessageFilter, ResponseHandler<Response>,
+		ThrowableHandler<Throwable> {
+	static final ContextKey<Boolean> CONTEXT_KEY = ContextKey
+			.create(RetryBudget.class.getCanonicalName());
+
+	private static final double DEFAULT_RATIO = 0.2;
+	private static final int DEFAULT_MIN_RETRIES_PER_SECOND = 10;
+	private static final int DEFAULT_WINDOW_SECONDS = 10;
+
+	private static final long BUCKET_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+	private final double ratio;
+
+	private final int minRetriesPerSecond;
+
+	private final Bucket[] buckets;
+
+	private final LongAdder allowed;
+
+	private final LongAdder denied;
+
+	/**
+	 * Constructs a new budget allowing 0.2 retries per first attempt plus 10
+	 * retries per second over a 10 second window.
+	 */
+	public RetryBudget() {
+		this(DEFAULT_RATIO, DEFAULT_MIN_RETRIES_PER_SECOND,
+				DEFAULT_WINDOW_SECONDS);
+	}
+
+	/**
+	 * Constructs a new budget.
+	 * 
+	 * @param ratio
+	 *            the number of retries allowed per first attempt
+	 * @param minRetriesPerSecond
+	 *            the number of retries per second allowed regardless of the
+	 *            ratio
+	 * @param windowSeconds
+	 *            the length of the sliding window in seconds
+	 */
+	public RetryBudget(double ratio, int minRetriesPerSecond, int windowSeconds) {
+		if (ratio < 0)
+			throw new IllegalArgumentException(
+					"Argument 'ratio' may not be negative.");
+		if (minRetriesPerSecond < 0)
+			throw new IllegalArgumentException(
+					"Argument 'minRetriesPerSecond' may not be negative.");
+		if (windowSeconds < 1)
+			throw new IllegalArgumentException(
+					"Argument 'windowSeconds' must be positive.");
+		this.ratio = ratio;
+		this.minRetriesPerSecond = minRetriesPerSecond;
+		this.buckets = new Bucket[windowSeconds];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new Bucket();
+		}
+		this.allowed = new LongAdder();
+		this.denied = new LongAdder();
+	}
+
+	/**
+	 * Constructs a new budget with default parameters and registers the
+	 * underlying filters and handlers with the provided {@link AsyncHandlers}
+	 * instance.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public RetryBudget(AsyncHandlers handlers) {
+		this();
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new budget and registers the underlying filters and
+	 * handlers with the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param ratio
+	 *            the number of retries allowed per first attempt
+	 * @param minRetriesPerSecond
+	 *            the number of retries per second allowed regardless of the
+	 *            ratio
+	 * @param windowSeconds
+	 *            the length of the sliding window in seconds
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public RetryBudget(double ratio, int minRetriesPerSecond,
+			int windowSeconds, AsyncHandlers handlers) {
+		this(ratio, minRetriesPerSecond, windowSeconds);
+		register(handlers);
+	}
+
+	private void register(AsyncHandlers handlers) {
+		handlers.appendEnqueueFilter(this);
+		for (ResponseType type : ResponseType.values()) {
+			handlers.appendResponseHandler(type, this);
+		}
+		handlers.appendThrowableHandler(IOException.class, this);
+		handlers.appendThrowableHandler(UnexpectedResponseException.class,
+				this);
+	}
+
+	/**
+	 * Gets the total number of retry decisions allowed by the budget.
+	 * 
+	 * @return the number of retries allowed
+	 */
+	public long getAllowedRetries() {
+		return allowed.sum();
+	}
+
+	/**
+	 * Gets the total number of retry decisions turned into returns by the
+	 * budget.
+	 * 
+	 * @return the number of retries denied
+	 */
+	public long getDeniedRetries() {
+		return denied.sum();
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		// The context is shared by retries, so a message is counted once
+		if (context.get(CONTEXT_KEY) == null) {
+			context.put(CONTEXT_KEY, Boolean.TRUE);
+			bucket(System.currentTimeMillis()).firsts.increment();
+		}
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		// Counts first attempts on enqueue only
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		checkRetry(context);
+	}
+
+	// ------------------------- Handle Throwables ----------------------------
+	@Override
+	public void handleThrowable(Context<Throwable, ResultDecision> context) {
+		checkRetry(context);
+	}
+
+	private void checkRetry(Context<?, ResultDecision> context) {
+		switch (context.getDecision()) {
+		case RETRY:
+			if (tryRetry()) {
+				allowed.increment();
+			} else {
+				denied.increment();
+				context.setDecision(ResultDecision.RETURN);
+			}
+			return;
+		default:
+			return;
+		}
+	}
+
+	private boolean tryRetry() {
+		long now = System.currentTimeMillis();
+		long epoch = now / BUCKET_MILLIS;
+		long firsts = 0;
+		long retries = 0;
+		for (Bucket bucket : buckets) {
+			if (epoch - bucket.epoch.get() < buckets.length) {
+				firsts += bucket.firsts.sum();
+				retries += bucket.retries.sum();
+			}
+		}
+
+		long budget = (long) (ratio * firsts) + (long) minRetriesPerSecond
+				* buckets.length;
+		if (retries >= budget)
+			return false;
+		bucket(now).retries.increment();
+		return true;
+	}
+
+	private Bucket bucket(long now) {
+		long epoch = now / BUCKET_MILLIS;
+		Bucket bucket = buckets[(int) (epoch % buckets.length)];
+		long current = bucket.epoch.get();
+		if (current != epoch && bucket.epoch.compareAndSet(current, epoch)) {
+			// Counts added concurrently with the reset may be lost
+			bucket.firsts.reset();
+			bucket.retries.reset();
+		}
+		return bucket;
+	}
+
+	/**
+	 * Counts of first attempts and retries during one second.
+	 */
+	private static class Bucket {
+		private final AtomicLong epoch = new AtomicLong(-1);
+
+		private final LongAdder firsts = new LongAdder();
+
+		private final LongAdder retries = new LongAdder();
+	}
+
+}
@@ -40,7 +40,7 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public abstract class AbstractThreadSafeBackoff implements Backoff {
 
-	private static final State NO_BACKOFF = new State(0, 0);
+	private static final State NO_BACKOFF = new State(0, 0, 0);
 
 	private final int maxCount;
 
@@ -66,6 +66,26 @@ public abstract class AbstractThreadSafeBackoff implements Backoff {
 	 */
 	protected abstract long computeInterval(int count);
 
+	/**
+	 * Computes an absolute backoff duration from the given count of consecutive
+	 * failures and the duration computed for the preceding failure. Children
+	 * whose duration depends on its predecessor override this method; the
+	 * previous duration is carried in the recorded state, so concurrent
+	 * attempts never see each other's candidate durations. The default
+	 * implementation ignores {@code previous} and delegates to
+	 * {@link #computeInterval(int)}.
+	 * 
+	 * @param count
+	 *            number of consecutive failures
+	 * @param previous
+	 *            the duration computed for the preceding failure, or zero
+	 *            after a success
+	 * @return the backoff duration
+	 */
+	protected long computeInterval(int count, long previous) {
+		return computeInterval(count);
+	}
+
 	@Override
 	public Attempt begin() {
 		return new AttemptImpl(this, state.get());
@@ -104,22 +124,26 @@ public abstract class AbstractThreadSafeBackoff implements Backoff {
 	private State increment(State state) {
 		int count = state.count();
 		count = count < maxCount ? count + 1 : count;
-		return new State(count, System.currentTimeMillis()
-				+ computeInterval(count));
+		long interval = computeInterval(count, state.interval());
+		return new State(count, interval, System.currentTimeMillis()
+				+ interval);
 	}
 
 	/**
-	 * The state of the backoff algorithm as a failure count and expiry time.
+	 * The state of the backoff algorithm as a failure count, the duration
+	 * computed for the latest failure, and expiry time.
 	 * 
 	 * @author David R. Bild
 	 * 
 	 */
 	private static class State {
 		private final int count;
+		private final long interval;
 		private final long expiry;
 
-		public State(int count, long expiry) {
+		public State(int count, long interval, long expiry) {
 			this.count = count;
+			this.interval = interval;
 			this.expiry = expiry;
 		}
 
@@ -127,6 +151,10 @@ public abstract class AbstractThreadSafeBackoff implements Backoff {
 			return count;
 		}
 
+		public long interval() {
+			return interval;
+		}
+
 		public long expiry() {
 			return expiry;
 		}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.backoff;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Implementation of {@code Backoff} in which each backoff duration is drawn
+ * uniformly between a base duration and three times the previous duration,
+ * capped at a maximum ("decorrelated jitter"). After a success, the previous
+ * duration is taken to be the base duration.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class DecorrelatedJitterBackoff extends AbstractThreadSafeBackoff {
+	private final static long DEFAULT_BASE = 1;
+	private final static long DEFAULT_CAP = 1048575;
+
+	private final long base;
+
+	private final long cap;
+
+	/**
+	 * Constructs a new backoff with a base duration of 1 millisecond and a
+	 * maximum duration of about 17.5 minutes.
+	 */
+	public DecorrelatedJitterBackoff() {
+		this(DEFAULT_BASE, DEFAULT_CAP);
+	}
+
+	/**
+	 * Constructs a new backoff whose delay duration is computed as follows:
+	 * </br> <code>
+	 * min(cap, random(base, 3 * previous)) </br>
+	 * </code> where {@code previous} is the previous delay duration, or
+	 * {@code base} after a success.
+	 * 
+	 * @param base
+	 *            the base duration in milliseconds
+	 * @param cap
+	 *            the maximum duration in milliseconds
+	 */
+	public DecorrelatedJitterBackoff(long base, long cap) {
+		super(Integer.MAX_VALUE);
+		if (base < 1)
+			throw new IllegalArgumentException(
+					"Argument 'base' must be positive.");
+		if (cap < base)
+			throw new IllegalArgumentException(
+					"Argument 'cap' may not be less than 'base'.");
+		this.base = base;
+		this.cap = cap;
+	}
+
+	@Override
+	protected long computeInterval(int count) {
+		return computeInterval(count, base);
+	}
+
+	@Override
+	protected long computeInterval(int count, long previous) {
+		long prev = (count <= 1) ? base : Math.max(base, previous);
+		long upper = Math.min(cap, 3 * prev);
+		return (upper > base) ? ThreadLocalRandom.current().nextLong(base,
+				upper + 1) : base;
+	}
+
+	/**
+	 * Provider for constructing instances of {@code DecorrelatedJitterBackoff}
+	 * at runtime.
+	 * 
+	 * @author David R. Bild
+	 * 
+	 */
+	public static class Provider implements BackoffProvider {
+		private final long base;
+		private final long cap;
+
+		/**
+		 * Constructs a provider that builds backoff instances with a base
+		 * duration of 1 millisecond and a maximum duration of about 17.5
+		 * minutes.
+		 */
+		public Provider() {
+			this(DEFAULT_BASE, DEFAULT_CAP);
+		}
+
+		/**
+		 * Constructs a provider that builds backoff instances whose delay
+		 * durations are computed as follows: </br> <code>
+		 * min(cap, random(base, 3 * previous)) </br>
+		 * </code> where {@code previous} is the previous delay duration, or
+		 * {@code base} after a success.
+		 * 
+		 * @param base
+		 *            the base duration in milliseconds
+		 * @param cap
+		 *            the maximum duration in milliseconds
+		 */
+		public Provider(long base, long cap) {
+			this.base = base;
+			this.cap = cap;
+		}
+
+		@Override
+		public Backoff createBackoff() {
+			return new DecorrelatedJitterBackoff(base, cap);
+		}
+	}
+
+}
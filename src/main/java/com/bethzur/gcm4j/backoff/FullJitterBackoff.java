@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.backoff;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Implementation of {@code Backoff} in which the backoff duration is drawn
+ * uniformly between zero and an exponentially increasing bound ("full
+ * jitter"). Unlike {@link ExponentialBackoff}, clients that failed together do
+ * not retry together.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class FullJitterBackoff extends AbstractThreadSafeBackoff {
+	private final static float DEFAULT_SCALE = 1;
+	private final static int DEFAULT_MAX_COUNT = 20;
+
+	private final float scale;
+
+	/**
+	 * Constructs a new backoff with a maximum bound on the backoff duration of
+	 * about 17.5 minutes.
+	 */
+	public FullJitterBackoff() {
+		this(DEFAULT_SCALE, DEFAULT_MAX_COUNT);
+	}
+
+	/**
+	 * Constructs a new backoff with whose delay duration is drawn uniformly
+	 * from the range </br> <code>
+	 * [0, scale * Math.pow(2, min(count, maxCount)) - 1.0)] </br>
+	 * </code> where {@code count} is the number of consecutive failures.
+	 * 
+	 * @param scale
+	 *            scale parameter for the preceding formula
+	 * @param maxCount
+	 *            maxCount in the preceding formula
+	 */
+	public FullJitterBackoff(float scale, int maxCount) {
+		super(maxCount);
+		this.scale = scale;
+	}
+
+	@Override
+	protected long computeInterval(int count) {
+		double bound = scale * (Math.pow(2, count) - 1.0);
+		return (long) Math.ceil(ThreadLocalRandom.current().nextDouble() * bound);
+	}
+
+	/**
+	 * Provider for constructing instances of {@code FullJitterBackoff} at
+	 * runtime.
+	 * 
+	 * @author David R. Bild
+	 * 
+	 */
+	public static class Provider implements BackoffProvider {
+		private final float scale;
+		private final int maxCount;
+
+		/**
+		 * Constructs a provider that builds backoff instances with a maximum
+		 * bound on the backoff duration of about 17.5 minutes.
+		 */
+		public Provider() {
+			this(DEFAULT_SCALE, DEFAULT_MAX_COUNT);
+		}
+
+		/**
+		 * Constructs a provider that builds backoff instances whose delay
+		 * durations are drawn uniformly from the range </br> <code>
+		 * [0, scale * Math.pow(2, min(count, maxCount)) - 1.0)] </br>
+		 * </code> where {@code count} is the number of consecutive failures.
+		 * 
+		 * @param scale
+		 *            scale parameter for the preceding formula
+		 * @param maxCount
+		 *            max count parameter for the preceding formula
+		 */
+		public Provider(float scale, int maxCount) {
+			this.scale = scale;
+			this.maxCount = maxCount;
+		}
+
+		@Override
+		public Backoff createBackoff() {
+			return new FullJitterBackoff(scale, maxCount);
+		}
+	}
+
+}
@@ -16,21 +16,22 @@
 package com.bethzur.gcm4j.impl;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.List;
 
 import org.apache.http.client.HttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.bethzur.gcm4j.GcmManager;
 import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MulticastGcmManager;
 import com.bethzur.gcm4j.Response;
 import com.bethzur.gcm4j.UnexpectedResponseException;
 import com.bethzur.gcm4j.auth.ApiKeyAuthProvider;
 
 /**
- * The default implementation of {@link GcmManager} for pushing messages to
- * clients via the GCM service. The instance is configured via the constructor,
+ * The default implementation of {@link GcmManager} and
+ * {@link MulticastGcmManager} for pushing messages to clients via the GCM
+ * service. The instance is configured via the constructor,
  * which takes an {@link AuthTokenProvider} for retrieving and persisting
  * authentication tokens and an {@link HttpClient} used to the send HTTP
  * requests to the GCM servers.
@@ -46,28 +47,19 @@ import com.bethzur.gcm4j.auth.ApiKeyAuthProvider;
  * &nbsp;&nbsp;&nbsp;&nbsp; HttpClient client = new DefaultHttpClient(connManager); <br/>
  * </code>
  * <p>
+ * {@link GcmHttpClientBuilder} builds such a client with settings tuned for
+ * high throughput (no per-request stale connection check, background
+ * eviction of idle connections, etc.).
+ * <p>
  * SLF4J is used for logging.
  *
  * @author David R. Bild
  *
  */
-public class DefaultGcmManager implements GcmManager {
+public class DefaultGcmManager implements MulticastGcmManager {
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(DefaultGcmManager.class);
 
-	private static final String URI_STRING = "https://android.googleapis.com/gcm/send";
-	private static final URI URI;
-	static {
-		try {
-			URI = new URI(URI_STRING);
-		} catch (URISyntaxException e) {
-			LOGGER.debug("Failed to create URI.", e);
-			throw new RuntimeException(String.format(
-					"Default URI is invalid: %s", URI_STRING), e);
-
-		}
-	}
-
 	private final ApiKeyAuthProvider keyProvider;
 
 	private final HttpClient httpClient;
@@ -97,10 +89,49 @@ public class DefaultGcmManager implements GcmManager {
 			UnexpectedResponseException {
 		LOGGER.debug("Sending GCM message: {}", msg);
 		Response response = httpClient.execute(new GcmHttpPost(msg,
-				keyProvider.getKey(), URI),
+				keyProvider.getKey(), GcmHttpPost.DEFAULT_URI),
 				new GcmHttpResponseHandler(msg));
 		LOGGER.debug("Received GCM reponse: {}", response);
 		return response;
 	}
 
+	@Override
+	public List<Response> pushMessages(List<? extends Message> msgs)
+			throws IOException, UnexpectedResponseException {
+		validateMessages(msgs);
+		LOGGER.debug("Sending GCM multicast message to {} clients: {}",
+				msgs.size(), msgs.get(0));
+		List<Response> responses = httpClient.execute(new GcmJsonHttpPost(
+				msgs, keyProvider.getKey(), GcmHttpPost.DEFAULT_URI),
+				new GcmJsonHttpResponseHandler(msgs));
+		LOGGER.debug("Received GCM multicast reponses: {}", responses);
+		return responses;
+	}
+
+	private static void validateMessages(List<? extends Message> msgs) {
+		if (msgs.isEmpty())
+			throw new IllegalArgumentException(
+					"Argument 'msgs' may not be empty.");
+		if (msgs.size() > MAX_RECIPIENTS)
+			throw new IllegalArgumentException(String.format(
+					"Argument 'msgs' may not contain more than %d messages.",
+					MAX_RECIPIENTS));
+
+		Message first = msgs.get(0);
+		for (Message msg : msgs) {
+			if (!samePayload(first, msg))
+				throw new IllegalArgumentException(
+						"Argument 'msgs' must contain messages with the same payload.");
+		}
+	}
+
+	private static boolean samePayload(Message a, Message b) {
+		if (a == b)
+			return true;
+		return a.delayWhileIdle() == b.delayWhileIdle()
+				&& a.timeToLive() == b.timeToLive()
+				&& a.getCollapseKey().equals(b.getCollapseKey())
+				&& a.getData().equals(b.getData());
+	}
+
 }
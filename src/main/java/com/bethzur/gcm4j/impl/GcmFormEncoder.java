@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.PayloadTemplate;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Encodes {@link Message} instances as {@code application/x-www-form-urlencoded}
+ * request bodies in UTF-8.
+ * <p>
+ * The body is written directly into a per-thread scratch buffer, avoiding the
+ * intermediate name-value pairs and strings created by
+ * {@code UrlEncodedFormEntity}. Bodies are not cached per message: retries
+ * are rare, and a cached body would keep a second, encoded copy of the payload
+ * alive for as long as the message waits in backoff.
+ * <p>
+ * For messages created from a {@link PayloadTemplate}, everything after the
+ * registration id is encoded once per template and shared, so the body is
+ * assembled with a single copy.
+ * <p>
+ * The output is identical to that of {@code UrlEncodedFormEntity}: unreserved
+ * characters ({@code a-z A-Z 0-9 . - * _}) are copied, spaces become
+ * {@code +}, and all other characters are percent-encoded as UTF-8.
+ *
+ * @author David R. Bild
+ *
+ */
+class GcmFormEncoder {
+
+	private static final byte[] REGISTRATION_ID = ascii("registration_id=");
+	private static final byte[] COLLAPSE_KEY = ascii("&collapse_key=");
+	private static final byte[] DELAY_WHILE_IDLE = ascii("&delay_while_idle=");
+	private static final byte[] TIME_TO_LIVE = ascii("&time_to_live=");
+	private static final byte[] DATA_KEY_PREFIX = ascii("&data.");
+
+	private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private static final ConcurrentMap<PayloadTemplate, byte[]> SUFFIXES = new MapMaker()
+			.weakKeys().makeMap();
+
+	private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+
+	/**
+	 * Should not be instantiated.
+	 */
+	private GcmFormEncoder() {
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Returns the form-encoded request body for the specified message in a
+	 * new array.
+	 *
+	 * @param message
+	 *            the message to encode
+	 * @return the encoded request body
+	 */
+	static byte[] encode(Message message) {
+		PayloadTemplate template = PayloadTemplate.templateOf(message);
+		if (template != null)
+			return encodeFromTemplate(message, template);
+
+		Buffer buffer = BUFFER.get();
+		buffer.reset();
+		buffer.append(REGISTRATION_ID);
+		buffer.appendEncoded(message.getRegistrationId());
+		appendPayload(buffer, message);
+		return buffer.toByteArray();
+	}
+
+	private static byte[] encodeFromTemplate(Message message,
+			PayloadTemplate template) {
+		byte[] suffix = SUFFIXES.get(template);
+		if (suffix == null) {
+			Buffer buffer = BUFFER.get();
+			buffer.reset();
+			appendPayload(buffer, message);
+			suffix = buffer.toByteArray();
+			SUFFIXES.put(template, suffix);
+		}
+
+		Buffer buffer = BUFFER.get();
+		buffer.reset();
+		buffer.append(REGISTRATION_ID);
+		buffer.appendEncoded(message.getRegistrationId());
+		buffer.append(suffix);
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Appends everything following the registration id.
+	 */
+	private static void appendPayload(Buffer buffer, Message message) {
+		buffer.append(COLLAPSE_KEY);
+		buffer.appendEncoded(message.getCollapseKey());
+		if (message.delayWhileIdle())
+			buffer.append(DELAY_WHILE_IDLE);
+		if (message.timeToLive() >= 0) {
+			buffer.append(TIME_TO_LIVE);
+			buffer.appendEncoded(Integer.toString(message.timeToLive()));
+		}
+
+		for (Map.Entry<String, String> entry : message.getData().entrySet()) {
+			buffer.append(DATA_KEY_PREFIX);
+			buffer.appendEncoded(entry.getKey());
+			buffer.append((byte) '=');
+			buffer.appendEncoded(entry.getValue());
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Growable byte buffer that percent-encodes strings as it appends them.
+	 */
+	private static class Buffer {
+		private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+
+		private int size = 0;
+
+		public void reset() {
+			size = 0;
+		}
+
+		public byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+
+		public void append(byte b) {
+			ensureCapacity(1);
+			bytes[size++] = b;
+		}
+
+		public void append(byte[] b) {
+			ensureCapacity(b.length);
+			System.arraycopy(b, 0, bytes, size, b.length);
+			size += b.length;
+		}
+
+		public void appendEncoded(String s) {
+			if (s == null)
+				return;
+			// Worst case is three percent-encoded bytes per UTF-16 char
+			ensureCapacity(9 * s.length());
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (isUnreserved(c)) {
+					bytes[size++] = (byte) c;
+				} else if (c == ' ') {
+					bytes[size++] = '+';
+				} else if (c < 0x80) {
+					appendPercent(c);
+				} else if (c < 0x800) {
+					appendPercent(0xC0 | (c >> 6));
+					appendPercent(0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					appendPercent(0xF0 | (cp >> 18));
+					appendPercent(0x80 | ((cp >> 12) & 0x3F));
+					appendPercent(0x80 | ((cp >> 6) & 0x3F));
+					appendPercent(0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					// Unpaired surrogate, replaced as String.getBytes() does
+					appendPercent('?');
+				} else {
+					appendPercent(0xE0 | (c >> 12));
+					appendPercent(0x80 | ((c >> 6) & 0x3F));
+					appendPercent(0x80 | (c & 0x3F));
+				}
+			}
+		}
+
+		private void appendPercent(int b) {
+			bytes[size++] = '%';
+			bytes[size++] = HEX[(b >> 4) & 0x0F];
+			bytes[size++] = HEX[b & 0x0F];
+		}
+
+		private void ensureCapacity(int extra) {
+			if (size + extra > bytes.length)
+				bytes = Arrays.copyOf(bytes,
+						Math.max(bytes.length * 2, size + extra));
+		}
+
+		private static boolean isUnreserved(char c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '.' || c == '-'
+					|| c == '*' || c == '_';
+		}
+	}
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.impl;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Builder for pooled, thread-safe {@link HttpClient} instances tuned for use
+ * with {@link DefaultGcmManager}.
+ * <p>
+ * Compared to a client built with the HttpClient defaults, the built client
+ * <ul>
+ * <li>allows as many pooled connections to the GCM service as there are
+ * threads sending messages (the defaults allow only two per route),</li>
+ * <li>does not check each connection for staleness before every request,</li>
+ * <li>does not wait for {@code 100-continue} before sending request bodies,
+ * </li>
+ * <li>keeps connections alive for a bounded time when the server does not
+ * specify one, and</li>
+ * <li>closes expired and idle connections from a background task, which
+ * replaces the per-request stale check.</li>
+ * </ul>
+ * Example for an executor of {@code MAX_THREADS} threads:<br/>
+ * <code>
+ * &nbsp;&nbsp;&nbsp;&nbsp; HttpClient client = new GcmHttpClientBuilder().maxConnections(MAX_THREADS).build(executor); <br/>
+ * </code>
+ *
+ * @author David R. Bild
+ *
+ */
+public class GcmHttpClientBuilder {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(GcmHttpClientBuilder.class);
+
+	private static final int DEFAULT_MAX_CONNECTIONS = 20;
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	private static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+	private static final long DEFAULT_KEEP_ALIVE = 60000;
+	private static final long DEFAULT_IDLE_TIMEOUT = 30000;
+	private static final long DEFAULT_EVICTION_INTERVAL = 5000;
+
+	private int maxConnections;
+
+	private int connectTimeout;
+
+	private int socketTimeout;
+
+	private long keepAlive;
+
+	private long idleTimeout;
+
+	private long evictionInterval;
+
+	/**
+	 * Constructs a new builder with default settings: 20 connections, a 10
+	 * second connect timeout, a 30 second socket timeout, a 60 second default
+	 * keep alive, and a 30 second idle timeout checked every 5 seconds.
+	 */
+	public GcmHttpClientBuilder() {
+		this.maxConnections = DEFAULT_MAX_CONNECTIONS;
+		this.connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+		this.socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+		this.keepAlive = DEFAULT_KEEP_ALIVE;
+		this.idleTimeout = DEFAULT_IDLE_TIMEOUT;
+		this.evictionInterval = DEFAULT_EVICTION_INTERVAL;
+	}
+
+	/**
+	 * Sets the maximum number of pooled connections, both in total and to the
+	 * GCM service. This should match the number of threads that send messages
+	 * concurrently.
+	 *
+	 * @param maxConnections
+	 *            the maximum number of connections
+	 * @return this builder
+	 */
+	public GcmHttpClientBuilder maxConnections(int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException(
+					"Argument 'maxConnections' must be positive.");
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	/**
+	 * Sets the timeout (in milliseconds) for establishing a connection.
+	 *
+	 * @param connectTimeout
+	 *            the connect timeout in milliseconds
+	 * @return this builder
+	 */
+	public GcmHttpClientBuilder connectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the timeout (in milliseconds) while waiting for data.
+	 *
+	 * @param socketTimeout
+	 *            the socket timeout in milliseconds
+	 * @return this builder
+	 */
+	public GcmHttpClientBuilder socketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets how long (in milliseconds) a connection may be reused when the
+	 * server does not specify a keep alive duration.
+	 *
+	 * @param keepAlive
+	 *            the default keep alive in milliseconds
+	 * @return this builder
+	 */
+	public GcmHttpClientBuilder keepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
+	/**
+	 * Sets how long (in milliseconds) a connection may sit idle in the pool
+	 * before it is closed by the background eviction task.
+	 *
+	 * @param idleTimeout
+	 *            the idle timeout in milliseconds
+	 * @return this builder
+	 */
+	public GcmHttpClientBuilder idleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the interval (in milliseconds) between runs of the background
+	 * eviction task.
+	 *
+	 * @param evictionInterval
+	 *            the eviction interval in milliseconds
+	 * @return this builder
+	 */
+	public GcmHttpClientBuilder evictionInterval(long evictionInterval) {
+		if (evictionInterval < 1)
+			throw new IllegalArgumentException(
+					"Argument 'evictionInterval' must be positive.");
+		this.evictionInterval = evictionInterval;
+		return this;
+	}
+
+	/**
+	 * Builds the client, running the connection eviction task on a new daemon
+	 * thread. The thread runs until the connection manager of the client is
+	 * shut down.
+	 *
+	 * @return the new client
+	 */
+	public HttpClient build() {
+		ScheduledExecutorService evictor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+						.setDaemon(true)
+						.setNameFormat("gcm4j-connection-evictor-%d").build());
+		return build(evictor, true);
+	}
+
+	/**
+	 * Builds the client, running the connection eviction task on the given
+	 * executor. The task runs until the executor is shut down.
+	 *
+	 * @param evictor
+	 *            the executor on which to run the eviction task
+	 * @return the new client
+	 */
+	public HttpClient build(ScheduledExecutorService evictor) {
+		return build(evictor, false);
+	}
+
+	private HttpClient build(final ScheduledExecutorService evictor,
+			final boolean ownsEvictor) {
+		final ThreadSafeClientConnManager connManager = new ThreadSafeClientConnManager(
+				SchemeRegistryFactory.createDefault()) {
+			@Override
+			public void shutdown() {
+				super.shutdown();
+				if (ownsEvictor)
+					evictor.shutdownNow();
+			}
+		};
+		connManager.setMaxTotal(maxConnections);
+		connManager.setDefaultMaxPerRoute(maxConnections);
+
+		DefaultHttpClient client = new DefaultHttpClient(connManager,
+				createParams());
+		client.setKeepAliveStrategy(new BoundedKeepAliveStrategy(keepAlive));
+
+		evictor.scheduleWithFixedDelay(new EvictionRunnable(connManager,
+				idleTimeout), evictionInterval, evictionInterval,
+				TimeUnit.MILLISECONDS);
+
+		return client;
+	}
+
+	private HttpParams createParams() {
+		HttpParams params = new BasicHttpParams();
+		DefaultHttpClient.setDefaultHttpParams(params);
+		HttpConnectionParams.setStaleCheckingEnabled(params, false);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, socketTimeout);
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		return params;
+	}
+
+	/**
+	 * Honors the server's {@code Keep-Alive} header, if any, and otherwise
+	 * keeps connections alive for a fixed duration.
+	 */
+	private static class BoundedKeepAliveStrategy implements
+			ConnectionKeepAliveStrategy {
+		private final ConnectionKeepAliveStrategy delegate;
+
+		private final long keepAlive;
+
+		public BoundedKeepAliveStrategy(long keepAlive) {
+			this.delegate = new DefaultConnectionKeepAliveStrategy();
+			this.keepAlive = keepAlive;
+		}
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response,
+				HttpContext context) {
+			long duration = delegate.getKeepAliveDuration(response, context);
+			return (duration > 0) ? duration : keepAlive;
+		}
+	}
+
+	/**
+	 * Closes expired connections and those idle longer than the idle timeout.
+	 */
+	private static class EvictionRunnable implements Runnable {
+		private final ClientConnectionManager connManager;
+
+		private final long idleTimeout;
+
+		public EvictionRunnable(ClientConnectionManager connManager,
+				long idleTimeout) {
+			this.connManager = connManager;
+			this.idleTimeout = idleTimeout;
+		}
+
+		@Override
+		public void run() {
+			try {
+				connManager.closeExpiredConnections();
+				connManager.closeIdleConnections(idleTimeout,
+						TimeUnit.MILLISECONDS);
+			} catch (RuntimeException e) {
+				LOGGER.warn("Unexpected RuntimeException while evicting connections.",
+						e);
+			}
+		}
+	}
+
+}
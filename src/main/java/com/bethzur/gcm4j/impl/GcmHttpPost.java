@@ -15,16 +15,11 @@
  */
 package com.bethzur.gcm4j.impl;
 
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.entity.ByteArrayEntity;
 import com.bethzur.gcm4j.Message;
 
 /**
@@ -36,11 +31,13 @@ import com.bethzur.gcm4j.Message;
  */
 class GcmHttpPost extends HttpPost {
 
-	private static final String REGISTRATION_ID = "registration_id";
-	private static final String COLLAPSE_ID = "collapse_key";
-	private static final String DELAY_WHILE_IDLE = "delay_while_idle";
-	private static final String TIME_TO_LIVE = "time_to_live";
-	private static final String DATA_KEY_PREFIX = "data.";
+	static final String CONTENT_TYPE = "application/x-www-form-urlencoded; charset=UTF-8";
+
+	/**
+	 * The endpoint of the GCM service, shared by all managers.
+	 */
+	static final URI DEFAULT_URI = URI
+			.create("https://android.googleapis.com/gcm/send");
 
 	/**
 	 * Constructs a new POST requests for the specified message, authentication
@@ -64,43 +61,21 @@ class GcmHttpPost extends HttpPost {
 	}
 
 	private void initPostEntity(Message message) {
-		List<NameValuePair> params = new ArrayList<NameValuePair>();
-
-		addParam(params, REGISTRATION_ID, message.getRegistrationId());
-		addParam(params, COLLAPSE_ID, message.getCollapseKey());
-		if (message.delayWhileIdle())
-			addParam(params, DELAY_WHILE_IDLE);
-
-		if (message.timeToLive() >= 0)
-			addParam(params, TIME_TO_LIVE, message.timeToLive());
-
-		Map<String, String> data = message.getData();
-		for (String key : data.keySet()) {
-			addParam(params, DATA_KEY_PREFIX + key, data.get(key));
-		}
-
-		try {
-			this.setEntity(new UrlEncodedFormEntity(params, "UTF-8"));
-		} catch (UnsupportedEncodingException e) {
-			/*
-			 * This should not be a checked exception. Good testing will catch
-			 * if an unsupported encoding is requested.
-			 */
-			throw new RuntimeException(e.getMessage(), e);
-		}
-	}
-
-	private static void addParam(List<NameValuePair> params, String key,
-			String value) {
-		params.add(new BasicNameValuePair(key, value));
-	}
-
-	private static void addParam(List<NameValuePair> params, String key,
-			int value) {
-		params.add(new BasicNameValuePair(key, Integer.toString(value)));
+		this.setEntity(createEntity(message));
 	}
 
-	private static void addParam(List<NameValuePair> params, String key) {
-		params.add(new BasicNameValuePair(key, null));
+	/**
+	 * Constructs the form-encoded request body for the specified message,
+	 * encoded by {@link GcmFormEncoder}.
+	 *
+	 * @param message
+	 *            the message to be placed into the request body
+	 * @return the request body
+	 */
+	static HttpEntity createEntity(Message message) {
+		ByteArrayEntity entity = new ByteArrayEntity(
+				GcmFormEncoder.encode(message));
+		entity.setContentType(CONTENT_TYPE);
+		return entity;
 	}
 }
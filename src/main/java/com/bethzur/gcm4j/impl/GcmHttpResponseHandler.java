@@ -16,34 +16,39 @@
 package com.bethzur.gcm4j.impl;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.ParseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.impl.cookie.DateParseException;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
 import com.bethzur.gcm4j.Message;
 import com.bethzur.gcm4j.Response;
 import com.bethzur.gcm4j.ResponseType;
 import com.bethzur.gcm4j.UnexpectedResponseException;
+import com.google.common.collect.ImmutableMap;
 
 /**
  * A handler responsible for parsing GCM http responses to construct
  * {@link ResponseImpl}, {@link SuccesssResponseImpl}, and
  * {@link UnavailableResponseImpl} objects encapsulating them.
+ * <p>
+ * The {@code key=value} lines of a {@code 200} response body are parsed in a
+ * single pass, directly from the entity stream through a small buffer. Keys
+ * and error values are mapped with precomputed lookups, so unknown keys or
+ * values are detected without exceptions.
  *
  * @author David R. Bild
  *
  */
 class GcmHttpResponseHandler implements ResponseHandler<Response> {
-	private static final Pattern SPLITTER = Pattern.compile("=");
+	private static final int READ_BUFFER_SIZE = 256;
+
+	private static final Map<String, ResponseType> ERROR_TYPES = createErrorTypes();
 
 	final Message message;
 
@@ -53,45 +58,91 @@ class GcmHttpResponseHandler implements ResponseHandler<Response> {
 
 	@Override
 	public Response handleResponse(HttpResponse response) throws IOException {
-		switch (response.getStatusLine().getStatusCode()) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode == 200)
+			return parseBody(response.getEntity());
+
+		Header retryAfterHeader = response.getFirstHeader("Retry-After");
+		String retryAfter = (retryAfterHeader == null) ? null
+				: retryAfterHeader.getValue();
+		return handleResponse(statusCode, retryAfter, null);
+	}
+
+	/**
+	 * Constructs the response from the parts of an HTTP response. This method
+	 * allows responses received by other HTTP clients to be handled exactly
+	 * like those received by {@link org.apache.http.client.HttpClient}.
+	 *
+	 * @param statusCode
+	 *            the HTTP status code
+	 * @param retryAfter
+	 *            the value of the {@code Retry-After} header, or {@code null}
+	 *            if not present
+	 * @param body
+	 *            the response body; may be {@code null} unless the status code
+	 *            is {@code 200}
+	 * @return the response
+	 * @throws UnexpectedResponseException
+	 *             if the status code is unexpected or the body could not be
+	 *             parsed
+	 */
+	Response handleResponse(int statusCode, String retryAfter, String body)
+			throws UnexpectedResponseException {
+		switch (statusCode) {
 		case 200:
-			List<NameValuePair> body = parseBody(response);
-			ResponseType type = getResponseType(body);
-			switch (type) {
-			case Success:
-				return new SuccessResponseImpl(getResponse(body, ResponseKeys.id), getResponse(body, ResponseKeys.registration_id), message);
-			default:
-				return new ResponseImpl(type, message);
-			}
+			return parseBody(body);
 		case 500:
 			return new ResponseImpl(ResponseType.InternalError, message);
 		case 503:
-			Date retryAfter = getRetryAfter(response);
-			return new UnavailableResponseImpl(retryAfter, message);
+			return new UnavailableResponseImpl(parseRetryAfter(retryAfter),
+					message);
 //		case 400: // JSON
 		case 401:
 			return new ResponseImpl(ResponseType.Unauthorized, message);
 		default:
 			throw new UnexpectedResponseException(String.format(
-					"Unexpected HTTP status code: %d", response.getStatusLine()
-							.getStatusCode()));
+					"Unexpected HTTP status code: %d", statusCode));
 		}
 	}
 
-	private Date getRetryAfter(HttpResponse response) {
+	/**
+	 * Reads the {@code Retry-After} header, either an HTTP-Date or a number of
+	 * seconds, from the response.
+	 *
+	 * @param response
+	 *            the http response
+	 * @return the retry after time, or {@code null} if the header is missing
+	 *         or malformed
+	 */
+	static Date getRetryAfter(HttpResponse response) {
 		Header retryAfterHeader = response.getFirstHeader("Retry-After");
-		if (retryAfterHeader != null) {
+		if (retryAfterHeader != null)
+			return parseRetryAfter(retryAfterHeader.getValue());
+		return null;
+	}
+
+	/**
+	 * Parses the value of a {@code Retry-After} header, either an HTTP-Date or
+	 * a number of seconds.
+	 *
+	 * @param retryAfter
+	 *            the header value, may be {@code null}
+	 * @return the retry after time, or {@code null} if the value is missing or
+	 *         malformed
+	 */
+	static Date parseRetryAfter(String retryAfter) {
+		if (retryAfter != null) {
 			// Read as HTTP-Date
 			try {
 				return org.apache.http.impl.cookie.DateUtils
-						.parseDate(retryAfterHeader.getValue());
+						.parseDate(retryAfter);
 			} catch (DateParseException e) {
 			}
 
 			// Read as seconds
 			try {
 				return new Date(System.currentTimeMillis() + 1000L
-						* Integer.valueOf(retryAfterHeader.getValue()));
+						* Integer.valueOf(retryAfter));
 			} catch (NumberFormatException e) {
 			}
 		}
@@ -100,86 +151,98 @@ class GcmHttpResponseHandler implements ResponseHandler<Response> {
 		return null;
 	}
 
-	private List<NameValuePair> parseBody(HttpResponse response)
+	private Response parseBody(String body)
 			throws UnexpectedResponseException {
+		if (body == null)
+			throw new UnexpectedResponseException("Missing message body.");
+
+		BodyParser parser = new BodyParser();
+		for (int i = 0; i < body.length(); i++) {
+			parser.accept(body.charAt(i));
+		}
+		return parser.finish(message);
+	}
+
+	private Response parseBody(HttpEntity entity)
+			throws UnexpectedResponseException {
+		if (entity == null)
+			throw new UnexpectedResponseException("Missing message body.");
+
+		BodyParser parser = new BodyParser();
 		try {
-			String body_lines = EntityUtils.toString(response.getEntity());
-//			body_lines += "\nregistration_id=xxx";
-//			System.out.println(body_lines);
-
-			String lines[] = body_lines.split("[\r\n]+");
-
-			List<NameValuePair> result = new ArrayList<NameValuePair>();
-			for (String body : lines) {
-				String[] splitBody = SPLITTER.split(body);
-				if (splitBody.length == 2) {
-					result.add(new BasicNameValuePair(splitBody[0], splitBody[1]));
-				} else {
-					throw new UnexpectedResponseException(String.format(
-							"Unexpected format of message body:\n%s", body));
+			InputStream in = entity.getContent();
+			try {
+				byte[] buffer = new byte[READ_BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					for (int i = 0; i < n; i++) {
+						// ISO-8859-1, like EntityUtils.toString() without a charset
+						parser.accept((char) (buffer[i] & 0xFF));
+					}
 				}
+			} finally {
+				in.close();
 			}
-			return result;
-		} catch (ParseException e) {
-			throw new UnexpectedResponseException(e);
 		} catch (IOException e) {
 			throw new UnexpectedResponseException(e);
 		}
+		return parser.finish(message);
 	}
 
-	private String getResponse(List<NameValuePair> body_list, ResponseKeys find) {
-		try {
-			for (NameValuePair body : body_list) {
-				if (ResponseKeys.valueOf(body.getName()) == find) {
-					return body.getValue();
-				}
-			}
-		} catch (IllegalArgumentException e) {
+	/**
+	 * Maps the value of an {@code Error} key to the corresponding response
+	 * type.
+	 *
+	 * @param error
+	 *            the error value
+	 * @return the response type for the error, or {@code null} if the value
+	 *         is unknown
+	 */
+	static ResponseType errorType(String error) {
+		return ERROR_TYPES.get(error);
+	}
+
+	private static Map<String, ResponseType> createErrorTypes() {
+		ImmutableMap.Builder<String, ResponseType> builder = ImmutableMap
+				.builder();
+		for (ResponseErrorValues error : ResponseErrorValues.values()) {
+			builder.put(error.name(), errorType(error));
 		}
-		return null;
+		return builder.build();
 	}
 
-	private ResponseType getResponseType(List<NameValuePair> body_list)
-			throws UnexpectedResponseException {
-		try {
-			for (NameValuePair body : body_list) {
-				switch (ResponseKeys.valueOf(body.getName())) {
-				case id:
-					return ResponseType.Success;
-				case registration_id:
-					// Ignore for now.
-					break;
-				case Error:
-					switch (ResponseErrorValues.valueOf(body.getValue())) {
-					case QuotaExceeded:
-						return ResponseType.QuotaExceeded;
-					case DeviceQuotaExceeded:
-						return ResponseType.DeviceQuotaExceeded;
-					case MissingRegistration:
-						return ResponseType.MissingRegistration;
-					case InvalidRegistration:
-						return ResponseType.InvalidRegistration;
-					case MismatchSenderId:
-						return ResponseType.MismatchSenderId;
-					case NotRegistered:
-						return ResponseType.NotRegistered;
-					case MessageTooBig:
-						return ResponseType.MessageTooBig;
-					case MissingCollapseKey:
-						return ResponseType.MissingCollapseKey;
-					default:
-						throw new UnexpectedResponseException(
-								"Unexpected error message.");
-					}
-				default:
-					throw new UnexpectedResponseException(
-							"Unexpected key in body name-value pair.");
-				}
-			}
-		} catch (IllegalArgumentException e) {
+	/**
+	 * Maps the value of an {@code Error} key to the corresponding response
+	 * type.
+	 *
+	 * @param error
+	 *            the error value
+	 * @return the response type for the error
+	 */
+	static ResponseType errorType(ResponseErrorValues error) {
+		switch (error) {
+		case QuotaExceeded:
+			return ResponseType.QuotaExceeded;
+		case DeviceQuotaExceeded:
+			return ResponseType.DeviceQuotaExceeded;
+		case MissingRegistration:
+			return ResponseType.MissingRegistration;
+		case InvalidRegistration:
+			return ResponseType.InvalidRegistration;
+		case MismatchSenderId:
+			return ResponseType.MismatchSenderId;
+		case NotRegistered:
+			return ResponseType.NotRegistered;
+		case MessageTooBig:
+			return ResponseType.MessageTooBig;
+		case MissingCollapseKey:
+			return ResponseType.MissingCollapseKey;
+		case Unavailable:
+			return ResponseType.ServiceUnavailable;
+		case InternalServerError:
+		default:
+			return ResponseType.InternalError;
 		}
-		throw new UnexpectedResponseException(
-				"Unexpected format in message.");
 	}
 
 	/**
@@ -200,6 +263,135 @@ class GcmHttpResponseHandler implements ResponseHandler<Response> {
 	 *
 	 */
 	static enum ResponseErrorValues {
-		QuotaExceeded, DeviceQuotaExceeded, MissingRegistration, InvalidRegistration, MismatchSenderId, NotRegistered, MessageTooBig, MissingCollapseKey
+		QuotaExceeded, DeviceQuotaExceeded, MissingRegistration, InvalidRegistration, MismatchSenderId, NotRegistered, MessageTooBig, MissingCollapseKey, Unavailable, InternalServerError
+	}
+
+	/**
+	 * Incremental parser for the {@code key=value} lines of a {@code 200}
+	 * response body. Characters are accumulated one line at a time; the type
+	 * of the response is decided by the first {@code id} or {@code Error} key.
+	 * Blank lines and unknown keys after the type is decided are ignored.
+	 *
+	 * @author David R. Bild
+	 *
+	 */
+	private static class BodyParser {
+		private static final ResponseKeys[] KEYS = ResponseKeys.values();
+
+		private char[] line = new char[READ_BUFFER_SIZE];
+
+		private int length = 0;
+
+		private ResponseType type = null;
+
+		private String id = null;
+
+		private String registrationId = null;
+
+		private UnexpectedResponseException error = null;
+
+		public void accept(char c) {
+			if (c == '\r' || c == '\n') {
+				endLine();
+			} else {
+				if (length == line.length)
+					line = Arrays.copyOf(line, 2 * line.length);
+				line[length++] = c;
+			}
+		}
+
+		public Response finish(Message message)
+				throws UnexpectedResponseException {
+			endLine();
+			if (error != null)
+				throw error;
+			if (type == null)
+				throw new UnexpectedResponseException(
+						"Unexpected format in message.");
+
+			switch (type) {
+			case Success:
+				return new SuccessResponseImpl(id, registrationId, message);
+			case ServiceUnavailable:
+				return new UnavailableResponseImpl(null, message);
+			default:
+				return new ResponseImpl(type, message);
+			}
+		}
+
+		private void endLine() {
+			if (length > 0 && error == null)
+				parseLine();
+			length = 0;
+		}
+
+		private void parseLine() {
+			int eq = indexOf('=', 0);
+			if (eq < 1 || eq == length - 1 || indexOf('=', eq + 1) != -1) {
+				error = new UnexpectedResponseException(String.format(
+						"Unexpected format of message body:\n%s",
+						new String(line, 0, length)));
+				return;
+			}
+
+			ResponseKeys key = lookupKey(eq);
+			if (key == null) {
+				if (type == null)
+					error = new UnexpectedResponseException(
+							"Unexpected key in body name-value pair.");
+				return;
+			}
+
+			switch (key) {
+			case id:
+				if (type == null) {
+					type = ResponseType.Success;
+					id = value(eq);
+				}
+				break;
+			case registration_id:
+				if (registrationId == null)
+					registrationId = value(eq);
+				break;
+			case Error:
+				if (type == null) {
+					String value = value(eq);
+					type = errorType(value);
+					if (type == null)
+						error = new UnexpectedResponseException(String.format(
+								"Unexpected error message: %s", value));
+				}
+				break;
+			}
+		}
+
+		private ResponseKeys lookupKey(int keyLength) {
+			for (ResponseKeys key : KEYS) {
+				String name = key.name();
+				if (name.length() == keyLength && regionMatches(name))
+					return key;
+			}
+			return null;
+		}
+
+		private boolean regionMatches(String name) {
+			for (int i = 0; i < name.length(); i++) {
+				if (line[i] != name.charAt(i))
+					return false;
+			}
+			return true;
+		}
+
+		private int indexOf(char c, int from) {
+			for (int i = from; i < length; i++) {
+				if (line[i] == c)
+					return i;
+			}
+			return -1;
+		}
+
+		private String value(int eq) {
+			return new String(line, eq + 1, length - eq - 1);
+		}
 	}
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.impl;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+
+import com.bethzur.gcm4j.Message;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Encapsulates an HTTP POST request to the GCM service in the JSON format,
+ * delivering one payload to multiple clients. This class is responsible for
+ * constructing the request from a list of {@link Message} instances sharing
+ * the same payload.
+ *
+ * @author David R. Bild
+ *
+ */
+class GcmJsonHttpPost extends HttpPost {
+
+	private static final String CONTENT_TYPE = "application/json";
+	private static final String REGISTRATION_IDS = "registration_ids";
+	private static final String COLLAPSE_KEY = "collapse_key";
+	private static final String DELAY_WHILE_IDLE = "delay_while_idle";
+	private static final String TIME_TO_LIVE = "time_to_live";
+	private static final String DATA = "data";
+
+	/**
+	 * Constructs a new POST request for the specified messages, authentication
+	 * token, and endpoint. The payload is taken from the first message; only
+	 * the registration ids are taken from the others.
+	 *
+	 * @param messages
+	 *            the messages to be placed into the request body
+	 * @param api_key
+	 *            the authentication token for the request
+	 * @param uri
+	 *            the remote endpoint for the request
+	 */
+	public GcmJsonHttpPost(List<? extends Message> messages, String api_key,
+			URI uri) {
+		super(uri);
+		initAuthKey(api_key);
+		initPostEntity(messages);
+	}
+
+	private void initAuthKey(String api_key) {
+		this.setHeader("Authorization", "key=" + api_key);
+	}
+
+	private void initPostEntity(List<? extends Message> messages) {
+		try {
+			StringEntity entity = new StringEntity(toJson(messages),
+					CONTENT_TYPE, "UTF-8");
+			this.setEntity(entity);
+		} catch (UnsupportedEncodingException e) {
+			/*
+			 * This should not be a checked exception. Good testing will catch
+			 * if an unsupported encoding is requested.
+			 */
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	private static String toJson(List<? extends Message> messages) {
+		Message first = messages.get(0);
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out);
+		try {
+			writer.beginObject();
+
+			writer.name(REGISTRATION_IDS).beginArray();
+			for (Message message : messages) {
+				writer.value(message.getRegistrationId());
+			}
+			writer.endArray();
+
+			writer.name(COLLAPSE_KEY).value(first.getCollapseKey());
+			if (first.delayWhileIdle())
+				writer.name(DELAY_WHILE_IDLE).value(true);
+			if (first.timeToLive() >= 0)
+				writer.name(TIME_TO_LIVE).value(first.timeToLive());
+
+			Map<String, String> data = first.getData();
+			if (!data.isEmpty()) {
+				writer.name(DATA).beginObject();
+				for (Map.Entry<String, String> entry : data.entrySet()) {
+					writer.name(entry.getKey()).value(entry.getValue());
+				}
+				writer.endObject();
+			}
+
+			writer.endObject();
+			writer.close();
+		} catch (IOException e) {
+			// StringWriter does not throw IOExceptions
+			throw new RuntimeException(e.getMessage(), e);
+		}
+		return out.toString();
+	}
+}
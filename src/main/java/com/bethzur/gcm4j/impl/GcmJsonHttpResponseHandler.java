@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.impl;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+import com.bethzur.gcm4j.UnexpectedResponseException;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * A handler responsible for parsing GCM http responses to JSON multicast
+ * requests. One {@link Response} is constructed for each message in the
+ * request, in the same order as the messages.
+ *
+ * @author David R. Bild
+ *
+ */
+class GcmJsonHttpResponseHandler implements ResponseHandler<List<Response>> {
+
+	private static final String RESULTS = "results";
+	private static final String MESSAGE_ID = "message_id";
+	private static final String REGISTRATION_ID = "registration_id";
+	private static final String ERROR = "error";
+
+	final List<? extends Message> messages;
+
+	public GcmJsonHttpResponseHandler(List<? extends Message> messages) {
+		this.messages = messages;
+	}
+
+	@Override
+	public List<Response> handleResponse(HttpResponse response)
+			throws IOException {
+		switch (response.getStatusLine().getStatusCode()) {
+		case 200:
+			return parseBody(response.getEntity());
+		case 500:
+			return uniform(ResponseType.InternalError, null);
+		case 503:
+			return uniform(ResponseType.ServiceUnavailable,
+					GcmHttpResponseHandler.getRetryAfter(response));
+		case 401:
+			return uniform(ResponseType.Unauthorized, null);
+		default:
+			EntityUtils.consume(response.getEntity());
+			throw new UnexpectedResponseException(String.format(
+					"Unexpected HTTP status code: %d", response.getStatusLine()
+							.getStatusCode()));
+		}
+	}
+
+	private List<Response> uniform(ResponseType type, Date retryAfter) {
+		List<Response> result = new ArrayList<Response>(messages.size());
+		for (Message message : messages) {
+			result.add(createResponse(type, retryAfter, message));
+		}
+		return result;
+	}
+
+	private static Response createResponse(ResponseType type, Date retryAfter,
+			Message message) {
+		switch (type) {
+		case ServiceUnavailable:
+			return new UnavailableResponseImpl(retryAfter, message);
+		default:
+			return new ResponseImpl(type, message);
+		}
+	}
+
+	private List<Response> parseBody(HttpEntity entity)
+			throws UnexpectedResponseException {
+		if (entity == null)
+			throw new UnexpectedResponseException("Missing message body.");
+
+		try {
+			Reader in = new InputStreamReader(entity.getContent(), "UTF-8");
+			try {
+				JsonReader reader = new JsonReader(in);
+				List<Response> result = null;
+				reader.beginObject();
+				while (reader.hasNext()) {
+					if (RESULTS.equals(reader.nextName())) {
+						result = parseResults(reader);
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+
+				if (result == null || result.size() != messages.size())
+					throw new UnexpectedResponseException(
+							"Unexpected number of results in message body.");
+				return result;
+			} finally {
+				in.close();
+			}
+		} catch (JsonParseException e) {
+			throw new UnexpectedResponseException(e);
+		} catch (IllegalStateException e) {
+			throw new UnexpectedResponseException(e);
+		} catch (UnexpectedResponseException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new UnexpectedResponseException(e);
+		}
+	}
+
+	private List<Response> parseResults(JsonReader reader) throws IOException {
+		List<Response> result = new ArrayList<Response>(messages.size());
+		reader.beginArray();
+		while (reader.hasNext()) {
+			if (result.size() >= messages.size())
+				throw new UnexpectedResponseException(
+						"Unexpected number of results in message body.");
+			result.add(parseResult(reader, messages.get(result.size())));
+		}
+		reader.endArray();
+		return result;
+	}
+
+	private Response parseResult(JsonReader reader, Message message)
+			throws IOException {
+		String messageId = null;
+		String registrationId = null;
+		String error = null;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (MESSAGE_ID.equals(name)) {
+				messageId = reader.nextString();
+			} else if (REGISTRATION_ID.equals(name)) {
+				registrationId = reader.nextString();
+			} else if (ERROR.equals(name)) {
+				error = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (messageId != null)
+			return new SuccessResponseImpl(messageId, registrationId, message);
+		if (error != null)
+			return createResponse(errorType(error), null, message);
+		throw new UnexpectedResponseException(
+				"Unexpected format of result in message body.");
+	}
+
+	private static ResponseType errorType(String error)
+			throws UnexpectedResponseException {
+		ResponseType type = GcmHttpResponseHandler.errorType(error);
+		if (type == null)
+			throw new UnexpectedResponseException(String.format(
+					"Unexpected error message: %s", error));
+		return type;
+	}
+}
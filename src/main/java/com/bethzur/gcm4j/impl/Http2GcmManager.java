@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bethzur.gcm4j.GcmManager;
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.NonBlockingGcmManager;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.UnexpectedResponseException;
+import com.bethzur.gcm4j.auth.ApiKeyAuthProvider;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * An implementation of {@link GcmManager} and {@link NonBlockingGcmManager}
+ * backed by the JDK {@link HttpClient} speaking HTTP/2. Concurrent requests
+ * are multiplexed as streams over a small number of connections, instead of
+ * needing one pooled connection each, which saves TLS handshakes and sockets
+ * at high concurrency.
+ * <p>
+ * Requests and responses are encoded and parsed exactly as by
+ * {@link DefaultGcmManager}, including the status code mapping and
+ * {@code Retry-After} parsing. If the server does not support HTTP/2, the
+ * client falls back to HTTP/1.1.
+ * <p>
+ * This class is thread-safe. A suitable {@code HttpClient} can be obtained
+ * from {@link #createDefaultClient()}. The endpoint may be overridden (e.g.,
+ * with an {@code http://} URI to talk to a local cleartext {@code h2c} stub).
+ * <p>
+ * SLF4J is used for logging.
+ *
+ * @author David R. Bild
+ *
+ */
+public class Http2GcmManager implements GcmManager, NonBlockingGcmManager {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(Http2GcmManager.class);
+
+	private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+	private final ApiKeyAuthProvider keyProvider;
+
+	private final HttpClient httpClient;
+
+	private final URI uri;
+
+	/**
+	 * Creates an {@code HttpClient} preferring HTTP/2, with a 10 second
+	 * connect timeout.
+	 *
+	 * @return the new client
+	 */
+	public static HttpClient createDefaultClient() {
+		return HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+				.connectTimeout(CONNECT_TIMEOUT).build();
+	}
+
+	/**
+	 * Constructs a new {@code Http2GcmManager} sending requests to the GCM
+	 * service with the specified {@code HttpClient} and
+	 * {@code ApiKeyAuthProvider}.
+	 *
+	 * @param httpClient
+	 *            the client used to send HTTP requests
+	 * @param keyProvider
+	 *            the provider of the API key
+	 */
+	public Http2GcmManager(HttpClient httpClient, ApiKeyAuthProvider keyProvider) {
+		this(httpClient, keyProvider, GcmHttpPost.DEFAULT_URI);
+	}
+
+	/**
+	 * Constructs a new {@code Http2GcmManager} sending requests to the
+	 * specified endpoint with the specified {@code HttpClient} and
+	 * {@code ApiKeyAuthProvider}.
+	 *
+	 * @param httpClient
+	 *            the client used to send HTTP requests
+	 * @param keyProvider
+	 *            the provider of the API key
+	 * @param uri
+	 *            the endpoint to which to send requests
+	 */
+	public Http2GcmManager(HttpClient httpClient,
+			ApiKeyAuthProvider keyProvider, URI uri) {
+		this.keyProvider = keyProvider;
+		this.httpClient = httpClient;
+		this.uri = uri;
+	}
+
+	@Override
+	public Response pushMessage(Message msg) throws IOException,
+			UnexpectedResponseException {
+		LOGGER.debug("Sending GCM message: {}", msg);
+		HttpResponse<String> httpResponse;
+		try {
+			httpResponse = httpClient.send(createRequest(msg),
+					HttpResponse.BodyHandlers.ofString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			InterruptedIOException ioe = new InterruptedIOException(
+					"Interrupted while waiting for GCM response.");
+			ioe.initCause(e);
+			throw ioe;
+		}
+		Response response = toResponse(msg, httpResponse);
+		LOGGER.debug("Received GCM reponse: {}", response);
+		return response;
+	}
+
+	@Override
+	public ListenableFuture<Response> pushMessageAsync(final Message msg) {
+		LOGGER.debug("Sending GCM message: {}", msg);
+		final SettableFuture<Response> future = SettableFuture.create();
+		httpClient
+				.sendAsync(createRequest(msg),
+						HttpResponse.BodyHandlers.ofString())
+				.whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+					@Override
+					public void accept(HttpResponse<String> httpResponse,
+							Throwable throwable) {
+						if (throwable != null) {
+							future.setException(unwrap(throwable));
+							return;
+						}
+						try {
+							Response response = toResponse(msg, httpResponse);
+							LOGGER.debug("Received GCM reponse: {}", response);
+							future.set(response);
+						} catch (IOException e) {
+							future.setException(e);
+						} catch (RuntimeException e) {
+							future.setException(e);
+						}
+					}
+				});
+		return future;
+	}
+
+	private HttpRequest createRequest(Message msg) {
+		byte[] body = GcmFormEncoder.encode(msg);
+		return HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT)
+				.header("Authorization", "key=" + keyProvider.getKey())
+				.header("Content-Type", GcmHttpPost.CONTENT_TYPE)
+				.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+	}
+
+	private static Response toResponse(Message msg,
+			HttpResponse<String> httpResponse)
+			throws UnexpectedResponseException {
+		return new GcmHttpResponseHandler(msg).handleResponse(httpResponse
+				.statusCode(), httpResponse.headers().firstValue("Retry-After")
+				.orElse(null), httpResponse.body());
+	}
+
+	private static Throwable unwrap(Throwable throwable) {
+		if (throwable instanceof CompletionException
+				&& throwable.getCause() != null)
+			return throwable.getCause();
+		return throwable;
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.impl;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.NonBlockingGcmManager;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.auth.ApiKeyAuthProvider;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * An implementation of {@link NonBlockingGcmManager} backed by the NIO-based
+ * {@link HttpAsyncClient}. The instance is configured via the constructor,
+ * which takes an {@link ApiKeyAuthProvider} for the API key and an
+ * {@code HttpAsyncClient} used to send the HTTP requests to the GCM servers.
+ * <p>
+ * The {@code HttpAsyncClient} must be started before messages are pushed and
+ * is not shut down by this class. The number of requests in flight is limited
+ * by the connection manager of the client, which by default allows only a
+ * couple of connections per host. A client allowing {@code MAX_IN_FLIGHT}
+ * concurrent requests can be obtained like this:<br/>
+ * <code>
+ * &nbsp;&nbsp;&nbsp;&nbsp; ConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(); <br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp; PoolingClientConnectionManager connManager = new PoolingClientConnectionManager(ioReactor); <br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp; connManager.setTotalMax(MAX_IN_FLIGHT); <br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp; connManager.setDefaultMaxPerHost(MAX_IN_FLIGHT); <br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp; HttpAsyncClient client = new DefaultHttpAsyncClient(connManager); <br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp; client.start(); <br/>
+ * </code>
+ * <p>
+ * The returned futures are completed on the I/O reactor thread of the client.
+ * Listeners doing more than trivial work should be run on another executor.
+ * <p>
+ * HttpAsyncClient is an optional dependency of this library, so applications
+ * using this class must declare
+ * {@code org.apache.httpcomponents:httpasyncclient} themselves.
+ * {@link Http2GcmManager} is a non-blocking alternative without extra
+ * dependencies.
+ * <p>
+ * SLF4J is used for logging.
+ *
+ * @author David R. Bild
+ *
+ */
+public class NioGcmManager implements NonBlockingGcmManager {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(NioGcmManager.class);
+
+	private final ApiKeyAuthProvider keyProvider;
+
+	private final HttpAsyncClient httpClient;
+
+	/**
+	 * Constructs a new {@code NioGcmManager} using the specified, started
+	 * {@code HttpAsyncClient} to send HTTP requests and
+	 * {@code ApiKeyAuthProvider} to retrieve the API key.
+	 *
+	 * @param httpClient
+	 *            the client used to send HTTP requests
+	 * @param keyProvider
+	 *            the provider of the API key
+	 */
+	public NioGcmManager(HttpAsyncClient httpClient,
+			ApiKeyAuthProvider keyProvider) {
+		this.keyProvider = keyProvider;
+		this.httpClient = httpClient;
+	}
+
+	@Override
+	public ListenableFuture<Response> pushMessageAsync(final Message msg) {
+		LOGGER.debug("Sending GCM message: {}", msg);
+		final SettableFuture<Response> future = SettableFuture.create();
+		httpClient.execute(
+				new GcmHttpPost(msg, keyProvider.getKey(),
+						GcmHttpPost.DEFAULT_URI),
+				new FutureCallback<HttpResponse>() {
+					@Override
+					public void completed(HttpResponse httpResponse) {
+						try {
+							Response response = new GcmHttpResponseHandler(msg)
+									.handleResponse(httpResponse);
+							LOGGER.debug("Received GCM reponse: {}", response);
+							future.set(response);
+						} catch (IOException e) {
+							future.setException(e);
+						} catch (RuntimeException e) {
+							future.setException(e);
+						}
+					}
+
+					@Override
+					public void failed(Exception e) {
+						future.setException(e);
+					}
+
+					@Override
+					public void cancelled() {
+						future.cancel(false);
+					}
+				});
+		return future;
+	}
+
+}
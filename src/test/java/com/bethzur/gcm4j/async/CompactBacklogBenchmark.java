@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import com.bethzur.gcm4j.GcmManager;
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+import com.bethzur.gcm4j.PayloadTemplate;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.async.handler.AsyncHandlersFactory;
+
+/**
+ * Reports the heap used per queued message by a {@link CompactBacklog} and,
+ * for comparison, by messages pushed directly into an
+ * {@link AsyncGcmManager} while GCM is unreachable.
+ * <p>
+ * Run with a large heap, e.g.:<br/>
+ * <code>
+ * java -Xmx6g -cp target/classes:target/test-classes:&lt;deps&gt; com.bethzur.gcm4j.async.CompactBacklogBenchmark [sizes...]
+ * </code><br/>
+ * The default sizes are 1,000,000 and 10,000,000 messages. The direct
+ * measurement is only made for the first size.
+ *
+ * @author David R. Bild
+ *
+ */
+public class CompactBacklogBenchmark {
+
+	private static final int ID_LENGTH = 152;
+
+	private static final String ID_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 1000000, 10000000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		PayloadTemplate template = new MessageBuilder().collapseKey("outage")
+				.timeToLive(3600).put("title", "Service restored")
+				.put("body", "Your messages are on the way.").buildTemplate();
+
+		for (int size : sizes) {
+			System.out.printf("compact backlog, %,d messages: %d bytes/message%n",
+					size, measureCompact(template, size));
+		}
+		System.out.printf("direct push,     %,d messages: %d bytes/message%n",
+				sizes[0], measureDirect(template, sizes[0]));
+	}
+
+	private static long measureCompact(PayloadTemplate template, int size)
+			throws InterruptedException {
+		long before = usedHeap();
+		CompactBacklog backlog = new CompactBacklog(new StalledManager(), 1,
+				Lane.BULK);
+		Random random = new Random(size);
+		for (int i = 0; i < size; i++) {
+			backlog.add(template, registrationId(random));
+		}
+		long after = usedHeap();
+		if (backlog.getPending() + backlog.getInFlight() != size)
+			throw new IllegalStateException("Lost messages.");
+		backlog.close();
+		return (after - before) / size;
+	}
+
+	private static long measureDirect(PayloadTemplate template, int size)
+			throws InterruptedException {
+		final CountDownLatch outage = new CountDownLatch(1);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		AsyncGcmManager manager = AsyncGcmManagerFactory.create(
+				new GcmManager() {
+					@Override
+					public Response pushMessage(Message msg) {
+						try {
+							outage.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						throw new IllegalStateException("GCM unreachable.");
+					}
+				}, AsyncHandlersFactory.createEmpty(), executor);
+
+		long before = usedHeap();
+		Random random = new Random(size);
+		for (int i = 0; i < size; i++) {
+			manager.pushMessage(template.forRecipient(registrationId(random)));
+		}
+		long after = usedHeap();
+		outage.countDown();
+		executor.shutdownNow();
+		return (after - before) / size;
+	}
+
+	private static String registrationId(Random random) {
+		char[] chars = new char[ID_LENGTH];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = ID_CHARS.charAt(random.nextInt(ID_CHARS.length()));
+		}
+		return new String(chars);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * A manager whose futures never complete.
+	 */
+	private static class StalledManager implements AsyncGcmManager {
+		@Override
+		public Future<Response> pushMessage(Message msg) {
+			return new FutureResponse();
+		}
+
+		@Override
+		public Future<Response> pushMessage(Message msg, Lane lane) {
+			return new FutureResponse();
+		}
+
+		@Override
+		public int getQueueDepth() {
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import java.util.Random;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+import com.bethzur.gcm4j.async.handler.DeviceBackoffThrottle;
+import com.bethzur.gcm4j.backoff.ExponentialBackoff;
+
+/**
+ * Reports the heap used per tracked device by a {@link DeviceBackoffThrottle}
+ * and the cost of filtering a message while the table is full, which includes
+ * the incremental sweep and, for new devices, the eviction of old ones.
+ * <p>
+ * Run with a large heap, e.g.:<br/>
+ * <code>
+ * java -Xmx8g -cp target/classes:target/test-classes:&lt;deps&gt; com.bethzur.gcm4j.async.DeviceBackoffThrottleBenchmark [sizes...]
+ * </code><br/>
+ * The default sizes are 1,000,000 and 10,000,000 devices.
+ *
+ * @author David R. Bild
+ *
+ */
+public class DeviceBackoffThrottleBenchmark {
+
+	private static final int ID_LENGTH = 152;
+
+	private static final String ID_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+	private static final int FILTER_SAMPLES = 1000000;
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 1000000, 10000000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int size : sizes) {
+			measure(size);
+		}
+	}
+
+	private static void measure(int size) throws InterruptedException {
+		long before = usedHeap();
+		DeviceBackoffThrottle throttle = new DeviceBackoffThrottle(
+				new ExponentialBackoff.Provider(), size);
+		Random random = new Random(size);
+		for (int i = 0; i < size; i++) {
+			throttle.handleResponse(new ResponseContext(new FutureResponse(),
+					new QuotaResponse(message(registrationId(random)))));
+		}
+		long after = usedHeap();
+		if (throttle.size() != size)
+			throw new IllegalStateException("Lost devices.");
+		System.out.printf("%,d devices: %d bytes/device%n", size,
+				(after - before) / size);
+
+		// Known devices: lookup plus sweep
+		random = new Random(size);
+		Message[] known = new Message[1000];
+		for (int i = 0; i < known.length; i++) {
+			known[i] = message(registrationId(random));
+		}
+		long worst = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < FILTER_SAMPLES; i++) {
+			long t = System.nanoTime();
+			throttle.enqueueFilter(new MessageContext(new FutureResponse(),
+					known[i % known.length]));
+			worst = Math.max(worst, System.nanoTime() - t);
+		}
+		System.out.printf(
+				"  filter, known device: %d ns/message, worst %,d ns%n",
+				(System.nanoTime() - start) / FILTER_SAMPLES, worst);
+
+		// New devices into the full table: eviction
+		worst = 0;
+		start = System.nanoTime();
+		int added = FILTER_SAMPLES / 10;
+		for (int i = 0; i < added; i++) {
+			ResponseContext context = new ResponseContext(new FutureResponse(),
+					new QuotaResponse(message(registrationId(random))));
+			long t = System.nanoTime();
+			throttle.handleResponse(context);
+			worst = Math.max(worst, System.nanoTime() - t);
+		}
+		System.out.printf(
+				"  failure, new device:  %d ns/message, worst %,d ns, %,d devices%n",
+				(System.nanoTime() - start) / added, worst, throttle.size());
+	}
+
+	private static Message message(String registrationId) {
+		return new MessageBuilder().registrationId(registrationId)
+				.collapseKey("ck").build();
+	}
+
+	private static String registrationId(Random random) {
+		char[] chars = new char[ID_LENGTH];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = ID_CHARS.charAt(random.nextInt(ID_CHARS.length()));
+		}
+		return new String(chars);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * A {@code DeviceQuotaExceeded} response.
+	 */
+	private static class QuotaResponse implements Response {
+		private final Message message;
+
+		public QuotaResponse(Message message) {
+			this.message = message;
+		}
+
+		@Override
+		public ResponseType getResponseType() {
+			return ResponseType.DeviceQuotaExceeded;
+		}
+
+		@Override
+		public Message getMessage() {
+			return message;
+		}
+	}
+
+}
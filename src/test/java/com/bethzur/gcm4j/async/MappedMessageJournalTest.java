@@ -0,0 +1,249 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+import com.bethzur.gcm4j.Response;
+
+/**
+ * Tests recovery, corruption handling, and segment deletion of
+ * {@link MappedMessageJournal}.
+ *
+ * @author David R. Bild
+ *
+ */
+public class MappedMessageJournalTest {
+
+	private static final int SEGMENT_SIZE = 4096;
+
+	private static final long SYNC_MILLIS = 10;
+
+	/**
+	 * Offset of the first record, after the magic number and sequence number
+	 */
+	private static final int HEADER_SIZE = 12;
+
+	/**
+	 * Length and CRC preceding each record body
+	 */
+	private static final int RECORD_OVERHEAD = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = folder.newFolder("journal");
+	}
+
+	@Test
+	public void recoversUncompletedAfterReopen() throws IOException {
+		MappedMessageJournal journal = open();
+		journal.append(message("a"), Lane.HIGH);
+		long b = journal.append(message("b"), Lane.NORMAL);
+		journal.append(message("c"), Lane.BULK);
+		journal.complete(b);
+		journal.close();
+
+		journal = open();
+		RecordingManager manager = new RecordingManager();
+		assertEquals(2, journal.getRecoveredCount());
+		assertEquals(2, journal.replay(manager));
+		journal.close();
+
+		assertEquals(2, manager.messages.size());
+		assertEquals("a", manager.messages.get(0).getRegistrationId());
+		assertEquals("value-a", manager.messages.get(0).getData().get("key"));
+		assertEquals(Lane.HIGH, manager.lanes.get(0));
+		assertEquals("c", manager.messages.get(1).getRegistrationId());
+		assertEquals(Lane.BULK, manager.lanes.get(1));
+	}
+
+	@Test
+	public void replayMarksRecoveredComplete() throws IOException {
+		MappedMessageJournal journal = open();
+		journal.append(message("a"), Lane.NORMAL);
+		journal.append(message("b"), Lane.NORMAL);
+		journal.close();
+
+		journal = open();
+		assertEquals(2, journal.replay(new RecordingManager()));
+		assertEquals(0, journal.getRecoveredCount());
+		journal.close();
+
+		journal = open();
+		assertEquals(0, journal.getRecoveredCount());
+		journal.close();
+	}
+
+	@Test
+	public void tornTailEndsRecovery() throws IOException {
+		MappedMessageJournal journal = open();
+		journal.append(message("a"), Lane.NORMAL);
+		journal.append(message("b"), Lane.NORMAL);
+		journal.close();
+
+		// Cut the file in the middle of the second record
+		File segment = new File(directory, "journal-0.log");
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.setLength(secondRecordOffset(file) + RECORD_OVERHEAD + 4);
+		} finally {
+			file.close();
+		}
+
+		journal = open();
+		RecordingManager manager = new RecordingManager();
+		assertEquals(1, journal.replay(manager));
+		assertEquals("a", manager.messages.get(0).getRegistrationId());
+		journal.close();
+	}
+
+	@Test
+	public void corruptTailEndsRecovery() throws IOException {
+		MappedMessageJournal journal = open();
+		journal.append(message("a"), Lane.NORMAL);
+		journal.append(message("b"), Lane.NORMAL);
+		journal.close();
+
+		// Flip a byte in the body of the second record
+		File segment = new File(directory, "journal-0.log");
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			long offset = secondRecordOffset(file) + RECORD_OVERHEAD + 12;
+			file.seek(offset);
+			int value = file.read();
+			file.seek(offset);
+			file.write(value ^ 0xFF);
+		} finally {
+			file.close();
+		}
+
+		journal = open();
+		RecordingManager manager = new RecordingManager();
+		assertEquals(1, journal.replay(manager));
+		assertEquals("a", manager.messages.get(0).getRegistrationId());
+		journal.close();
+	}
+
+	@Test
+	public void pendingMessageKeepsLaterSegments() throws IOException {
+		MappedMessageJournal journal = open();
+		long old = journal.append(message("old"), Lane.NORMAL);
+		for (int i = 0; i < 200; i++) {
+			journal.complete(journal.append(message("m" + i), Lane.NORMAL));
+		}
+		int segments = segmentCount();
+		assertTrue(segments > 2);
+
+		journal.complete(old);
+		// Only the active segment remains
+		assertEquals(1, segmentCount());
+		journal.close();
+
+		journal = open();
+		assertEquals(0, journal.getRecoveredCount());
+		journal.close();
+	}
+
+	@Test
+	public void pendingMessageRecoveredAcrossSegments() throws IOException {
+		MappedMessageJournal journal = open();
+		journal.append(message("old"), Lane.NORMAL);
+		for (int i = 0; i < 200; i++) {
+			journal.complete(journal.append(message("m" + i), Lane.NORMAL));
+		}
+		journal.close();
+
+		journal = open();
+		RecordingManager manager = new RecordingManager();
+		assertEquals(1, journal.replay(manager));
+		assertEquals("old", manager.messages.get(0).getRegistrationId());
+		// Replay completed the old message, so only the active segment remains
+		assertEquals(1, segmentCount());
+		journal.close();
+	}
+
+	private MappedMessageJournal open() throws IOException {
+		return MappedMessageJournal.open(directory, SEGMENT_SIZE, SYNC_MILLIS);
+	}
+
+	private int segmentCount() {
+		int count = 0;
+		for (String name : directory.list()) {
+			if (name.startsWith("journal-"))
+				count++;
+		}
+		return count;
+	}
+
+	private static long secondRecordOffset(RandomAccessFile file)
+			throws IOException {
+		file.seek(HEADER_SIZE);
+		return HEADER_SIZE + RECORD_OVERHEAD + file.readInt();
+	}
+
+	private static Message message(String registrationId) {
+		return new MessageBuilder().registrationId(registrationId)
+				.collapseKey("collapse").put("key", "value-" + registrationId)
+				.build();
+	}
+
+	/**
+	 * A manager that records the pushed messages and never sends them.
+	 */
+	private static class RecordingManager implements AsyncGcmManager {
+		private final List<Message> messages = new ArrayList<Message>();
+
+		private final List<Lane> lanes = new ArrayList<Lane>();
+
+		@Override
+		public Future<Response> pushMessage(Message msg) {
+			return pushMessage(msg, Lane.NORMAL);
+		}
+
+		@Override
+		public Future<Response> pushMessage(Message msg, Lane lane) {
+			messages.add(msg);
+			lanes.add(lane);
+			return new FutureResponse();
+		}
+
+		@Override
+		public int getQueueDepth() {
+			return 0;
+		}
+	}
+
+}
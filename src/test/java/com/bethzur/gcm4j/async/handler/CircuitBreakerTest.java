@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+
+/**
+ * Tests the holding and release of messages by {@link CircuitBreaker}.
+ *
+ * @author David R. Bild
+ *
+ */
+public class CircuitBreakerTest {
+
+	private static final long OPEN_MILLIS = 60000;
+
+	@Test
+	public void delaysOneMessageAndHoldsOthersWhileOpen() {
+		CircuitBreaker breaker = openBreaker(OPEN_MILLIS);
+
+		TestContext<Message, MessageDecision> wake = dequeue(breaker, "wake");
+		TestContext<Message, MessageDecision> held = dequeue(breaker, "held");
+
+		assertEquals(MessageDecision.SEND, wake.getDecision());
+		assertTrue(wake.getDelay() > 0);
+		assertEquals(MessageDecision.HOLD, held.getDecision());
+		assertEquals(1, breaker.getHeld());
+	}
+
+	@Test
+	public void cancelledWakeMessageReleasesHeldMessageToWake() {
+		CircuitBreaker breaker = openBreaker(OPEN_MILLIS);
+		TestContext<Message, MessageDecision> wake = dequeue(breaker, "wake");
+		TestContext<Message, MessageDecision> held = dequeue(breaker, "held");
+
+		// E.g., superseded or shed while delayed; it never returns
+		wake.complete();
+
+		assertEquals(1, held.resumed);
+		assertEquals(0, breaker.getHeld());
+
+		// The resumed message returns when the period ends instead
+		held.reset(MessageDecision.SEND);
+		breaker.dequeueFilter(held);
+		assertEquals(MessageDecision.SEND, held.getDecision());
+		assertTrue(held.getDelay() > 0);
+	}
+
+	@Test
+	public void cancelledWakeMessageWithoutHeldMessagesFreesWake() {
+		CircuitBreaker breaker = openBreaker(OPEN_MILLIS);
+		TestContext<Message, MessageDecision> wake = dequeue(breaker, "wake");
+
+		wake.complete();
+
+		TestContext<Message, MessageDecision> next = dequeue(breaker, "next");
+		assertEquals(MessageDecision.SEND, next.getDecision());
+		assertTrue(next.getDelay() > 0);
+		assertEquals(0, breaker.getHeld());
+	}
+
+	@Test
+	public void successfulProbeClosesAndReleasesHeldMessagesGradually()
+			throws InterruptedException {
+		long openMillis = 20;
+		CircuitBreaker breaker = openBreaker(openMillis);
+		TestContext<Message, MessageDecision> wake = dequeue(breaker, "wake");
+		TestContext<Message, MessageDecision> first = dequeue(breaker, "1");
+		TestContext<Message, MessageDecision> second = dequeue(breaker, "2");
+		TestContext<Message, MessageDecision> third = dequeue(breaker, "3");
+		assertEquals(3, breaker.getHeld());
+
+		Thread.sleep(2 * openMillis);
+		wake.reset(MessageDecision.SEND);
+		breaker.dequeueFilter(wake);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertEquals(MessageDecision.SEND, wake.getDecision());
+		assertEquals(0, wake.getDelay());
+
+		respond(breaker, wake, ResponseType.Success);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(1, first.resumed);
+		assertEquals(1, second.resumed);
+		assertEquals(0, third.resumed);
+
+		// Each released message releases more when it completes
+		wake.complete();
+		assertEquals(0, third.resumed);
+		first.complete();
+		assertEquals(1, third.resumed);
+		assertEquals(0, breaker.getHeld());
+	}
+
+	private static CircuitBreaker openBreaker(long openMillis) {
+		CircuitBreaker breaker = new CircuitBreaker(1, openMillis, 1, false);
+		TestContext<Throwable, ResultDecision> failure;
+		failure = new TestContext<Throwable, ResultDecision>(
+				new IOException(), ResultDecision.RETURN);
+		breaker.handleThrowable(failure);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		return breaker;
+	}
+
+	private static TestContext<Message, MessageDecision> dequeue(
+			CircuitBreaker breaker, String registrationId) {
+		Message message = new MessageBuilder().registrationId(registrationId)
+				.collapseKey("ck").build();
+		TestContext<Message, MessageDecision> context;
+		context = new TestContext<Message, MessageDecision>(message,
+				MessageDecision.SEND);
+		breaker.dequeueFilter(context);
+		return context;
+	}
+
+	private static void respond(CircuitBreaker breaker,
+			TestContext<Message, MessageDecision> message,
+			final ResponseType type) {
+		final Message sent = message.unwrap();
+		Response response = new Response() {
+			@Override
+			public ResponseType getResponseType() {
+				return type;
+			}
+
+			@Override
+			public Message getMessage() {
+				return sent;
+			}
+		};
+		breaker.handleResponse(new TestContext<Response, ResultDecision>(
+				response, ResultDecision.RETURN, message.attributes));
+	}
+
+}
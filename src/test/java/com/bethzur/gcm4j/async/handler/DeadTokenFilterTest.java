@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.bethzur.gcm4j.ResponseType;
+
+/**
+ * Tests the hash tables and persistence of {@link DeadTokenFilter}.
+ *
+ * @author David R. Bild
+ *
+ */
+public class DeadTokenFilterTest {
+
+	/**
+	 * Slots in a new stripe; keys are placed at {@code (key >>> 1) & 15}.
+	 */
+	private static final int INITIAL_SLOTS = 16;
+
+	@Test
+	public void removeShiftsBackAcrossWraparound() {
+		DeadTokenFilter.Stripe stripe = new DeadTokenFilter.Stripe();
+		// Home slot 15; probe sequences wrap around to slots 0 and 1
+		long a = key(15, 1);
+		long b = key(15, 2);
+		long c = key(15, 3);
+		// Home slot 0, displaced to slot 2 by the wrapped entries
+		long d = key(0, 4);
+		stripe.add(a);
+		stripe.add(b);
+		stripe.add(c);
+		stripe.add(d);
+
+		stripe.remove(a);
+
+		assertEquals(0, stripe.get(a));
+		assertEquals(b, stripe.get(b));
+		assertEquals(c, stripe.get(c));
+		assertEquals(d, stripe.get(d));
+		assertEquals(3, stripe.size());
+
+		stripe.remove(c);
+
+		assertEquals(b, stripe.get(b));
+		assertEquals(0, stripe.get(c));
+		assertEquals(d, stripe.get(d));
+		assertEquals(2, stripe.size());
+	}
+
+	@Test
+	public void removeKeepsEntryWhoseHomeIsAfterHole() {
+		DeadTokenFilter.Stripe stripe = new DeadTokenFilter.Stripe();
+		long a = key(14, 1);
+		long b = key(14, 2);
+		// Home slot 15, occupied by b; displaced to slot 0
+		long c = key(15, 3);
+		// Home slot 1, not displaced; must not move into a hole before it
+		long d = key(1, 4);
+		stripe.add(a);
+		stripe.add(b);
+		stripe.add(c);
+		stripe.add(d);
+
+		stripe.remove(a);
+		stripe.remove(b);
+
+		assertEquals(c, stripe.get(c));
+		assertEquals(d, stripe.get(d));
+		assertEquals(2, stripe.size());
+		assertEquals(2, stripe.entries().length);
+	}
+
+	@Test
+	public void removeMissingKeyKeepsEntries() {
+		DeadTokenFilter.Stripe stripe = new DeadTokenFilter.Stripe();
+		long a = key(15, 1);
+		long b = key(15, 2);
+		stripe.add(a);
+		stripe.add(b);
+
+		stripe.remove(key(15, 3));
+
+		assertEquals(a, stripe.get(a));
+		assertEquals(b, stripe.get(b));
+		assertEquals(2, stripe.size());
+	}
+
+	@Test
+	public void typeBitIgnoredForLookup() {
+		DeadTokenFilter.Stripe stripe = new DeadTokenFilter.Stripe();
+		long a = key(3, 1);
+		stripe.add(a | 1);
+
+		assertEquals(a | 1, stripe.get(a));
+		stripe.add(a);
+		assertEquals(a, stripe.get(a));
+		assertEquals(1, stripe.size());
+	}
+
+	@Test
+	public void writeAndReadRoundTrip() throws IOException {
+		DeadTokenFilter filter = new DeadTokenFilter();
+		for (int i = 0; i < 1000; i++) {
+			filter.add("not-registered-" + i, ResponseType.NotRegistered);
+			filter.add("invalid-" + i, ResponseType.InvalidRegistration);
+		}
+		filter.remove("not-registered-7");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		filter.writeTo(out);
+		DeadTokenFilter copy = new DeadTokenFilter();
+		copy.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(1999, copy.size());
+		for (int i = 0; i < 1000; i++) {
+			if (i != 7)
+				assertEquals(ResponseType.NotRegistered,
+						copy.get("not-registered-" + i));
+			assertEquals(ResponseType.InvalidRegistration,
+					copy.get("invalid-" + i));
+		}
+		assertNull(copy.get("not-registered-7"));
+		assertNull(copy.get("alive"));
+	}
+
+	@Test(expected = IOException.class)
+	public void readRejectsUnknownVersion() throws IOException {
+		new DeadTokenFilter().readFrom(new ByteArrayInputStream(new byte[] {
+				0, 0, 0, 99 }));
+	}
+
+	/**
+	 * Builds a key whose home slot in a new stripe is {@code slot}, with the
+	 * type bit clear. The top bits, which select the stripe, are unused here.
+	 */
+	private static long key(int slot, long tag) {
+		return ((tag * INITIAL_SLOTS) | slot) << 1;
+	}
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+import com.bethzur.gcm4j.UnavailableResponse;
+import com.bethzur.gcm4j.backoff.Attempt;
+import com.bethzur.gcm4j.backoff.Backoff;
+
+/**
+ * Tests the pause gate of {@link GlobalBackoffThrottle}.
+ *
+ * @author David R. Bild
+ *
+ */
+public class GlobalBackoffThrottleTest {
+
+	private static final long RAMP_MILLIS = 10000;
+
+	private static final double RAMP_RATE = 500;
+
+	private static final long PAUSE_MILLIS = 60000;
+
+	private static final int BACKLOG = 100;
+
+	private GlobalBackoffThrottle throttle;
+
+	@Before
+	public void createThrottle() {
+		throttle = new GlobalBackoffThrottle(new NoBackoff(), RAMP_MILLIS,
+				RAMP_RATE);
+	}
+
+	@Test
+	public void passesWithoutPause() {
+		TestContext<Message, MessageDecision> message = filter(newMessage("a"));
+
+		assertEquals(MessageDecision.SEND, message.getDecision());
+		assertEquals(0, message.getDelay());
+	}
+
+	@Test
+	public void delaysOnePacerAndHoldsBacklog() {
+		long until = System.currentTimeMillis() + PAUSE_MILLIS;
+		pause(until);
+
+		TestContext<Message, MessageDecision> pacer = filter(newMessage("p"));
+		for (int i = 0; i < BACKLOG; i++) {
+			TestContext<Message, MessageDecision> message;
+			message = filter(newMessage("m" + i));
+			assertEquals(MessageDecision.HOLD, message.getDecision());
+		}
+
+		// Only the pacer waits in the scheduler, until the first slot
+		assertEquals(MessageDecision.SEND, pacer.getDecision());
+		assertTrue(pacer.getDelay() > 0);
+		assertTrue(pacer.getDelay() <= PAUSE_MILLIS);
+		assertEquals(BACKLOG, throttle.getHeld());
+	}
+
+	@Test
+	public void pacerPassesAndHandsOffToOldestHeldMessage()
+			throws InterruptedException {
+		long until = System.currentTimeMillis() + 20;
+		pause(until);
+		TestContext<Message, MessageDecision> pacer = filter(newMessage("p"));
+		TestContext<Message, MessageDecision> first = filter(newMessage("1"));
+		TestContext<Message, MessageDecision> second = filter(newMessage("2"));
+
+		sleepUntil(until);
+		dequeueAgain(pacer);
+
+		// The second slot is due 200 ms into the ramp-up
+		assertEquals(0, pacer.getDelay());
+		assertEquals(1, first.resumed);
+		assertEquals(0, second.resumed);
+		assertEquals(1, throttle.getHeld());
+
+		dequeueAgain(first);
+		assertEquals(MessageDecision.SEND, first.getDecision());
+		assertTrue(first.getDelay() > 0);
+		assertTrue(first.getDelay() <= 200);
+	}
+
+	@Test
+	public void releasesDueMessagesTogetherAndOpens()
+			throws InterruptedException {
+		long rampMillis = 20;
+		throttle = new GlobalBackoffThrottle(new NoBackoff(), rampMillis,
+				1000000);
+		long until = System.currentTimeMillis() + 20;
+		pause(until);
+		TestContext<Message, MessageDecision> pacer = filter(newMessage("p"));
+		List<TestContext<Message, MessageDecision>> backlog;
+		backlog = new ArrayList<TestContext<Message, MessageDecision>>();
+		for (int i = 0; i < BACKLOG; i++) {
+			backlog.add(filter(newMessage("m" + i)));
+		}
+
+		sleepUntil(until + rampMillis);
+		dequeueAgain(pacer);
+
+		assertEquals(0, pacer.getDelay());
+		assertEquals(0, throttle.getHeld());
+		for (TestContext<Message, MessageDecision> message : backlog) {
+			assertEquals(1, message.resumed);
+			dequeueAgain(message);
+			assertEquals(MessageDecision.SEND, message.getDecision());
+			assertEquals(0, message.getDelay());
+		}
+
+		// The backlog has drained, so the gate opens
+		TestContext<Message, MessageDecision> late = filter(newMessage("late"));
+		assertEquals(MessageDecision.SEND, late.getDecision());
+		assertEquals(0, late.getDelay());
+	}
+
+	@Test
+	public void cancelledPacerHandsOffToHeldMessage() {
+		pause(System.currentTimeMillis() + PAUSE_MILLIS);
+		TestContext<Message, MessageDecision> pacer = filter(newMessage("p"));
+		TestContext<Message, MessageDecision> held = filter(newMessage("h"));
+
+		// E.g., superseded or shed while delayed; it never returns
+		pacer.complete();
+
+		assertEquals(1, held.resumed);
+		dequeueAgain(held);
+		assertEquals(MessageDecision.SEND, held.getDecision());
+		assertTrue(held.getDelay() > 0);
+	}
+
+	@Test
+	public void retryDuringPauseIsHeldBehindBacklog() {
+		pause(System.currentTimeMillis() - 1);
+
+		// The first slot is due at once
+		TestContext<Message, MessageDecision> first;
+		first = filter(newMessage("first"));
+		assertEquals(0, first.getDelay());
+
+		// The next message paces the second slot; a backlog is held behind it
+		for (int i = 0; i < BACKLOG; i++) {
+			filter(newMessage("m" + i));
+		}
+
+		ResultDecision decision = respond(first,
+				unavailable(first.unwrap(), null));
+		assertEquals(ResultDecision.RETRY, decision);
+		dequeueAgain(first);
+		assertEquals(MessageDecision.HOLD, first.getDecision());
+		assertEquals(BACKLOG, throttle.getHeld());
+	}
+
+	// ------------------------- Helpers --------------------------------------
+	private void pause(long until) {
+		TestContext<Message, MessageDecision> message;
+		message = filter(newMessage("paused"));
+		respond(message, unavailable(message.unwrap(), new Date(until)));
+	}
+
+	/**
+	 * Runs a new message through the enqueue filter and, if not delayed, the
+	 * dequeue filter.
+	 *
+	 * @return the context of the message
+	 */
+	private TestContext<Message, MessageDecision> filter(
+			TestContext<Message, MessageDecision> message) {
+		throttle.enqueueFilter(message);
+		if (message.getDelay() <= 0)
+			throttle.dequeueFilter(message);
+		return message;
+	}
+
+	/**
+	 * Dequeues a held or delayed message again, like the manager does once it
+	 * is resumed or its delay has elapsed.
+	 */
+	private void dequeueAgain(TestContext<Message, MessageDecision> message) {
+		message.reset(MessageDecision.SEND);
+		throttle.dequeueFilter(message);
+	}
+
+	/**
+	 * Handles the response to a sent message.
+	 *
+	 * @return the decision on the response
+	 */
+	private ResultDecision respond(
+			TestContext<Message, MessageDecision> message, Response response) {
+		TestContext<Response, ResultDecision> context;
+		context = new TestContext<Response, ResultDecision>(response,
+				ResultDecision.RETURN, message.attributes);
+		throttle.handleResponse(context);
+		return context.getDecision();
+	}
+
+	private static void sleepUntil(long time) throws InterruptedException {
+		long now;
+		while ((now = System.currentTimeMillis()) <= time) {
+			Thread.sleep(time - now + 1);
+		}
+	}
+
+	private static TestContext<Message, MessageDecision> newMessage(
+			String registrationId) {
+		Message message = new MessageBuilder().registrationId(registrationId)
+				.collapseKey("ck").build();
+		return new TestContext<Message, MessageDecision>(message,
+				MessageDecision.SEND);
+	}
+
+	private static UnavailableResponse unavailable(final Message message,
+			final Date retryAfter) {
+		return new UnavailableResponse() {
+			@Override
+			public ResponseType getResponseType() {
+				return ResponseType.ServiceUnavailable;
+			}
+
+			@Override
+			public Message getMessage() {
+				return message;
+			}
+
+			@Override
+			public boolean hasRetryAfter() {
+				return retryAfter != null;
+			}
+
+			@Override
+			public Date retryAfter() {
+				return retryAfter;
+			}
+		};
+	}
+
+	/**
+	 * A backoff that never delays, so that only the gate delays messages.
+	 */
+	private static class NoBackoff implements Backoff, Attempt {
+		@Override
+		public Attempt begin() {
+			return this;
+		}
+
+		@Override
+		public long delay() {
+			return 0;
+		}
+
+		@Override
+		public void recordSuccess() {
+		}
+
+		@Override
+		public void recordFailure() {
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.async.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal context for testing handlers without a manager. Its attributes
+ * may be shared with other contexts, like those of a message and its
+ * response. Held messages record their resumption, and the completion of the
+ * future is simulated by {@link #complete()}.
+ *
+ * @author David R. Bild
+ *
+ * @param <T>
+ *            the type of object to which to associate context
+ * @param <E>
+ *            the enumeration of possible decisions
+ */
+class TestContext<T, E extends Enum<E>> implements Context<T, E> {
+	final Map<ContextKey<?>, Object> attributes;
+
+	private T wrapped;
+
+	private E decision;
+
+	private long delay;
+
+	private List<Runnable> listeners;
+
+	private boolean completed;
+
+	/**
+	 * The number of times the message was resumed after being held.
+	 */
+	int resumed;
+
+	public TestContext(T wrapped, E decision) {
+		this(wrapped, decision, new HashMap<ContextKey<?>, Object>());
+	}
+
+	public TestContext(T wrapped, E decision,
+			Map<ContextKey<?>, Object> attributes) {
+		this.wrapped = wrapped;
+		this.decision = decision;
+		this.attributes = attributes;
+		this.listeners = new ArrayList<Runnable>();
+	}
+
+	/**
+	 * Prepares the context for another pass through the filters, like the
+	 * manager does when a held or delayed message is dequeued again.
+	 *
+	 * @param decision
+	 *            the initial decision for the pass
+	 */
+	public void reset(E decision) {
+		this.decision = decision;
+		this.delay = 0;
+	}
+
+	/**
+	 * Completes the future of the message, running the completion listeners.
+	 */
+	public void complete() {
+		if (completed)
+			return;
+		completed = true;
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+		listeners = null;
+	}
+
+	@Override
+	public T unwrap() {
+		return wrapped;
+	}
+
+	@Override
+	public void wrap(T wrapped) {
+		this.wrapped = wrapped;
+	}
+
+	@Override
+	public E getDecision() {
+		return decision;
+	}
+
+	@Override
+	public void setDecision(E e) {
+		this.decision = e;
+	}
+
+	@Override
+	public long getDelay() {
+		return delay;
+	}
+
+	@Override
+	public void setDelay(long delay) {
+		this.delay = delay;
+	}
+
+	@Override
+	public void addCompletionListener(Runnable listener) {
+		if (completed)
+			listener.run();
+		else
+			listeners.add(listener);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Runnable hold() {
+		// Only message contexts may be held
+		decision = (E) MessageDecision.HOLD;
+		return new Runnable() {
+			private boolean run;
+
+			@Override
+			public void run() {
+				if (run || completed)
+					return;
+				run = true;
+				resumed++;
+			}
+		};
+	}
+
+	@Override
+	public Runnable superseder() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				complete();
+			}
+		};
+	}
+
+	@Override
+	public <V> void put(ContextKey<V> key, V value) {
+		attributes.put(key, value);
+	}
+
+	// Values are only stored by the typed put.
+	@SuppressWarnings("unchecked")
+	@Override
+	public <V> V get(ContextKey<V> key) {
+		return (V) attributes.get(key);
+	}
+
+	@Override
+	public void put(Object key, Object value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object get(Object key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <C> C get(Object key, Class<? extends C> returnType) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.backoff;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests that concurrent attempts on a {@link DecorrelatedJitterBackoff} do not
+ * compound the previous duration.
+ *
+ * @author David R. Bild
+ *
+ */
+public class DecorrelatedJitterBackoffTest {
+
+	private static final long BASE = 100;
+
+	private static final long CAP = Long.MAX_VALUE / 4;
+
+	private static final int CONCURRENT = 50;
+
+	private static final int TRIALS = 100;
+
+	@Test
+	public void firstFailureStartsFromBase() {
+		Backoff backoff = new DecorrelatedJitterBackoff(BASE, CAP);
+		backoff.begin().recordFailure();
+
+		assertTrue(backoff.begin().delay() <= 3 * BASE);
+	}
+
+	@Test
+	public void concurrentFailuresAdvanceOnce() {
+		for (int trial = 0; trial < TRIALS; trial++) {
+			Backoff backoff = new DecorrelatedJitterBackoff(BASE, CAP);
+			backoff.begin().recordFailure();
+
+			List<Attempt> attempts = new ArrayList<Attempt>();
+			for (int i = 0; i < CONCURRENT; i++) {
+				attempts.add(backoff.begin());
+			}
+			for (Attempt attempt : attempts) {
+				attempt.recordFailure();
+			}
+
+			backoff.begin().recordFailure();
+
+			// Three steps from base: at most 3 * 3 * 3 * base
+			assertTrue(backoff.begin().delay() <= 27 * BASE);
+		}
+	}
+
+	@Test
+	public void successRestartsAtBase() {
+		Backoff backoff = new DecorrelatedJitterBackoff(BASE, CAP);
+		for (int i = 0; i < 10; i++) {
+			backoff.begin().recordFailure();
+		}
+		backoff.begin().recordSuccess();
+		backoff.begin().recordFailure();
+
+		assertTrue(backoff.begin().delay() <= 3 * BASE);
+	}
+
+}
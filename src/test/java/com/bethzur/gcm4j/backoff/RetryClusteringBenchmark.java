@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.backoff;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Simulates a fleet of clients that fail together and reports, for each
+ * backoff strategy, how their retries cluster in time. Each client has its own
+ * {@link Backoff} and retries as soon as its delay elapses; every attempt
+ * fails. Retries are counted per window of simulated time; a high peak means
+ * the clients retry as a herd.
+ * <p>
+ * Run with:<br/>
+ * <code>
+ * java -cp target/classes:target/test-classes com.bethzur.gcm4j.backoff.RetryClusteringBenchmark [clients] [failures]
+ * </code><br/>
+ * The defaults are 1,200 clients failing six times each.
+ *
+ * @author David R. Bild
+ *
+ */
+public class RetryClusteringBenchmark {
+
+	private static final float SCALE_MILLIS = 100;
+
+	private static final long WINDOW_MILLIS = 100;
+
+	public static void main(String[] args) {
+		int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 1200;
+		int failures = (args.length > 1) ? Integer.parseInt(args[1]) : 6;
+
+		report("exponential", new ExponentialBackoff.Provider(SCALE_MILLIS,
+				20), clients, failures);
+		report("full jitter", new FullJitterBackoff.Provider(SCALE_MILLIS, 20),
+				clients, failures);
+		report("decorrelated", new DecorrelatedJitterBackoff.Provider(
+				(long) SCALE_MILLIS, 1048575), clients, failures);
+	}
+
+	private static void report(String name, BackoffProvider provider,
+			int clients, int failures) {
+		Map<Long, Integer> windows = new HashMap<Long, Integer>();
+		long last = 0;
+		for (int c = 0; c < clients; c++) {
+			Backoff backoff = provider.createBackoff();
+			long time = 0;
+			for (int f = 0; f < failures; f++) {
+				backoff.begin().recordFailure();
+				time += backoff.begin().delay();
+				Long window = time / WINDOW_MILLIS;
+				Integer count = windows.get(window);
+				windows.put(window, (count == null) ? 1 : count + 1);
+				last = Math.max(last, time);
+			}
+		}
+
+		int peak = 0;
+		for (int count : windows.values()) {
+			peak = Math.max(peak, count);
+		}
+		System.out.printf(
+				"%-12s peak %,5d/%,d retries in one %d ms window, "
+						+ "%,d windows hit, last retry at %,d ms%n", name,
+				peak, clients * failures, WINDOW_MILLIS, windows.size(), last);
+	}
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bethzur.gcm4j.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bethzur.gcm4j.Message;
+import com.bethzur.gcm4j.MessageBuilder;
+import com.bethzur.gcm4j.Response;
+import com.bethzur.gcm4j.ResponseType;
+import com.bethzur.gcm4j.SuccessResponse;
+import com.bethzur.gcm4j.UnavailableResponse;
+import com.bethzur.gcm4j.UnexpectedResponseException;
+import com.bethzur.gcm4j.auth.ApiKeyAuthProvider;
+
+/**
+ * Tests {@link Http2GcmManager} against a local cleartext HTTP/2 ({@code h2c})
+ * stub of the GCM endpoint.
+ *
+ * @author David R. Bild
+ *
+ */
+public class Http2GcmManagerTest {
+
+	private static final Message MESSAGE = new MessageBuilder()
+			.registrationId("reg-1").collapseKey("ck").put("k", "v").build();
+
+	private Server server;
+
+	private StubHandler stub;
+
+	private Http2GcmManager manager;
+
+	@Before
+	public void startServer() throws Exception {
+		server = new Server();
+		HttpConfiguration config = new HttpConfiguration();
+		ServerConnector connector = new ServerConnector(server,
+				new HttpConnectionFactory(config),
+				new HTTP2CServerConnectionFactory(config));
+		connector.setHost("127.0.0.1");
+		connector.setPort(0);
+		server.addConnector(connector);
+		stub = new StubHandler();
+		server.setHandler(stub);
+		server.start();
+
+		URI uri = URI.create("http://127.0.0.1:" + connector.getLocalPort()
+				+ "/gcm/send");
+		HttpClient client = Http2GcmManager.createDefaultClient();
+		// The JDK client only upgrades body-less requests to h2c, so open the
+		// HTTP/2 connection with a GET that later POSTs are multiplexed onto.
+		stub.respond(200, null, "");
+		client.send(HttpRequest.newBuilder(uri).GET().build(),
+				BodyHandlers.discarding());
+		manager = new Http2GcmManager(client, new ApiKeyAuthProvider("secret"),
+				uri);
+	}
+
+	@After
+	public void stopServer() throws Exception {
+		server.stop();
+	}
+
+	@Test
+	public void sendsFormEncodedRequestOverHttp2() throws Exception {
+		stub.respond(200, null, "id=0:1234");
+		Response response = manager.pushMessage(MESSAGE);
+
+		assertEquals("HTTP/2.0", stub.protocol);
+		assertEquals("key=secret", stub.authorization);
+		assertEquals(GcmHttpPost.CONTENT_TYPE, stub.contentType);
+		assertEquals(new String(GcmFormEncoder.encode(MESSAGE), "UTF-8"),
+				stub.body);
+		assertEquals(ResponseType.Success, response.getResponseType());
+		assertEquals("0:1234",
+				((SuccessResponse) response).getSentMessageId());
+	}
+
+	@Test
+	public void mapsErrorBody() throws Exception {
+		stub.respond(200, null, "Error=NotRegistered");
+		assertEquals(ResponseType.NotRegistered, manager.pushMessage(MESSAGE)
+				.getResponseType());
+	}
+
+	@Test
+	public void mapsInternalError() throws Exception {
+		stub.respond(500, null, "");
+		assertEquals(ResponseType.InternalError, manager.pushMessage(MESSAGE)
+				.getResponseType());
+	}
+
+	@Test
+	public void mapsUnauthorized() throws Exception {
+		stub.respond(401, null, "");
+		assertEquals(ResponseType.Unauthorized, manager.pushMessage(MESSAGE)
+				.getResponseType());
+	}
+
+	@Test
+	public void mapsUnavailableWithRetryAfterSeconds() throws Exception {
+		stub.respond(503, "120", "");
+		long before = System.currentTimeMillis();
+
+		Response response = manager.pushMessage(MESSAGE);
+
+		assertEquals(ResponseType.ServiceUnavailable,
+				response.getResponseType());
+		UnavailableResponse unavailable = (UnavailableResponse) response;
+		assertTrue(unavailable.hasRetryAfter());
+		long retryAfter = unavailable.retryAfter().getTime();
+		assertTrue(retryAfter >= before + TimeUnit.SECONDS.toMillis(120));
+		assertTrue(retryAfter <= System.currentTimeMillis()
+				+ TimeUnit.SECONDS.toMillis(120));
+	}
+
+	@Test
+	public void mapsUnavailableWithRetryAfterDate() throws Exception {
+		stub.respond(503, "Fri, 31 Dec 2100 23:59:59 GMT", "");
+
+		UnavailableResponse response = (UnavailableResponse) manager
+				.pushMessage(MESSAGE);
+
+		assertEquals(4133980799000L, response.retryAfter().getTime());
+	}
+
+	@Test
+	public void mapsUnavailableWithoutRetryAfter() throws Exception {
+		stub.respond(503, null, "");
+
+		UnavailableResponse response = (UnavailableResponse) manager
+				.pushMessage(MESSAGE);
+
+		assertTrue(!response.hasRetryAfter());
+	}
+
+	@Test(expected = UnexpectedResponseException.class)
+	public void rejectsUnexpectedStatus() throws Exception {
+		stub.respond(404, null, "");
+		manager.pushMessage(MESSAGE);
+	}
+
+	@Test
+	public void completesAsyncFuture() throws Exception {
+		stub.respond(503, "30", "");
+		Response response = manager.pushMessageAsync(MESSAGE).get(10,
+				TimeUnit.SECONDS);
+		assertEquals(ResponseType.ServiceUnavailable,
+				response.getResponseType());
+	}
+
+	@Test
+	public void failsAsyncFutureOnUnexpectedStatus() throws Exception {
+		stub.respond(404, null, "");
+		try {
+			manager.pushMessageAsync(MESSAGE).get(10, TimeUnit.SECONDS);
+			fail("Expected an ExecutionException.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof UnexpectedResponseException);
+		}
+	}
+
+	/**
+	 * Replies to every request with a configured status, Retry-After header,
+	 * and body, and records the last request.
+	 */
+	private static class StubHandler extends AbstractHandler {
+		private volatile int status;
+
+		private volatile String retryAfter;
+
+		private volatile String responseBody;
+
+		private volatile String protocol;
+
+		private volatile String authorization;
+
+		private volatile String contentType;
+
+		private volatile String body;
+
+		public void respond(int status, String retryAfter, String responseBody) {
+			this.status = status;
+			this.retryAfter = retryAfter;
+			this.responseBody = responseBody;
+		}
+
+		@Override
+		public void handle(String target, Request baseRequest,
+				HttpServletRequest request, HttpServletResponse response)
+				throws IOException {
+			protocol = request.getProtocol();
+			authorization = request.getHeader("Authorization");
+			contentType = request.getContentType();
+			body = new String(readAll(request), "UTF-8");
+
+			response.setStatus(status);
+			if (retryAfter != null)
+				response.setHeader("Retry-After", retryAfter);
+			response.setContentType("text/plain; charset=UTF-8");
+			response.getWriter().write(responseBody);
+			baseRequest.setHandled(true);
+		}
+
+		private static byte[] readAll(HttpServletRequest request)
+				throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = request.getInputStream().read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+
+}